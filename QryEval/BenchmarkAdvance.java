@@ -0,0 +1,139 @@
+/**
+ *  Copyright (c) 2022, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.util.*;
+
+/**
+ *  A simple commandline benchmark that compares linear-scan and
+ *  galloping docIteratorAdvanceTo on materialized inverted lists.
+ *  It intersects a rare list with a frequent list, which is the
+ *  pattern that #AND and #NEAR queries produce when they mix
+ *  stopword-like and rare terms.
+ *  <p>
+ *  Usage:  java BenchmarkAdvance [frequentDf [rareDf [repetitions]]]
+ *  </p>
+ */
+public class BenchmarkAdvance {
+
+  /**
+   *  @param args Optional list sizes and the number of repetitions.
+   */
+  public static void main (String[] args) {
+
+    int frequentDf = (args.length > 0) ? Integer.parseInt (args[0]) : 5000000;
+    int rareDf = (args.length > 1) ? Integer.parseInt (args[1]) : 1000;
+    int repetitions = (args.length > 2) ? Integer.parseInt (args[2]) : 200;
+
+    Random random = new Random (42);
+    InvList frequent = randomList (random, frequentDf, 2 * frequentDf);
+    InvList rare = randomList (random, rareDf, 2 * frequentDf);
+
+    //  Warm up both implementations before timing them.
+
+    long linearMatches = 0;
+    long gallopMatches = 0;
+
+    for (int i = 0; i < 3; i++) {
+      linearMatches = intersectLinear (rare, frequent);
+      gallopMatches = intersectGallop (rare, frequent);
+    }
+
+    if (linearMatches != gallopMatches) {
+      throw new IllegalStateException ("Linear and galloping results differ: " +
+                                       linearMatches + " vs " + gallopMatches);
+    }
+
+    Timer linear = new Timer ();
+    linear.start ();
+    for (int i = 0; i < repetitions; i++)
+      intersectLinear (rare, frequent);
+    linear.stop ();
+
+    Timer gallop = new Timer ();
+    gallop.start ();
+    for (int i = 0; i < repetitions; i++)
+      intersectGallop (rare, frequent);
+    gallop.stop ();
+
+    System.out.println ("frequent df: " + frequentDf + ", rare df: " + rareDf +
+                        ", repetitions: " + repetitions +
+                        ", matches: " + linearMatches);
+    System.out.println ("linear scan:  " + linear);
+    System.out.println ("galloping:    " + gallop);
+  }
+
+  /**
+   *  Create an inverted list with random docids and one position per
+   *  posting.
+   *  @param random The random number generator.
+   *  @param df The number of postings.
+   *  @param maxDocid The docids are drawn from [0, maxDocid).
+   *  @return The inverted list.
+   */
+  private static InvList randomList (Random random, int df, int maxDocid) {
+
+    int[] docids = new int[df];
+
+    for (int i = 0; i < df; i++)
+      docids[i] = random.nextInt (maxDocid);
+
+    Arrays.sort (docids);
+
+    InvList list = new InvList ("body");
+    int[] position = new int[] { 1 };
+
+    for (int i = 0; i < df; i++)
+      list.appendPosting (docids[i], position, 1);
+
+    return list;
+  }
+
+  /**
+   *  Count the documents in both lists, advancing through the
+   *  frequent list one posting at a time.
+   *  @param rare The shorter list.
+   *  @param frequent The longer list.
+   *  @return The number of common documents.
+   */
+  private static long intersectLinear (InvList rare, InvList frequent) {
+
+    long matches = 0;
+    int j = 0;
+
+    for (int i = 0; i < rare.df; i++) {
+      int docid = rare.getDocid (i);
+
+      while ((j < frequent.df) && (frequent.getDocid (j) < docid))
+        j ++;
+
+      if ((j < frequent.df) && (frequent.getDocid (j) == docid))
+        matches ++;
+    }
+
+    return matches;
+  }
+
+  /**
+   *  Count the documents in both lists, advancing through the
+   *  frequent list with galloping search.
+   *  @param rare The shorter list.
+   *  @param frequent The longer list.
+   *  @return The number of common documents.
+   */
+  private static long intersectGallop (InvList rare, InvList frequent) {
+
+    long matches = 0;
+    int j = 0;
+
+    for (int i = 0; i < rare.df; i++) {
+      int docid = rare.getDocid (i);
+
+      j = frequent.findDocid (j, docid);
+
+      if ((j < frequent.df) && (frequent.getDocid (j) == docid))
+        matches ++;
+    }
+
+    return matches;
+  }
+}
@@ -0,0 +1,184 @@
+/**
+ *  Copyright (c) 2022, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ *  A simple commandline benchmark of batch query processing (see
+ *  QryEval.processQueryFile) with 1 to n workers.  Each worker
+ *  processes whole queries, logging to its own buffer, as a batch
+ *  does.  The rankings with each number of workers are checked to be
+ *  identical to one worker's, and then the throughput is measured
+ *  over the whole query file.  Speedup requires as many cores as
+ *  workers.
+ *  <p>
+ *  Usage:  java BenchmarkBatch indexPath queryFile [BM25|Indri [maxThreads [k [repetitions]]]]
+ *  </p>
+ */
+public class BenchmarkBatch {
+
+  /**
+   *  @param args The index, the query file, and optionally the
+   *  retrieval model, the largest number of workers, the number of
+   *  documents to retrieve, and the number of repetitions.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static void main (String[] args) throws IOException {
+
+    if (args.length < 2) {
+      System.out.println ("Usage:  java BenchmarkBatch indexPath queryFile " +
+                          "[BM25|Indri [maxThreads [k [repetitions]]]]");
+      System.exit (1);
+    }
+
+    String modelName = (args.length > 2) ? args[2].toLowerCase () : "bm25";
+    int maxThreads = (args.length > 3) ?
+      Integer.parseInt (args[3]) : Runtime.getRuntime ().availableProcessors ();
+    int k = (args.length > 4) ? Integer.parseInt (args[4]) : 100;
+    int repetitions = (args.length > 5) ? Integer.parseInt (args[5]) : 3;
+
+    Idx.open (args[0]);
+
+    IndexContext index = Idx.getIndexContext ();
+    RetrievalModel model = model (modelName);
+    List<String> queries = readQueries (args[1]);
+
+    //  Check that every number of workers produces the same rankings.
+    //  This, and running the queries again with one worker, warms up
+    //  the index and the JIT before timing.
+
+    List<ScoreList> expected = run (index, queries, model, k, 1);
+
+    for (int threads = 2; threads <= maxThreads; threads++) {
+      List<ScoreList> results = run (index, queries, model, k, threads);
+
+      for (int i = 0; i < queries.size (); i++) {
+        if (! same (expected.get (i), results.get (i))) {
+          throw new IllegalStateException (threads + " workers changed the results of " +
+                                           queries.get (i));
+        }
+      }
+    }
+
+    for (int i = 0; i < repetitions; i++)
+      run (index, queries, model, k, 1);
+
+    System.out.println ("model: " + modelName + ", queries: " + queries.size () +
+                        ", k: " + k + ", repetitions: " + repetitions +
+                        ", cores: " + Runtime.getRuntime ().availableProcessors ());
+
+    double baseline = 0;
+
+    for (int threads = 1; threads <= maxThreads; threads++) {
+      long start = System.nanoTime ();
+
+      for (int i = 0; i < repetitions; i++)
+        run (index, queries, model, k, threads);
+
+      double seconds = (System.nanoTime () - start) / 1e9;
+      double throughput = queries.size () * repetitions / seconds;
+
+      if (threads == 1)
+        baseline = throughput;
+
+      System.out.println (String.format ("%2d workers:  %8.1f queries/sec, speedup %.2f",
+                                         threads, throughput, throughput / baseline));
+    }
+  }
+
+  /**
+   *  Create a retrieval model with the default parameters.
+   *  @param modelName bm25 or indri.
+   *  @return The retrieval model.
+   */
+  private static RetrievalModel model (String modelName) {
+
+    if (modelName.equals ("bm25"))
+      return new RetrievalModelBM25 (1.2, 0.75, 0.0);
+    else if (modelName.equals ("indri"))
+      return new RetrievalModelIndri (2500, 0.4);
+
+    throw new IllegalArgumentException ("Unsupported retrieval model " + modelName);
+  }
+
+  /**
+   *  Read a query file.  Each line has the form qid:query.
+   *  @param queryFilePath The query file.
+   *  @return The queries.
+   *  @throws IOException Error reading the file.
+   */
+  private static List<String> readQueries (String queryFilePath) throws IOException {
+
+    List<String> queries = new ArrayList<String> ();
+
+    for (String line : Files.readAllLines (Paths.get (queryFilePath))) {
+      int d = line.indexOf (':');
+
+      if (d >= 0)
+        queries.add (line.substring (d + 1).trim ());
+    }
+
+    return queries;
+  }
+
+  /**
+   *  Run every query with a pool of workers.
+   *  @param index The index.
+   *  @param queries The queries.
+   *  @param model The retrieval model.
+   *  @param k The number of documents to retrieve.
+   *  @param threads The number of workers.
+   *  @return The results of each query, in order.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private static List<ScoreList> run (IndexContext index, List<String> queries,
+                                      RetrievalModel model, int k, int threads)
+    throws IOException {
+
+    ExecutorService workers = Executors.newFixedThreadPool (threads);
+    List<Future<ScoreList>> pending = new ArrayList<Future<ScoreList>> ();
+    List<ScoreList> results = new ArrayList<ScoreList> ();
+
+    try {
+      for (String query : queries) {
+        pending.add (workers.submit (() -> {
+              PrintStream log = new PrintStream (new ByteArrayOutputStream ());
+              return QryEval.processQuery (index, query, model, k, log);
+            }));
+      }
+
+      for (Future<ScoreList> result : pending)
+        results.add (result.get ());
+    } catch (InterruptedException | ExecutionException ex) {
+      throw new IOException (ex);
+    } finally {
+      workers.shutdownNow ();
+    }
+
+    return results;
+  }
+
+  /**
+   *  Whether two rankings are identical.
+   *  @param a A ranking.
+   *  @param b Another ranking.
+   *  @return True if they have the same documents and scores, in the
+   *  same order.
+   */
+  private static boolean same (ScoreList a, ScoreList b) {
+
+    if (a.size () != b.size ())
+      return false;
+
+    for (int i = 0; i < a.size (); i++) {
+      if ((a.getDocid (i) != b.getDocid (i)) ||
+          (a.getDocidScore (i) != b.getDocidScore (i)))
+        return false;
+    }
+
+    return true;
+  }
+}
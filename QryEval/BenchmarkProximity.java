@@ -0,0 +1,136 @@
+/**
+ *  Copyright (c) 2022, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+/**
+ *  A simple commandline benchmark of the #NEAR and #WINDOW position
+ *  matching kernels with 2, 4 and 8 arguments.  The arguments are
+ *  synthetic inverted lists of frequent terms:  every argument
+ *  occurs in every document, at tf random positions, so the
+ *  benchmark measures position matching rather than index access.
+ *  The lists are generated once with a fixed seed, and each
+ *  operator is evaluated repeatedly over them.
+ *  <p>
+ *  Usage:  java BenchmarkProximity [numDocs [docLength [tf [repetitions]]]]
+ *  </p>
+ */
+public class BenchmarkProximity {
+
+  /**
+   *  A query operator whose inverted list is given, rather than
+   *  read from an index.
+   */
+  private static class FixedList extends QryIop {
+
+    private final InvList list;
+
+    private FixedList (InvList list) {
+      this.field = list.field;
+      this.list = list;
+    }
+
+    protected void evaluate () {
+      this.invertedList = this.list;
+    }
+  }
+
+  /**
+   *  @param args Optionally, the number of documents, the document
+   *  length, the tf of each argument, and the number of repetitions.
+   *  @throws IOException Error evaluating an operator.
+   */
+  public static void main (String[] args) throws IOException {
+
+    int numDocs = (args.length > 0) ? Integer.parseInt (args[0]) : 20000;
+    int docLength = (args.length > 1) ? Integer.parseInt (args[1]) : 500;
+    int tf = (args.length > 2) ? Integer.parseInt (args[2]) : 20;
+    int repetitions = (args.length > 3) ? Integer.parseInt (args[3]) : 10;
+    int[] arities = { 2, 4, 8 };
+
+    Random random = new Random (1);
+    InvList[] lists = new InvList[8];
+
+    for (int i = 0; i < lists.length; i++)
+      lists[i] = createList (random, numDocs, docLength, tf);
+
+    System.out.println ("docs: " + numDocs + ", doc length: " + docLength +
+                        ", tf: " + tf + ", repetitions: " + repetitions);
+
+    for (String operator : new String[] { "#NEAR/5", "#WINDOW/10" }) {
+      for (int arity : arities) {
+
+        //  The first evaluation warms up the JIT.
+
+        int df = evaluate (operator, lists, arity).df;
+        Timer timer = new Timer ();
+
+        timer.start ();
+        for (int i = 0; i < repetitions; i++)
+          evaluate (operator, lists, arity);
+        timer.stop ();
+
+        System.out.println (String.format ("%-10s %d args, df %7d:  %s",
+                                           operator, arity, df, timer));
+      }
+    }
+  }
+
+  /**
+   *  Create an inverted list in which every document has tf
+   *  distinct random positions.
+   *  @param random The random number generator.
+   *  @param numDocs The number of documents.
+   *  @param docLength The document length.
+   *  @param tf The number of positions in each document.
+   *  @return The inverted list.
+   */
+  private static InvList createList (Random random, int numDocs, int docLength, int tf) {
+
+    InvList list = new InvList ("body", true);
+    int[] positions = new int[tf];
+
+    for (int docid = 0; docid < numDocs; docid++) {
+      BitSet used = new BitSet (docLength);
+
+      for (int j = 0; j < tf; ) {
+        int p = random.nextInt (docLength);
+
+        if (! used.get (p)) {
+          used.set (p);
+          j ++;
+        }
+      }
+
+      for (int p = used.nextSetBit (0), j = 0; p >= 0; p = used.nextSetBit (p + 1))
+        positions[j++] = p;
+
+      list.appendPosting (docid, positions, tf);
+    }
+
+    return list;
+  }
+
+  /**
+   *  Evaluate an operator over the first arity lists.
+   *  @param operator "#NEAR/n" or "#WINDOW/n".
+   *  @param lists The arguments' inverted lists.
+   *  @param arity The number of arguments.
+   *  @return The operator's inverted list.
+   *  @throws IOException Error evaluating the operator.
+   */
+  private static InvList evaluate (String operator, InvList[] lists, int arity)
+    throws IOException {
+
+    int distance = Integer.parseInt (operator.substring (operator.indexOf ('/') + 1));
+    QryIop q = operator.startsWith ("#NEAR") ?
+      new QryIopNear (distance) : new QryIopWindow (distance);
+
+    for (int i = 0; i < arity; i++)
+      q.appendArg (new FixedList (lists[i]));
+
+    q.initialize (null);
+    return q.getInvertedList ();
+  }
+}
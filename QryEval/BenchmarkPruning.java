@@ -0,0 +1,168 @@
+/**
+ *  Copyright (c) 2022, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ *  A simple commandline benchmark that compares exhaustive top-k
+ *  evaluation with MaxScore and Block-Max WAND on a query file.  Each
+ *  query is run with each method, the rankings are checked to be
+ *  identical, and then each method is timed over the whole file.
+ *  BM25 queries are run with the default parameters; Ranked Boolean
+ *  has no MaxScore implementation, so it compares exhaustive
+ *  evaluation with Block-Max WAND only.
+ *  <p>
+ *  Build the block-max index first (see BlockMaxIndex); without it,
+ *  Block-Max WAND uses list-level bounds, which is WAND.
+ *  </p>
+ *  <p>
+ *  Usage:  java BenchmarkPruning indexPath queryFile [BM25|RankedBoolean [k [repetitions]]]
+ *  </p>
+ */
+public class BenchmarkPruning {
+
+  /**
+   *  @param args The index, the query file, and optionally the
+   *  retrieval model, the number of documents to retrieve, and the
+   *  number of repetitions.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static void main (String[] args) throws IOException {
+
+    if (args.length < 2) {
+      System.out.println ("Usage:  java BenchmarkPruning indexPath queryFile " +
+                          "[BM25|RankedBoolean [k [repetitions]]]");
+      System.exit (1);
+    }
+
+    String modelName = (args.length > 2) ? args[2].toLowerCase () : "bm25";
+    int k = (args.length > 3) ? Integer.parseInt (args[3]) : 100;
+    int repetitions = (args.length > 4) ? Integer.parseInt (args[4]) : 5;
+
+    Idx.open (args[0]);
+    System.out.println ("block-max index: " +
+                        ((Idx.getBlockMaxIndex () != null) ? "yes" : "no (WAND bounds)"));
+
+    List<String> queries = readQueries (args[1]);
+    List<String> methods = new ArrayList<String> ();
+    methods.add ("none");
+
+    if (modelName.equals ("bm25"))
+      methods.add ("maxscore");
+
+    methods.add ("bmw");
+
+    //  Check that every method produces the same rankings.  This also
+    //  warms up the index and the JIT before timing.
+
+    List<ScoreList> expected = run (queries, model (modelName, "none"), k);
+
+    for (String method : methods) {
+      List<ScoreList> results = run (queries, model (modelName, method), k);
+
+      for (int i = 0; i < queries.size (); i++) {
+        if (! same (expected.get (i), results.get (i))) {
+          throw new IllegalStateException ("Pruning method " + method +
+                                           " changed the results of " + queries.get (i));
+        }
+      }
+    }
+
+    System.out.println ("model: " + modelName + ", queries: " + queries.size () +
+                        ", k: " + k + ", repetitions: " + repetitions);
+
+    for (String method : methods) {
+      RetrievalModel model = model (modelName, method);
+      Timer timer = new Timer ();
+
+      timer.start ();
+      for (int i = 0; i < repetitions; i++)
+        run (queries, model, k);
+      timer.stop ();
+
+      System.out.println (String.format ("%-10s %s", method + ":", timer));
+    }
+  }
+
+  /**
+   *  Create a retrieval model that uses a pruning method.
+   *  @param modelName bm25 or rankedboolean.
+   *  @param pruning The pruning method.
+   *  @return The retrieval model.
+   */
+  private static RetrievalModel model (String modelName, String pruning) {
+
+    if (modelName.equals ("bm25")) {
+      RetrievalModelBM25 model = new RetrievalModelBM25 (1.2, 0.75, 0.0);
+      model.setPruning (pruning);
+      return model;
+    } else if (modelName.equals ("rankedboolean")) {
+      RetrievalModelRankedBoolean model = new RetrievalModelRankedBoolean ();
+      model.setPruning (pruning);
+      return model;
+    }
+
+    throw new IllegalArgumentException ("Unsupported retrieval model " + modelName);
+  }
+
+  /**
+   *  Read a query file.  Each line has the form qid:query.
+   *  @param queryFilePath The query file.
+   *  @return The queries.
+   *  @throws IOException Error reading the file.
+   */
+  private static List<String> readQueries (String queryFilePath) throws IOException {
+
+    List<String> queries = new ArrayList<String> ();
+
+    for (String line : Files.readAllLines (Paths.get (queryFilePath))) {
+      int d = line.indexOf (':');
+
+      if (d >= 0)
+        queries.add (line.substring (d + 1).trim ());
+    }
+
+    return queries;
+  }
+
+  /**
+   *  Run every query.
+   *  @param queries The queries.
+   *  @param model The retrieval model.
+   *  @param k The number of documents to retrieve.
+   *  @return The results of each query.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private static List<ScoreList> run (List<String> queries, RetrievalModel model, int k)
+    throws IOException {
+
+    List<ScoreList> results = new ArrayList<ScoreList> ();
+
+    for (String query : queries)
+      results.add (QryEval.processQuery (query, model, k));
+
+    return results;
+  }
+
+  /**
+   *  Whether two rankings have the same documents and scores.
+   *  @param a A ranking.
+   *  @param b Another ranking.
+   *  @return True if they are the same.
+   */
+  private static boolean same (ScoreList a, ScoreList b) {
+
+    if (a.size () != b.size ())
+      return false;
+
+    for (int i = 0; i < a.size (); i++) {
+      if ((a.getDocid (i) != b.getDocid (i)) ||
+          (a.getDocidScore (i) != b.getDocidScore (i)))
+        return false;
+    }
+
+    return true;
+  }
+}
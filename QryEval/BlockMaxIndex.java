@@ -0,0 +1,391 @@
+/**
+ *  Copyright (c) 2022, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ *  Per-block score metadata for the inverted lists of an index.  The
+ *  postings of each term are divided into blocks of BLOCK_SIZE
+ *  postings, in docid order, and each block records its last docid,
+ *  its largest tf, and the length of its shortest document.  Block-Max
+ *  WAND uses them to bound the scores of documents in a block
+ *  without reading the block (see BlockMaxWand).
+ *  <p>
+ *  The metadata is built offline, because it requires a pass over
+ *  every inverted list:
+ *  </p>
+ *  <pre>
+ *    java BlockMaxIndex indexPath [field ...]
+ *  </pre>
+ *  <p>
+ *  It is saved as a sidecar file in the index directory and memory
+ *  mapped by Idx.open.  Terms whose inverted lists fit in one block
+ *  are not stored; their list-level bounds are as good.  The file
+ *  format is:
+ *  </p>
+ *  <pre>
+ *    int   MAGIC
+ *    int   number of terms
+ *    long  index version
+ *    int   keyStart[terms + 1]     byte offsets of each key
+ *    int   blockStart[terms + 1]   index of each term's first block
+ *    byte  keys[]                  "field \0 term" in UTF-8, sorted, padded to 4 bytes
+ *    int   blocks[][3]             last docid, max tf, min length
+ *  </pre>
+ */
+public class BlockMaxIndex {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The number of postings in a block.
+   */
+  public static final int BLOCK_SIZE = 128;
+
+  private static final int MAGIC = 0x51454231;		// "QEB1"
+  private static final int HEADER_BYTES = 16;
+
+  private final ByteBuffer index;
+  private final int numTerms;
+  private final int keysStart;
+  private final int blocksStart;
+
+  /**
+   *  The blocks of one inverted list.
+   */
+  public class Blocks {
+    private final int first;
+    private final int count;
+
+    private Blocks (int first, int count) {
+      this.first = first;
+      this.count = count;
+    }
+
+    /**
+     *  @return The number of blocks.
+     */
+    public int size () {
+      return this.count;
+    }
+
+    /**
+     *  @param i The index of a block.
+     *  @return The last docid in the block.
+     */
+    public int getLastDocid (int i) {
+      return index.getInt (blocksStart + 12 * (this.first + i));
+    }
+
+    /**
+     *  @param i The index of a block.
+     *  @return The largest tf in the block.
+     */
+    public int getMaxTf (int i) {
+      return index.getInt (blocksStart + 12 * (this.first + i) + 4);
+    }
+
+    /**
+     *  @param i The index of a block.
+     *  @return The length of the shortest document in the block.
+     */
+    public int getMinLength (int i) {
+      return index.getInt (blocksStart + 12 * (this.first + i) + 8);
+    }
+
+    /**
+     *  Find the first block whose last docid is at least a docid.
+     *  @param from The search starts at this block.
+     *  @param docid An internal document id.
+     *  @return The index of the block, or size() if there is none.
+     */
+    public int find (int from, int docid) {
+      int lo = from;
+      int hi = this.count;
+
+      while (lo < hi) {
+        int mid = (lo + hi) >>> 1;
+
+        if (this.getLastDocid (mid) < docid)
+          lo = mid + 1;
+        else
+          hi = mid;
+      }
+
+      return lo;
+    }
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Constructor.  Use open to get an index.
+   *  @param index The index contents.
+   */
+  private BlockMaxIndex (ByteBuffer index) {
+    this.index = index;
+    this.numTerms = index.getInt (4);
+    this.keysStart = HEADER_BYTES + 8 * (this.numTerms + 1);
+
+    int keyBytes = index.getInt (HEADER_BYTES + 4 * this.numTerms);
+    this.blocksStart = this.keysStart + ((keyBytes + 3) & ~3);
+  }
+
+  /**
+   *  Get the blocks of a term's inverted list.
+   *  @param field The field.
+   *  @param term The term.
+   *  @return The blocks, or null if the term isn't in the index.
+   */
+  public Blocks get (String field, String term) {
+
+    byte[] key = key (field, term);
+    int lo = 0;
+    int hi = this.numTerms;
+
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      int c = this.compareKey (mid, key);
+
+      if (c < 0) {
+        lo = mid + 1;
+      } else if (c > 0) {
+        hi = mid;
+      } else {
+        int first = this.index.getInt (this.blockStartOffset (mid));
+        int last = this.index.getInt (this.blockStartOffset (mid + 1));
+        return new Blocks (first, last - first);
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   *  Get the file offset of the i'th blockStart entry.
+   *  @param i The index of a term.
+   *  @return The offset.
+   */
+  private int blockStartOffset (int i) {
+    return HEADER_BYTES + 4 * (this.numTerms + 1) + 4 * i;
+  }
+
+  /**
+   *  Compare the i'th key to a key, as unsigned bytes.
+   *  @param i The index of a key.
+   *  @param key A key.
+   *  @return The comparison.
+   */
+  private int compareKey (int i, byte[] key) {
+
+    int start = this.index.getInt (HEADER_BYTES + 4 * i);
+    int length = this.index.getInt (HEADER_BYTES + 4 * (i + 1)) - start;
+    int n = Math.min (length, key.length);
+
+    for (int j = 0; j < n; j++) {
+      int b = this.index.get (this.keysStart + start + j) & 0xff;
+      int k = key[j] & 0xff;
+
+      if (b != k)
+        return b - k;
+    }
+
+    return length - key.length;
+  }
+
+  /**
+   *  The key of a term:  the field and term, separated by a 0 byte,
+   *  so that keys sort by field and then by term.
+   *  @param field The field.
+   *  @param term The term.
+   *  @return The key.
+   */
+  private static byte[] key (String field, String term) {
+    return (field + "\0" + term).getBytes (StandardCharsets.UTF_8);
+  }
+
+  /**
+   *  Map the block-max index of an index, if it has been built.
+   *  @param reader The index.
+   *  @param file The sidecar file.
+   *  @return The block-max index, or null if the file doesn't exist
+   *  or was built from a different version of the index.
+   *  @throws IOException Error reading the file.
+   */
+  public static BlockMaxIndex open (IndexReader reader, Path file)
+    throws IOException {
+
+    if (! Files.isReadable (file))
+      return null;
+
+    try (FileChannel channel = FileChannel.open (file, StandardOpenOption.READ)) {
+      ByteBuffer index = channel.map (FileChannel.MapMode.READ_ONLY, 0, channel.size ());
+
+      if ((index.capacity () < HEADER_BYTES) ||
+          (index.getInt (0) != MAGIC) ||
+          (index.getLong (8) != ExternalIdTable.indexVersion (reader))) {
+        System.out.println ("Ignoring " + file + ", which doesn't match the index." +
+                            "  Run BlockMaxIndex to rebuild it.");
+        return null;
+      }
+
+      return new BlockMaxIndex (index);
+    }
+  }
+
+  /**
+   *  Build the block-max index of a Lucene index.
+   *  @param reader The index.
+   *  @param fields The fields to index.
+   *  @param file Where to save the block-max index.
+   *  @throws IOException Error accessing the index.
+   */
+  public static void build (IndexReader reader, List<String> fields, Path file)
+    throws IOException {
+
+    FieldLengths fieldLengths = new FieldLengths (reader);
+    ByteArrayOutputStream keys = new ByteArrayOutputStream ();
+    List<Integer> keyStarts = new ArrayList<Integer> ();
+    List<Integer> blockStarts = new ArrayList<Integer> ();
+    int[] blocks = new int[3 * 1024];
+    int numBlocks = 0;
+
+    //  Fields are processed in key order; terms are already in order.
+
+    List<String> sortedFields = new ArrayList<String> (fields);
+    Collections.sort (sortedFields);
+
+    for (String field : sortedFields) {
+      Terms terms = MultiTerms.getTerms (reader, field);
+
+      if (terms == null)
+        continue;
+
+      int[] lengths = fieldLengths.getLengths (field);
+      TermsEnum termsEnum = terms.iterator ();
+      PostingsEnum postings = null;
+      BytesRef term;
+
+      while ((term = termsEnum.next ()) != null) {
+        if (termsEnum.docFreq () <= BLOCK_SIZE)
+          continue;
+
+        keyStarts.add (keys.size ());
+        blockStarts.add (numBlocks);
+        byte[] key = key (field, term.utf8ToString ());
+        keys.write (key, 0, key.length);
+
+        postings = termsEnum.postings (postings, PostingsEnum.FREQS);
+        int inBlock = 0;
+
+        while (postings.nextDoc () != DocIdSetIterator.NO_MORE_DOCS) {
+          int docid = postings.docID ();
+
+          if (inBlock == 0) {
+            if (3 * (numBlocks + 1) > blocks.length)
+              blocks = Arrays.copyOf (blocks, 2 * blocks.length);
+
+            blocks[3 * numBlocks + 1] = 0;
+            blocks[3 * numBlocks + 2] = Integer.MAX_VALUE;
+            numBlocks ++;
+          }
+
+          int b = 3 * (numBlocks - 1);
+          blocks[b] = docid;
+          blocks[b + 1] = Math.max (blocks[b + 1], postings.freq ());
+          blocks[b + 2] = Math.min (blocks[b + 2], lengths[docid]);
+          inBlock = (inBlock + 1) % BLOCK_SIZE;
+        }
+      }
+    }
+
+    keyStarts.add (keys.size ());
+    blockStarts.add (numBlocks);
+
+    //  Write the file.
+
+    int numTerms = keyStarts.size () - 1;
+    int keyBytes = keys.size ();
+    long size = HEADER_BYTES + 8L * (numTerms + 1) + ((keyBytes + 3) & ~3) + 12L * numBlocks;
+
+    if (size > Integer.MAX_VALUE)
+      throw new IOException ("The block-max index is too large to map.");
+
+    ByteBuffer index = ExternalIdTable.allocate (file, (int) size);
+    int pos = HEADER_BYTES;
+
+    for (int start : keyStarts) {
+      index.putInt (pos, start);
+      pos += 4;
+    }
+
+    for (int start : blockStarts) {
+      index.putInt (pos, start);
+      pos += 4;
+    }
+
+    byte[] keyArray = keys.toByteArray ();
+
+    for (int i = 0; i < keyArray.length; i++)
+      index.put (pos + i, keyArray[i]);
+
+    pos += (keyBytes + 3) & ~3;
+
+    for (int i = 0; i < 3 * numBlocks; i++) {
+      index.putInt (pos, blocks[i]);
+      pos += 4;
+    }
+
+    //  The header is written last, so that a partially written file
+    //  is never mistaken for a valid index.
+
+    index.putLong (8, ExternalIdTable.indexVersion (reader));
+    index.putInt (4, numTerms);
+    index.putInt (0, MAGIC);
+
+    if (index instanceof MappedByteBuffer)
+      ((MappedByteBuffer) index).force ();
+
+    System.out.println ("Block-max index:  " + numTerms + " terms, " +
+                        numBlocks + " blocks, " + size + " bytes.");
+  }
+
+  /**
+   *  Build the block-max index of a Lucene index.
+   *  @param args The index path, optionally followed by the fields to
+   *  index.  The default is every field that has norms.
+   *  @throws IOException Error accessing the index.
+   */
+  public static void main (String[] args) throws IOException {
+
+    if (args.length < 1) {
+      System.out.println ("Usage:  java BlockMaxIndex indexPath [field ...]");
+      System.exit (1);
+    }
+
+    IndexReader reader = DirectoryReader.open (FSDirectory.open (Paths.get (args[0])));
+    List<String> fields = new ArrayList<String> ();
+
+    if (args.length > 1) {
+      fields.addAll (Arrays.asList (args).subList (1, args.length));
+    } else {
+      for (FieldInfo info : FieldInfos.getMergedFieldInfos (reader)) {
+        if (info.hasNorms ())
+          fields.add (info.name);
+      }
+    }
+
+    build (reader, fields, Idx.sidecarPath (args[0], "blockMax"));
+    reader.close ();
+  }
+}
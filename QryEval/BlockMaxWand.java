@@ -0,0 +1,167 @@
+/**
+ *  Copyright (c) 2022, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+/**
+ *  Block-Max WAND evaluation (Ding and Suel, 2011) for disjunctive
+ *  operators whose arguments are SCORE operators:  BM25 #SUM, which
+ *  adds the argument scores, and Ranked Boolean #OR, which takes
+ *  their maximum.
+ *  <p>
+ *  The arguments are kept sorted by their current docids.  The pivot
+ *  is the first argument at which the list-level upper bounds of the
+ *  arguments so far reach the top-k threshold; documents before the
+ *  pivot's docid can't enter the top k.  The block-level bounds of
+ *  the blocks that contain the pivot docid are checked next.  If they
+ *  are too small, every document up to the end of the shortest of
+ *  those blocks is skipped without being read.
+ *  </p><p>
+ *  Document scores are combined in argument order, like the
+ *  operators' getScore methods do, so the top k is identical to
+ *  exhaustive evaluation.  Without a block-max index (see
+ *  BlockMaxIndex) each inverted list is one block, which is WAND.
+ *  </p>
+ */
+public class BlockMaxWand {
+
+  /**
+   *  Evaluate a disjunction and collect the best documents.
+   *  @param args The arguments of the operator; each must be a
+   *  QrySopScore.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param sum True if the operator adds argument scores, false if
+   *  it takes their maximum.
+   *  @param topK Collects the best documents.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public static void evaluate (List<Qry> args, RetrievalModel r, boolean sum,
+                               TopKCollector topK) throws IOException {
+
+    int n = args.size ();
+    QrySopScore[] scorers = new QrySopScore[n];
+    double[] bounds = new double[n];
+
+    for (int i = 0; i < n; i++) {
+      scorers[i] = (QrySopScore) args.get (i);
+      bounds[i] = scorers[i].getUpperBound (r);
+    }
+
+    int[] live = new int[n];		// arguments sorted by docid
+    int[] docids = new int[n];		// current docid of each argument
+    double[] argScores = new double[n];
+    boolean[] argMatches = new boolean[n];
+
+    while (true) {
+
+      //  Sort the arguments that still have documents by docid.
+
+      int m = 0;
+
+      for (int i = 0; i < n; i++) {
+        if (scorers[i].docIteratorHasMatch (r)) {
+          docids[i] = scorers[i].docIteratorGetMatch ();
+
+          int j = m++;
+
+          while ((j > 0) && (docids[live[j - 1]] > docids[i])) {
+            live[j] = live[j - 1];
+            j--;
+          }
+
+          live[j] = i;
+        }
+      }
+
+      //  Find the pivot.
+
+      double threshold = topK.threshold ();
+      double bound = 0.0;
+      int p = -1;
+
+      for (int j = 0; j < m; j++) {
+        bound = combine (sum, bound, bounds[live[j]]);
+
+        if (! (bound * QrySop.BOUND_SLACK < threshold)) {
+          p = j;
+          break;
+        }
+      }
+
+      if (p < 0)
+        break;
+
+      int pivotDocid = docids[live[p]];
+
+      while ((p + 1 < m) && (docids[live[p + 1]] == pivotDocid))
+        p++;
+
+      //  Check the block-level bounds, and find where the blocks end.
+
+      double blockBound = 0.0;
+      int nextDocid = (p + 1 < m) ? docids[live[p + 1]] : Integer.MAX_VALUE;
+
+      for (int j = 0; j <= p; j++) {
+        QrySopScore q_j = scorers[live[j]];
+        int lastDocid = q_j.advanceShallow (pivotDocid);
+
+        blockBound = combine (sum, blockBound, q_j.getBlockUpperBound (r));
+
+        if (lastDocid != Integer.MAX_VALUE)
+          nextDocid = Math.min (nextDocid, lastDocid + 1);
+      }
+
+      if (blockBound * QrySop.BOUND_SLACK < threshold) {
+
+        //  No document before nextDocid can enter the top k.
+
+        for (int j = 0; j <= p; j++)
+          scorers[live[j]].docIteratorAdvanceTo (nextDocid);
+
+      } else if (docids[live[0]] == pivotDocid) {
+
+        //  Every argument up to the pivot matches the pivot docid.
+
+        Arrays.fill (argMatches, false);
+
+        for (int j = 0; j <= p; j++) {
+          argScores[live[j]] = scorers[live[j]].getScore (r);
+          argMatches[live[j]] = true;
+        }
+
+        double score = 0.0;
+
+        for (int i = 0; i < n; i++) {
+          if (argMatches[i])
+            score = sum ? score + argScores[i] : Math.max (score, argScores[i]);
+        }
+
+        topK.add (pivotDocid, score);
+
+        for (int j = 0; j <= p; j++)
+          scorers[live[j]].docIteratorAdvancePast (pivotDocid);
+
+      } else {
+
+        //  Documents before the pivot docid can't enter the top k.
+
+        for (int j = 0; j < p; j++) {
+          if (docids[live[j]] < pivotDocid)
+            scorers[live[j]].docIteratorAdvanceTo (pivotDocid);
+        }
+      }
+    }
+  }
+
+  /**
+   *  Combine two scores or bounds.
+   *  @param sum True to add them, false to take their maximum.
+   *  @param a A score.
+   *  @param b Another score.
+   *  @return The combined score.
+   */
+  private static double combine (boolean sum, double a, double b) {
+    return sum ? (a + b) : Math.max (a, b);
+  }
+}
@@ -0,0 +1,228 @@
+/**
+ *  Copyright (c) 2022, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+
+/**
+ *  Bitmap evaluation of Boolean queries:  trees of #AND and #OR
+ *  operators whose leaves are SCORE operators.
+ *  <p>
+ *  Each leaf's inverted list is converted to a DocBitmap, and the
+ *  tree is evaluated with bitmap intersections (#AND) and unions
+ *  (#OR), which don't read the tfs or compare docids one document at
+ *  a time.  The unranked Boolean model gives every matching document
+ *  the score 1.  The ranked Boolean model reads the tfs of the
+ *  documents that match the whole query only, and combines them as
+ *  the operators' getScore methods do:  a leaf's score is its tf,
+ *  #AND takes the minimum, and #OR the maximum of the arguments that
+ *  match.
+ *  </p><p>
+ *  The same evaluation provides the Boolean masks of #FILTER
+ *  operators (see QrySopFilter), for any retrieval model.
+ *  </p>
+ */
+public class BooleanBitmaps {
+
+  /**
+   *  A node of a ranked Boolean query tree.  Leaves read tfs from
+   *  their inverted list, from a cursor that only moves forward,
+   *  because documents are scored in docid order.
+   */
+  private static final class Node {
+    private Node[] args;
+    private boolean and;
+    private InvList list;
+    private int cursor = 0;
+  }
+
+  /**
+   *  Whether a query can be evaluated with bitmaps.  The model must
+   *  be a Boolean model that requests bitmap evaluation, and the
+   *  query must be a Boolean tree (see isBooleanTree).  Otherwise the
+   *  query should be evaluated document-at-a-time.
+   *  @param q The query.
+   *  @param r The retrieval model.
+   *  @return True if the query can be evaluated with bitmaps.
+   */
+  public static boolean canEvaluate (Qry q, RetrievalModel r) {
+
+    if (r instanceof RetrievalModelUnrankedBoolean) {
+      if (! ((RetrievalModelUnrankedBoolean) r).getEvaluation ().equals ("bitmap"))
+        return false;
+    } else if (r instanceof RetrievalModelRankedBoolean) {
+      if (! ((RetrievalModelRankedBoolean) r).getEvaluation ().equals ("bitmap"))
+        return false;
+    } else {
+      return false;
+    }
+
+    return isBooleanTree (q);
+  }
+
+  /**
+   *  Whether a query is a tree of #AND and #OR operators whose
+   *  leaves are SCORE operators.
+   *  @param q The query.
+   *  @return True if the query is a Boolean tree.
+   */
+  public static boolean isBooleanTree (Qry q) {
+
+    if (q instanceof QrySopScore)
+      return true;
+
+    if (! (q instanceof QrySopAnd) && ! (q instanceof QrySopOr))
+      return false;
+
+    for (Qry q_i : q.args) {
+      if (! isBooleanTree (q_i))
+        return false;
+    }
+
+    return true;
+  }
+
+  /**
+   *  Evaluate an initialized query with bitmaps and collect the best
+   *  documents.  The query must satisfy canEvaluate.
+   *  @param q The query.
+   *  @param r The retrieval model.
+   *  @param topK Collects the best documents.
+   *  @return False if ranked Boolean scores can't be computed because
+   *  a leaf's inverted list isn't materialized (e.g., streaming
+   *  terms), in which case nothing was evaluated and the caller must
+   *  evaluate the query document-at-a-time.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static boolean evaluate (Qry q, RetrievalModel r, TopKCollector topK)
+    throws IOException {
+
+    if (r instanceof RetrievalModelUnrankedBoolean) {
+      for (int docid : getBitmap (q).toArray ())
+        topK.add (docid, 1.0);
+
+      return true;
+    }
+
+    Node root = createNode (q);
+
+    if (root == null)
+      return false;
+
+    for (int docid : getBitmap (q).toArray ())
+      topK.add (docid, score (root, docid));
+
+    return true;
+  }
+
+  /**
+   *  Get the documents that a Boolean tree matches, evaluating #AND
+   *  as an intersection and #OR as a union.  The iterators of leaves
+   *  whose inverted lists aren't materialized are consumed.
+   *  @param q An initialized Boolean tree (see isBooleanTree).
+   *  @return The matching documents.
+   *  @throws IOException Error accessing the Lucene index.
+   *  @throws IllegalArgumentException q isn't a Boolean tree.
+   */
+  public static DocBitmap getBitmap (Qry q) throws IOException {
+
+    if (q instanceof QrySopScore) {
+      QryIop q_0 = (QryIop) q.args.get (0);
+      InvList list = q_0.getInvertedList ();
+      DocBitmap bitmap = new DocBitmap ();
+
+      if (list != null) {
+        for (int n = 0; n < list.df; n++)
+          bitmap.add (list.getDocid (n));
+      } else {
+        while (q_0.docIteratorHasMatch (null)) {
+          int docid = q_0.docIteratorGetMatch ();
+          bitmap.add (docid);
+          q_0.docIteratorAdvancePast (docid);
+        }
+      }
+
+      return bitmap;
+    }
+
+    if (! (q instanceof QrySopAnd) && ! (q instanceof QrySopOr))
+      throw new IllegalArgumentException
+        (q.getDisplayName () + " can't be evaluated as a Boolean query.");
+
+    DocBitmap bitmap = getBitmap (q.args.get (0));
+
+    for (int i = 1; i < q.args.size (); i++) {
+      DocBitmap bitmap_i = getBitmap (q.args.get (i));
+
+      if (q instanceof QrySopAnd)
+        bitmap = DocBitmap.and (bitmap, bitmap_i);
+      else
+        bitmap = DocBitmap.or (bitmap, bitmap_i);
+    }
+
+    return bitmap;
+  }
+
+  /**
+   *  Create the ranked Boolean scoring tree of a Boolean tree.
+   *  @param q A Boolean tree.
+   *  @return The scoring tree, or null if a leaf's inverted list
+   *  isn't materialized.
+   */
+  private static Node createNode (Qry q) {
+
+    Node node = new Node ();
+
+    if (q instanceof QrySopScore) {
+      node.list = ((QryIop) q.args.get (0)).getInvertedList ();
+      return (node.list == null) ? null : node;
+    }
+
+    node.and = (q instanceof QrySopAnd);
+    node.args = new Node[q.args.size ()];
+
+    for (int i = 0; i < node.args.length; i++) {
+      node.args[i] = createNode (q.args.get (i));
+
+      if (node.args[i] == null)
+        return null;
+    }
+
+    return node;
+  }
+
+  /**
+   *  Get the ranked Boolean score of a document.  Documents must be
+   *  scored in ascending docid order.
+   *  @param node A scoring tree.
+   *  @param docid An internal document id.
+   *  @return The score, or -1 if the tree doesn't match the document.
+   */
+  private static double score (Node node, int docid) {
+
+    if (node.list != null) {
+      node.cursor = node.list.findDocid (node.cursor, docid);
+
+      if ((node.cursor < node.list.df) && (node.list.getDocid (node.cursor) == docid))
+        return node.list.getTf (node.cursor);
+      else
+        return -1;
+    }
+
+    double score = -1;
+
+    for (int i = 0; i < node.args.length; i++) {
+      double score_i = score (node.args[i], docid);
+
+      if (node.and) {
+        if (score_i < 0)
+          return -1;
+
+        score = (i == 0) ? score_i : Math.min (score, score_i);
+      } else {
+        score = Math.max (score, score_i);
+      }
+    }
+
+    return score;
+  }
+}
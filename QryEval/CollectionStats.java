@@ -0,0 +1,183 @@
+/**
+ *  Copyright (c) 2022, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.lucene.index.*;
+
+/**
+ *  A snapshot of the collection statistics of an index:  the number
+ *  of documents, per-field statistics, and the df and ctf of terms.
+ *  <p>
+ *  Scoring functions use these values for every document, but they
+ *  don't change while an index is open.  The field statistics are
+ *  read from Lucene the first time that they are requested and
+ *  remembered after that; there are only a few fields.  Term
+ *  statistics are requested again and again for the same terms
+ *  (e.g., for every term of every document in TermVector and
+ *  learning-to-rank features), so the most recently used terms'
+ *  statistics are remembered too.  The set of terms is unbounded, so
+ *  that memo is bounded (see MAX_TERMS), and least recently used
+ *  terms are forgotten.  The index is read-only, so every thread
+ *  sees the same values.
+ *  </p>
+ */
+public class CollectionStats {
+
+  //  --------------- Constants and variables ---------------------
+
+  private final IndexReader reader;
+  private final long numDocs;
+
+  /**
+   *  The largest number of terms whose df and ctf are remembered.
+   */
+  private static final int MAX_TERMS = 100000;
+
+  private final ConcurrentHashMap<String,FieldStats> fieldStats =
+    new ConcurrentHashMap<String,FieldStats> ();
+  private final Map<Term,Integer> docFreqs = createMemo ();
+  private final Map<Term,Long> totalTermFreqs = createMemo ();
+
+  /**
+   *  The statistics of a field.
+   */
+  public static class FieldStats {
+
+    /**
+     *  The number of documents that contain the field.
+     */
+    public final int docCount;
+
+    /**
+     *  The total number of term occurrences in the field.
+     */
+    public final long sumTotalTermFreq;
+
+    /**
+     *  The average field length.  It is computed in float precision,
+     *  like the scoring code always did, so that scores don't change.
+     */
+    public final double avgLength;
+
+    private FieldStats (int docCount, long sumTotalTermFreq) {
+      this.docCount = docCount;
+      this.sumTotalTermFreq = sumTotalTermFreq;
+      this.avgLength = sumTotalTermFreq / (float) docCount;
+    }
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  @param reader The index.
+   */
+  public CollectionStats (IndexReader reader) {
+    this.reader = reader;
+    this.numDocs = reader.numDocs ();
+  }
+
+  /**
+   *  Get the number of documents in the index.
+   *  @return The number of (undeleted) documents.
+   */
+  public long getNumDocs () {
+    return this.numDocs;
+  }
+
+  /**
+   *  Get the statistics of a field.
+   *  @param fieldName The field name.
+   *  @return The field's statistics.
+   */
+  public FieldStats getFieldStats (String fieldName) {
+
+    FieldStats stats = this.fieldStats.get (fieldName);
+
+    if (stats == null) {
+      try {
+        stats = new FieldStats (this.reader.getDocCount (fieldName),
+                                this.reader.getSumTotalTermFreq (fieldName));
+      } catch (IOException ex) {
+        throw new UncheckedIOException (ex);
+      }
+
+      this.fieldStats.putIfAbsent (fieldName, stats);
+    }
+
+    return stats;
+  }
+
+  /**
+   *  Get the document frequency (df) of a term.
+   *  @param term The term.
+   *  @return The document frequency.
+   */
+  public int getDocFreq (Term term) {
+
+    Integer df;
+
+    synchronized (this.docFreqs) {
+      df = this.docFreqs.get (term);
+    }
+
+    if (df == null) {
+      try {
+        df = this.reader.docFreq (term);
+      } catch (IOException ex) {
+        throw new UncheckedIOException (ex);
+      }
+
+      synchronized (this.docFreqs) {
+        this.docFreqs.put (term, df);
+      }
+    }
+
+    return df;
+  }
+
+  /**
+   *  Get the collection term frequency (ctf) of a term.
+   *  @param term The term.
+   *  @return The collection term frequency.
+   */
+  public long getTotalTermFreq (Term term) {
+
+    Long ctf;
+
+    synchronized (this.totalTermFreqs) {
+      ctf = this.totalTermFreqs.get (term);
+    }
+
+    if (ctf == null) {
+      try {
+        ctf = this.reader.totalTermFreq (term);
+      } catch (IOException ex) {
+        throw new UncheckedIOException (ex);
+      }
+
+      synchronized (this.totalTermFreqs) {
+        this.totalTermFreqs.put (term, ctf);
+      }
+    }
+
+    return ctf;
+  }
+
+  /**
+   *  Create a memo of term statistics that keeps the MAX_TERMS most
+   *  recently used terms.  Callers synchronize on the memo, because
+   *  a lookup reorders it.
+   *  @return The memo.
+   */
+  private static <V> Map<Term,V> createMemo () {
+
+    return new LinkedHashMap<Term,V> (16, 0.75f, true) {
+      protected boolean removeEldestEntry (Map.Entry<Term,V> eldest) {
+        return size () > MAX_TERMS;
+      }
+    };
+  }
+}
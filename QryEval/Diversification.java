@@ -50,13 +50,23 @@ public class Diversification {
             //System.out.println("Initializing Ranking");
             input = new BufferedReader(new FileReader(fileName));
             String line = null;
+            // read the whole ranking first so that docids are looked up in one batch
+            List<String[]> lines = new ArrayList<>();
+            while ((line = input.readLine()) != null){
+                lines.add(line.split(" "));
+            }
+            String[] externalIds = new String[lines.size()];
+            for (int i = 0; i < externalIds.length; i++){
+                externalIds[i] = lines.get(i)[2].trim();
+            }
+            int[] docids = Idx.getInternalDocids(externalIds);
             ScoreList rankS = new ScoreList();
             String currQid = "X";
-            while ((line = input.readLine()) != null){
-                String[] info = line.split(" ");
+            for (int i = 0; i < docids.length; i++){
+                String[] info = lines.get(i);
                 String qid = info[0].trim();
                 String intent_id = "";
-                int docid = Idx.getInternalDocid(info[2].trim());
+                int docid = docids[i];
                 double score = Double.parseDouble(info[4].trim());
                 if (currQid.equals("X")){
                     // to start, set currQid to initial intake qid
@@ -0,0 +1,478 @@
+/**
+ *  Copyright (c) 2022, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.util.*;
+
+/**
+ *  A compressed set of internal document ids, organized like a
+ *  Roaring bitmap (Chambi et al., 2016).  The docid space is divided
+ *  into chunks of 65536 docids that share their high 16 bits.  A
+ *  chunk that contains few documents stores the low 16 bits of its
+ *  docids in a sorted array; a chunk that contains more than 4096
+ *  documents stores a 65536-bit bitmap, which is smaller.
+ *  Intersections and unions work one chunk at a time, and combine
+ *  bitmaps a 64-bit word at a time, so they are much faster than
+ *  merging inverted lists document by document.
+ *  <p>
+ *  A bitmap is built by adding docids in ascending order, and it
+ *  isn't changed after that.  The results of and and or may share
+ *  chunks with their arguments, so docids must not be added to them.
+ *  </p>
+ */
+public class DocBitmap {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The largest number of docids in an array chunk.
+   */
+  private static final int MAX_ARRAY_SIZE = 4096;
+
+  /**
+   *  The number of 64-bit words in a bitmap chunk.
+   */
+  private static final int BITMAP_WORDS = 1 << 10;
+
+  private int numChunks = 0;
+
+  /**
+   *  The high 16 bits of the docids in each chunk, ascending.
+   */
+  private int[] keys = new int[4];
+
+  /**
+   *  The number of docids in each chunk.
+   */
+  private int[] sizes = new int[4];
+
+  /**
+   *  The low 16 bits of each array chunk's docids, ascending, or
+   *  null for bitmap chunks.
+   */
+  private char[][] arrays = new char[4][];
+
+  /**
+   *  The bits of each bitmap chunk, or null for array chunks.
+   */
+  private long[][] bitmaps = new long[4][];
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Add a docid.  Docids must be added in ascending order.
+   *  @param docid An internal document id.
+   *  @throws IllegalArgumentException docid isn't larger than the
+   *  last docid that was added.
+   */
+  public void add (int docid) {
+
+    int key = docid >>> 16;
+    char low = (char) (docid & 0xFFFF);
+    int c = this.numChunks - 1;
+
+    if ((c < 0) || (this.keys[c] != key)) {
+      if ((c >= 0) && (this.keys[c] > key))
+        throw new IllegalArgumentException ("Docids must be added in ascending order.");
+
+      this.appendChunk (key, 0, new char[16], null);
+      c ++;
+    }
+
+    int size = this.sizes[c];
+
+    if (this.arrays[c] != null) {
+      char[] array = this.arrays[c];
+
+      if ((size > 0) && (array[size - 1] >= low))
+        throw new IllegalArgumentException ("Docids must be added in ascending order.");
+
+      if (size < MAX_ARRAY_SIZE) {
+        if (size == array.length)
+          array = this.arrays[c] = Arrays.copyOf (array, 2 * size);
+
+        array[size] = low;
+        this.sizes[c] ++;
+        return;
+      }
+
+      this.bitmaps[c] = toBitmap (array, size);
+      this.arrays[c] = null;
+    }
+
+    this.bitmaps[c][low >>> 6] |= 1L << low;
+    this.sizes[c] ++;
+  }
+
+  /**
+   *  Append a chunk.  Its key must be larger than every other key.
+   *  @param key The high 16 bits of the chunk's docids.
+   *  @param size The number of docids in the chunk.
+   *  @param array The chunk's array, or null.
+   *  @param bitmap The chunk's bitmap, or null.
+   */
+  private void appendChunk (int key, int size, char[] array, long[] bitmap) {
+
+    if (this.numChunks == this.keys.length) {
+      int n = 2 * this.numChunks;
+      this.keys = Arrays.copyOf (this.keys, n);
+      this.sizes = Arrays.copyOf (this.sizes, n);
+      this.arrays = Arrays.copyOf (this.arrays, n);
+      this.bitmaps = Arrays.copyOf (this.bitmaps, n);
+    }
+
+    this.keys[this.numChunks] = key;
+    this.sizes[this.numChunks] = size;
+    this.arrays[this.numChunks] = array;
+    this.bitmaps[this.numChunks] = bitmap;
+    this.numChunks ++;
+  }
+
+  /**
+   *  Append a chunk, choosing the smaller representation for its
+   *  size.  Empty chunks aren't stored.
+   *  @param key The high 16 bits of the chunk's docids.
+   *  @param size The number of docids in the chunk.
+   *  @param array The chunk's array, or null.
+   *  @param bitmap The chunk's bitmap, or null.
+   */
+  private void appendCompactChunk (int key, int size, char[] array, long[] bitmap) {
+
+    if (size == 0)
+      return;
+
+    if ((bitmap != null) && (size <= MAX_ARRAY_SIZE))
+      this.appendChunk (key, size, toArray (bitmap, size), null);
+    else if ((array != null) && (size > MAX_ARRAY_SIZE))
+      this.appendChunk (key, size, null, toBitmap (array, size));
+    else
+      this.appendChunk (key, size, array, bitmap);
+  }
+
+  /**
+   *  Get the number of docids in the bitmap.
+   *  @return The number of docids.
+   */
+  public int cardinality () {
+
+    int n = 0;
+
+    for (int c = 0; c < this.numChunks; c++)
+      n += this.sizes[c];
+
+    return n;
+  }
+
+  /**
+   *  Whether the bitmap contains a docid.
+   *  @param docid An internal document id.
+   *  @return True if the docid is in the bitmap.
+   */
+  public boolean contains (int docid) {
+
+    int c = Arrays.binarySearch (this.keys, 0, this.numChunks, docid >>> 16);
+
+    if (c < 0)
+      return false;
+
+    char low = (char) (docid & 0xFFFF);
+
+    if (this.arrays[c] != null)
+      return Arrays.binarySearch (this.arrays[c], 0, this.sizes[c], low) >= 0;
+    else
+      return (this.bitmaps[c][low >>> 6] & (1L << low)) != 0;
+  }
+
+  /**
+   *  Find the smallest docid in the bitmap that is at least the
+   *  specified docid.
+   *  @param docid An internal document id.
+   *  @return The docid, or Qry.INVALID_DOCID if there is none.
+   */
+  public int nextDocid (int docid) {
+
+    int c = Arrays.binarySearch (this.keys, 0, this.numChunks, docid >>> 16);
+    int low = docid & 0xFFFF;
+
+    if (c < 0) {		// Start at the beginning of the next chunk
+      c = -c - 1;
+      low = 0;
+    }
+
+    for (; c < this.numChunks; c++, low = 0) {
+      int high = this.keys[c] << 16;
+
+      if (this.arrays[c] != null) {
+        int i = Arrays.binarySearch (this.arrays[c], 0, this.sizes[c], (char) low);
+
+        if (i < 0)
+          i = -i - 1;
+
+        if (i < this.sizes[c])
+          return high | this.arrays[c][i];
+      } else {
+        long[] bitmap = this.bitmaps[c];
+        int w = low >>> 6;
+        long word = bitmap[w] & (-1L << low);
+
+        while (true) {
+          if (word != 0)
+            return high | (w << 6) | Long.numberOfTrailingZeros (word);
+
+          if (++ w == BITMAP_WORDS)
+            break;
+
+          word = bitmap[w];
+        }
+      }
+    }
+
+    return Qry.INVALID_DOCID;
+  }
+
+  /**
+   *  Get the docids in the bitmap.
+   *  @return The docids, ascending.
+   */
+  public int[] toArray () {
+
+    int[] docids = new int[this.cardinality ()];
+    int n = 0;
+
+    for (int c = 0; c < this.numChunks; c++) {
+      int high = this.keys[c] << 16;
+
+      if (this.arrays[c] != null) {
+        char[] array = this.arrays[c];
+
+        for (int i = 0; i < this.sizes[c]; i++)
+          docids[n++] = high | array[i];
+      } else {
+        long[] bitmap = this.bitmaps[c];
+
+        for (int w = 0; w < BITMAP_WORDS; w++) {
+          long word = bitmap[w];
+
+          while (word != 0) {
+            docids[n++] = high | (w << 6) | Long.numberOfTrailingZeros (word);
+            word &= word - 1;
+          }
+        }
+      }
+    }
+
+    return docids;
+  }
+
+  /**
+   *  The intersection of two bitmaps.
+   *  @param a A bitmap.
+   *  @param b A bitmap.
+   *  @return The docids that are in both bitmaps.
+   */
+  public static DocBitmap and (DocBitmap a, DocBitmap b) {
+
+    DocBitmap result = new DocBitmap ();
+    int i = 0;
+    int j = 0;
+
+    while ((i < a.numChunks) && (j < b.numChunks)) {
+      if (a.keys[i] < b.keys[j]) {
+        i ++;
+      } else if (a.keys[i] > b.keys[j]) {
+        j ++;
+      } else {
+        int key = a.keys[i];
+
+        if ((a.arrays[i] != null) && (b.arrays[j] != null)) {
+          char[] array = new char[Math.min (a.sizes[i], b.sizes[j])];
+          int size = intersect (a.arrays[i], a.sizes[i], b.arrays[j], b.sizes[j], array);
+          result.appendCompactChunk (key, size, array, null);
+        } else if ((a.arrays[i] != null) || (b.arrays[j] != null)) {
+          boolean aIsArray = (a.arrays[i] != null);
+          char[] array = aIsArray ? a.arrays[i] : b.arrays[j];
+          int arraySize = aIsArray ? a.sizes[i] : b.sizes[j];
+          char[] dest = new char[arraySize];
+          int size = filter (array, arraySize, aIsArray ? b.bitmaps[j] : a.bitmaps[i], dest);
+          result.appendCompactChunk (key, size, dest, null);
+        } else {
+          long[] bitmap = new long[BITMAP_WORDS];
+          int size = 0;
+
+          for (int w = 0; w < BITMAP_WORDS; w++) {
+            bitmap[w] = a.bitmaps[i][w] & b.bitmaps[j][w];
+            size += Long.bitCount (bitmap[w]);
+          }
+
+          result.appendCompactChunk (key, size, null, bitmap);
+        }
+
+        i ++;
+        j ++;
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   *  The union of two bitmaps.
+   *  @param a A bitmap.
+   *  @param b A bitmap.
+   *  @return The docids that are in either bitmap.
+   */
+  public static DocBitmap or (DocBitmap a, DocBitmap b) {
+
+    DocBitmap result = new DocBitmap ();
+    int i = 0;
+    int j = 0;
+
+    //  Chunks that are only in one bitmap are shared, because bitmaps
+    //  aren't changed after they are built.
+
+    while ((i < a.numChunks) || (j < b.numChunks)) {
+      if ((j == b.numChunks) || ((i < a.numChunks) && (a.keys[i] < b.keys[j]))) {
+        result.appendChunk (a.keys[i], a.sizes[i], a.arrays[i], a.bitmaps[i]);
+        i ++;
+      } else if ((i == a.numChunks) || (a.keys[i] > b.keys[j])) {
+        result.appendChunk (b.keys[j], b.sizes[j], b.arrays[j], b.bitmaps[j]);
+        j ++;
+      } else {
+        int key = a.keys[i];
+
+        if ((a.arrays[i] != null) && (b.arrays[j] != null)) {
+          char[] array = new char[a.sizes[i] + b.sizes[j]];
+          int size = union (a.arrays[i], a.sizes[i], b.arrays[j], b.sizes[j], array);
+          result.appendCompactChunk (key, size, array, null);
+        } else {
+          long[] bitmap = new long[BITMAP_WORDS];
+
+          for (int k = 0; k < 2; k++) {
+            char[] array = (k == 0) ? a.arrays[i] : b.arrays[j];
+            long[] bits = (k == 0) ? a.bitmaps[i] : b.bitmaps[j];
+
+            if (array != null) {
+              int size = (k == 0) ? a.sizes[i] : b.sizes[j];
+
+              for (int n = 0; n < size; n++)
+                bitmap[array[n] >>> 6] |= 1L << array[n];
+            } else {
+              for (int w = 0; w < BITMAP_WORDS; w++)
+                bitmap[w] |= bits[w];
+            }
+          }
+
+          int size = 0;
+
+          for (int w = 0; w < BITMAP_WORDS; w++)
+            size += Long.bitCount (bitmap[w]);
+
+          result.appendCompactChunk (key, size, null, bitmap);
+        }
+
+        i ++;
+        j ++;
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   *  Intersect two sorted arrays.
+   *  @return The number of values written to dest.
+   */
+  private static int intersect (char[] a, int aSize, char[] b, int bSize, char[] dest) {
+
+    int i = 0;
+    int j = 0;
+    int n = 0;
+
+    while ((i < aSize) && (j < bSize)) {
+      if (a[i] < b[j]) {
+        i ++;
+      } else if (a[i] > b[j]) {
+        j ++;
+      } else {
+        dest[n++] = a[i];
+        i ++;
+        j ++;
+      }
+    }
+
+    return n;
+  }
+
+  /**
+   *  Merge two sorted arrays, without duplicates.
+   *  @return The number of values written to dest.
+   */
+  private static int union (char[] a, int aSize, char[] b, int bSize, char[] dest) {
+
+    int i = 0;
+    int j = 0;
+    int n = 0;
+
+    while ((i < aSize) || (j < bSize)) {
+      if ((j == bSize) || ((i < aSize) && (a[i] < b[j]))) {
+        dest[n++] = a[i++];
+      } else if ((i == aSize) || (a[i] > b[j])) {
+        dest[n++] = b[j++];
+      } else {
+        dest[n++] = a[i];
+        i ++;
+        j ++;
+      }
+    }
+
+    return n;
+  }
+
+  /**
+   *  Copy the values of a sorted array that are set in a bitmap.
+   *  @return The number of values written to dest.
+   */
+  private static int filter (char[] array, int size, long[] bitmap, char[] dest) {
+
+    int n = 0;
+
+    for (int i = 0; i < size; i++) {
+      if ((bitmap[array[i] >>> 6] & (1L << array[i])) != 0)
+        dest[n++] = array[i];
+    }
+
+    return n;
+  }
+
+  /**
+   *  Convert a sorted array to a bitmap.
+   */
+  private static long[] toBitmap (char[] array, int size) {
+
+    long[] bitmap = new long[BITMAP_WORDS];
+
+    for (int i = 0; i < size; i++)
+      bitmap[array[i] >>> 6] |= 1L << array[i];
+
+    return bitmap;
+  }
+
+  /**
+   *  Convert a bitmap to a sorted array.
+   */
+  private static char[] toArray (long[] bitmap, int size) {
+
+    char[] array = new char[size];
+    int n = 0;
+
+    for (int w = 0; w < BITMAP_WORDS; w++) {
+      long word = bitmap[w];
+
+      while (word != 0) {
+        array[n++] = (char) ((w << 6) | Long.numberOfTrailingZeros (word));
+        word &= word - 1;
+      }
+    }
+
+    return array;
+  }
+}
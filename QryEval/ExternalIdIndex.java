@@ -0,0 +1,252 @@
+/**
+ *  Copyright (c) 2022, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ *  An index that maps external document ids to internal docids.  It
+ *  is the inverse of ExternalIdTable:  a list of docids sorted by
+ *  their external ids, so a lookup is a binary search that compares
+ *  the key to ids in the table.  Nothing is read from Lucene at
+ *  lookup time.
+ *  <p>
+ *  Like ExternalIdTable, the index is built once per index, saved to
+ *  a file, and memory mapped by later runs.  The file format is:
+ *  </p>
+ *  <pre>
+ *    int   MAGIC
+ *    int   number of docids
+ *    long  index version
+ *    int   docids[]      sorted by external id
+ *  </pre>
+ *  <p>
+ *  Run files are usually long lists of ids, so the batch lookup sorts
+ *  its keys and searches each one from where the last one was found.
+ *  </p>
+ */
+public class ExternalIdIndex {
+
+  //  --------------- Constants and variables ---------------------
+
+  private static final int MAGIC = 0x51455832;		// "QEX2"
+  private static final int HEADER_BYTES = 16;
+
+  private final ByteBuffer index;
+  private final int size;
+  private final ExternalIdTable ids;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Constructor.  Use open to get an index.
+   *  @param index The index contents.
+   *  @param ids The docid to external id table of the same index.
+   */
+  private ExternalIdIndex (ByteBuffer index, ExternalIdTable ids) {
+    this.index = index;
+    this.size = index.getInt (4);
+    this.ids = ids;
+  }
+
+  /**
+   *  Get the internal docid of a document.
+   *  @param externalId An external document id.
+   *  @return The internal docid, or -1 if there is no such document.
+   */
+  public int get (String externalId) {
+
+    byte[] key = externalId.getBytes (StandardCharsets.UTF_8);
+    int i = this.lowerBound (key, 0);
+
+    if ((i < this.size) && (this.ids.compareTo (this.docidAt (i), key) == 0))
+      return this.docidAt (i);
+
+    return -1;
+  }
+
+  /**
+   *  Get the internal docids of many documents.
+   *  @param externalIds External document ids.
+   *  @return The internal docids, in the same order as externalIds.
+   *  The docid is -1 for ids that aren't in the index.
+   */
+  public int[] get (String[] externalIds) {
+
+    int n = externalIds.length;
+    byte[][] keys = new byte[n][];
+    Integer[] order = new Integer[n];
+
+    for (int i = 0; i < n; i++) {
+      keys[i] = externalIds[i].getBytes (StandardCharsets.UTF_8);
+      order[i] = i;
+    }
+
+    Arrays.sort (order, (a, b) -> compareBytes (keys[a], keys[b]));
+
+    //  The keys are in index order, so each search starts where the
+    //  previous one ended.
+
+    int[] docids = new int[n];
+    int from = 0;
+
+    for (int i : order) {
+      from = this.lowerBound (keys[i], from);
+
+      if ((from < this.size) &&
+          (this.ids.compareTo (this.docidAt (from), keys[i]) == 0)) {
+        docids[i] = this.docidAt (from);
+      } else {
+        docids[i] = -1;
+      }
+    }
+
+    return docids;
+  }
+
+  /**
+   *  Find the first position in the index whose id is not less than
+   *  a key.
+   *  @param key A UTF-8 external id.
+   *  @param from The search starts at this position.
+   *  @return The position, or the size of the index if every id is
+   *  less than the key.
+   */
+  private int lowerBound (byte[] key, int from) {
+
+    int lo = from;
+    int hi = this.size;
+
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+
+      if (this.ids.compareTo (this.docidAt (mid), key) < 0)
+        lo = mid + 1;
+      else
+        hi = mid;
+    }
+
+    return lo;
+  }
+
+  /**
+   *  Get the docid at a position of the index.
+   *  @param i The position.
+   *  @return The docid.
+   */
+  private int docidAt (int i) {
+    return this.index.getInt (HEADER_BYTES + 4 * i);
+  }
+
+  /**
+   *  Compare two byte arrays as unsigned bytes.
+   *  @param a An array.
+   *  @param b Another array.
+   *  @return The comparison.
+   */
+  private static int compareBytes (byte[] a, byte[] b) {
+
+    int n = Math.min (a.length, b.length);
+
+    for (int i = 0; i < n; i++) {
+      int x = a[i] & 0xff;
+      int y = b[i] & 0xff;
+
+      if (x != y)
+        return x - y;
+    }
+
+    return a.length - b.length;
+  }
+
+  /**
+   *  Get an index for a Lucene index.  If the index file exists and
+   *  matches the Lucene index, it is memory mapped.  Otherwise the
+   *  index is built and saved to the file.
+   *  @param reader The Lucene index.
+   *  @param idField The name of the external id field.
+   *  @param ids The docid to external id table of the Lucene index.
+   *  @param file Where the index is (or will be) stored.
+   *  @return The index.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static ExternalIdIndex open (IndexReader reader, String idField,
+                                      ExternalIdTable ids, Path file)
+    throws IOException {
+
+    long version = ExternalIdTable.indexVersion (reader);
+
+    if (Files.isReadable (file)) {
+      try (FileChannel channel = FileChannel.open (file, StandardOpenOption.READ)) {
+        ByteBuffer index = channel.map (FileChannel.MapMode.READ_ONLY, 0, channel.size ());
+
+        if ((index.capacity () >= HEADER_BYTES) &&
+            (index.getInt (0) == MAGIC) &&
+            (index.capacity () == HEADER_BYTES + 4L * index.getInt (4)) &&
+            (index.getLong (8) == version)) {
+          return new ExternalIdIndex (index, ids);
+        }
+      }
+    }
+
+    return build (reader, idField, ids, file, version);
+  }
+
+  /**
+   *  Build the index.  The terms of a multi-segment index are merged
+   *  in term order, which is the order of the index.
+   *  @param reader The Lucene index.
+   *  @param idField The name of the external id field.
+   *  @param ids The docid to external id table of the Lucene index.
+   *  @param file Where to save the index.
+   *  @param version The index version to record in the index.
+   *  @return The index.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private static ExternalIdIndex build (IndexReader reader, String idField,
+                                        ExternalIdTable ids, Path file,
+                                        long version)
+    throws IOException {
+
+    int[] docids = new int[reader.maxDoc ()];
+    int size = 0;
+    Terms terms = MultiTerms.getTerms (reader, idField);
+
+    if (terms != null) {
+      TermsEnum termsEnum = terms.iterator ();
+      PostingsEnum postings = null;
+
+      while (termsEnum.next () != null) {
+        postings = termsEnum.postings (postings, PostingsEnum.NONE);
+
+        while (postings.nextDoc () != DocIdSetIterator.NO_MORE_DOCS)
+          docids[size++] = postings.docID ();
+      }
+    }
+
+    ByteBuffer index = ExternalIdTable.allocate (file, HEADER_BYTES + 4 * size);
+
+    for (int i = 0; i < size; i++)
+      index.putInt (HEADER_BYTES + 4 * i, docids[i]);
+
+    //  The header is written last, so that a partially written file
+    //  is never mistaken for a valid index.
+
+    index.putLong (8, version);
+    index.putInt (4, size);
+    index.putInt (0, MAGIC);
+
+    if (index instanceof MappedByteBuffer)
+      ((MappedByteBuffer) index).force ();
+
+    return new ExternalIdIndex (index, ids);
+  }
+}
@@ -0,0 +1,321 @@
+/**
+ *  Copyright (c) 2022, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ *  A dense table that maps internal docids to external document ids.
+ *  Getting an external id from Lucene requires loading and
+ *  decompressing a stored document; this table makes it an array
+ *  lookup.
+ *  <p>
+ *  The table is built once per index from the externalId field's
+ *  postings (not from stored documents), saved to a file, and memory
+ *  mapped.  Later runs map the saved file if it still matches the
+ *  index.  The file format is:
+ *  </p>
+ *  <pre>
+ *    int   MAGIC
+ *    int   maxDoc
+ *    long  index version
+ *    int   offsets[maxDoc + 1]   byte offsets of each id in the data
+ *    byte  data[]                UTF-8 external ids, in docid order
+ *  </pre>
+ *  <p>
+ *  A single mapping is limited to 2 GB, which is enough for about
+ *  50 million ClueWeb-style ids.
+ *  </p>
+ */
+public class ExternalIdTable {
+
+  //  --------------- Constants and variables ---------------------
+
+  private static final int MAGIC = 0x51455831;		// "QEX1"
+  private static final int HEADER_BYTES = 16;
+
+  private final ByteBuffer table;
+  private final int maxDoc;
+  private final int dataStart;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Constructor.  Use open to get a table.
+   *  @param table The table contents.
+   *  @param maxDoc The number of documents in the index.
+   */
+  private ExternalIdTable (ByteBuffer table, int maxDoc) {
+    this.table = table;
+    this.maxDoc = maxDoc;
+    this.dataStart = HEADER_BYTES + 4 * (maxDoc + 1);
+  }
+
+  /**
+   *  Get the external id of a document.
+   *  @param docid An internal document id.
+   *  @return The external id, or null if the document doesn't have one.
+   */
+  public String get (int docid) {
+
+    if ((docid < 0) || (docid >= this.maxDoc))
+      return null;
+
+    int start = this.table.getInt (HEADER_BYTES + 4 * docid);
+    int end = this.table.getInt (HEADER_BYTES + 4 * (docid + 1));
+
+    if (start == end)
+      return null;
+
+    byte[] bytes = new byte[end - start];
+
+    for (int i = 0; i < bytes.length; i++)
+      bytes[i] = this.table.get (this.dataStart + start + i);
+
+    return new String (bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   *  Compare a document's external id to a key.  Ids are compared as
+   *  unsigned UTF-8 bytes, which is the order of Lucene terms.
+   *  @param docid An internal document id.
+   *  @param key A UTF-8 external id.
+   *  @return A negative number, zero, or a positive number if the
+   *  document's id is less than, equal to, or greater than the key.
+   */
+  int compareTo (int docid, byte[] key) {
+
+    int start = this.table.getInt (HEADER_BYTES + 4 * docid);
+    int end = this.table.getInt (HEADER_BYTES + 4 * (docid + 1));
+    int length = end - start;
+    int n = Math.min (length, key.length);
+
+    for (int i = 0; i < n; i++) {
+      int b = this.table.get (this.dataStart + start + i) & 0xff;
+      int k = key[i] & 0xff;
+
+      if (b != k)
+        return b - k;
+    }
+
+    return length - key.length;
+  }
+
+  /**
+   *  Whether a document has an external id in the table.
+   *  @param docid An internal document id.
+   *  @return True if get would return an id.
+   */
+  public boolean contains (int docid) {
+    return ((docid >= 0) && (docid < this.maxDoc) &&
+            (this.table.getInt (HEADER_BYTES + 4 * docid) !=
+             this.table.getInt (HEADER_BYTES + 4 * (docid + 1))));
+  }
+
+  /**
+   *  Compare the external ids of two documents, in the same order as
+   *  compareTo.  For ids that don't use characters outside of the
+   *  Basic Multilingual Plane (e.g., ASCII ids), this is the order of
+   *  String.compareTo.  Nothing is allocated, so this is cheap enough to
+   *  break score ties while results are collected.
+   *  @param docid1 An internal document id.
+   *  @param docid2 Another internal document id.
+   *  @return A negative number, zero, or a positive number if the
+   *  first document's id is less than, equal to, or greater than the
+   *  second document's id.
+   */
+  public int compare (int docid1, int docid2) {
+
+    int start1 = this.table.getInt (HEADER_BYTES + 4 * docid1);
+    int length1 = this.table.getInt (HEADER_BYTES + 4 * (docid1 + 1)) - start1;
+    int start2 = this.table.getInt (HEADER_BYTES + 4 * docid2);
+    int length2 = this.table.getInt (HEADER_BYTES + 4 * (docid2 + 1)) - start2;
+    int n = Math.min (length1, length2);
+
+    for (int i = 0; i < n; i++) {
+      int b1 = this.table.get (this.dataStart + start1 + i) & 0xff;
+      int b2 = this.table.get (this.dataStart + start2 + i) & 0xff;
+
+      if (b1 != b2)
+        return b1 - b2;
+    }
+
+    return length1 - length2;
+  }
+
+  /**
+   *  Get the number of documents that the table covers.
+   *  @return The index's maxDoc when the table was built.
+   */
+  public int maxDoc () {
+    return this.maxDoc;
+  }
+
+  /**
+   *  Get a table for an index.  If the table file exists and matches
+   *  the index, it is memory mapped.  Otherwise the table is built and
+   *  saved to the file.  If the file can't be written (e.g., the index
+   *  directory is read-only), the table is kept in memory.
+   *  @param reader The index.
+   *  @param idField The name of the external id field.
+   *  @param file Where the table is (or will be) stored.
+   *  @return The table.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static ExternalIdTable open (IndexReader reader, String idField, Path file)
+    throws IOException {
+
+    long version = indexVersion (reader);
+
+    if (Files.isReadable (file)) {
+      try (FileChannel channel = FileChannel.open (file, StandardOpenOption.READ)) {
+        ByteBuffer table = channel.map (FileChannel.MapMode.READ_ONLY, 0, channel.size ());
+
+        if ((table.capacity () >= HEADER_BYTES) &&
+            (table.getInt (0) == MAGIC) &&
+            (table.getInt (4) == reader.maxDoc ()) &&
+            (table.getLong (8) == version)) {
+          return new ExternalIdTable (table, reader.maxDoc ());
+        }
+      }
+    }
+
+    return build (reader, idField, file, version);
+  }
+
+  /**
+   *  Build the table from the postings of the external id field.
+   *  Each external id is a single term that occurs in one document,
+   *  so two passes over the field's terms are enough:  the first
+   *  finds the length of each id, the second copies the ids.
+   *  @param reader The index.
+   *  @param idField The name of the external id field.
+   *  @param file Where to save the table.
+   *  @param version The index version to record in the table.
+   *  @return The table.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private static ExternalIdTable build (IndexReader reader, String idField,
+                                        Path file, long version)
+    throws IOException {
+
+    int maxDoc = reader.maxDoc ();
+    int[] lengths = new int[maxDoc];
+    long dataBytes = 0;
+
+    //  Pass 1:  The length of each document's id.
+
+    for (LeafReaderContext leaf : reader.leaves ()) {
+      Terms terms = leaf.reader ().terms (idField);
+
+      if (terms == null)
+        continue;
+
+      TermsEnum termsEnum = terms.iterator ();
+      PostingsEnum postings = null;
+      BytesRef id;
+
+      while ((id = termsEnum.next ()) != null) {
+        postings = termsEnum.postings (postings, PostingsEnum.NONE);
+
+        while (postings.nextDoc () != DocIdSetIterator.NO_MORE_DOCS) {
+          lengths[leaf.docBase + postings.docID ()] = id.length;
+          dataBytes += id.length;
+        }
+      }
+    }
+
+    long size = HEADER_BYTES + 4L * (maxDoc + 1) + dataBytes;
+
+    if (size > Integer.MAX_VALUE)
+      throw new IOException ("The external id table is too large to map.");
+
+    ByteBuffer table = allocate (file, (int) size);
+    int dataStart = HEADER_BYTES + 4 * (maxDoc + 1);
+
+    //  The offsets.
+
+    int offset = 0;
+
+    for (int docid = 0; docid < maxDoc; docid++) {
+      table.putInt (HEADER_BYTES + 4 * docid, offset);
+      offset += lengths[docid];
+    }
+
+    table.putInt (HEADER_BYTES + 4 * maxDoc, offset);
+
+    //  Pass 2:  Copy each id to its slot.
+
+    for (LeafReaderContext leaf : reader.leaves ()) {
+      Terms terms = leaf.reader ().terms (idField);
+
+      if (terms == null)
+        continue;
+
+      TermsEnum termsEnum = terms.iterator ();
+      PostingsEnum postings = null;
+      BytesRef id;
+
+      while ((id = termsEnum.next ()) != null) {
+        postings = termsEnum.postings (postings, PostingsEnum.NONE);
+
+        while (postings.nextDoc () != DocIdSetIterator.NO_MORE_DOCS) {
+          int docid = leaf.docBase + postings.docID ();
+          int start = dataStart + table.getInt (HEADER_BYTES + 4 * docid);
+
+          for (int i = 0; i < id.length; i++)
+            table.put (start + i, id.bytes[id.offset + i]);
+        }
+      }
+    }
+
+    //  The header is written last, so that a partially written file
+    //  is never mistaken for a valid table.
+
+    table.putLong (8, version);
+    table.putInt (4, maxDoc);
+    table.putInt (0, MAGIC);
+
+    if (table instanceof MappedByteBuffer)
+      ((MappedByteBuffer) table).force ();
+
+    return new ExternalIdTable (table, maxDoc);
+  }
+
+  /**
+   *  Allocate space for a table, preferably in a memory mapped file.
+   *  @param file Where to save the table.
+   *  @param size The size of the table in bytes.
+   *  @return A buffer of the requested size.
+   */
+  static ByteBuffer allocate (Path file, int size) {
+    try (FileChannel channel =
+           FileChannel.open (file, StandardOpenOption.CREATE,
+                             StandardOpenOption.READ, StandardOpenOption.WRITE,
+                             StandardOpenOption.TRUNCATE_EXISTING)) {
+      return channel.map (FileChannel.MapMode.READ_WRITE, 0, size);
+    } catch (IOException ex) {
+      System.out.println ("Can't write " + file + "; keeping it in memory.");
+      return ByteBuffer.allocate (size);
+    }
+  }
+
+  /**
+   *  Get a number that changes whenever the index changes.
+   *  @param reader The index.
+   *  @return The index version, or 0 if the reader doesn't have one.
+   */
+  static long indexVersion (IndexReader reader) {
+    if (reader instanceof DirectoryReader)
+      return ((DirectoryReader) reader).getVersion ();
+
+    return 0;
+  }
+}
@@ -0,0 +1,121 @@
+/**
+ *  Copyright (c) 2022, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.lucene.index.*;
+
+/**
+ *  A cache of document field lengths.  Lucene stores field lengths as
+ *  norms, which must be read through a per-segment iterator.  BM25
+ *  and Indri need the length of every document that they score, so
+ *  the first time that a field's length is requested, the norms of
+ *  every segment are copied into a dense array indexed by internal
+ *  docid.  After that, getting a field length is an array lookup.
+ *  <p>
+ *  The cache uses 4 bytes per document for each field that is used
+ *  by a query.
+ *  </p>
+ */
+public class FieldLengths {
+
+  //  --------------- Constants and variables ---------------------
+
+  private final IndexReader reader;
+
+  /**
+   *  The field lengths of each field, indexed by internal docid.
+   */
+  private final ConcurrentHashMap<String,int[]> lengths =
+    new ConcurrentHashMap<String,int[]> ();
+
+  /**
+   *  The smallest length of each field, among documents that have the
+   *  field.  Scoring functions use it to compute score bounds.
+   */
+  private final ConcurrentHashMap<String,Integer> minLengths =
+    new ConcurrentHashMap<String,Integer> ();
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  @param reader The index.
+   */
+  public FieldLengths (IndexReader reader) {
+    this.reader = reader;
+  }
+
+  /**
+   *  Get the length of a field in a document.
+   *  @param fieldName The field name.
+   *  @param docid An internal document id.
+   *  @return The field length, or 0 if the document doesn't have the field.
+   */
+  public int get (String fieldName, int docid) {
+    return this.getLengths (fieldName)[docid];
+  }
+
+  /**
+   *  Get the lengths of a field in every document.  The array is
+   *  shared, so callers must not change it.
+   *  @param fieldName The field name.
+   *  @return The field lengths, indexed by internal docid.
+   */
+  public int[] getLengths (String fieldName) {
+
+    int[] fieldLengths = this.lengths.get (fieldName);
+
+    if (fieldLengths == null) {
+      fieldLengths = this.lengths.computeIfAbsent (fieldName, this::load);
+    }
+
+    return fieldLengths;
+  }
+
+  /**
+   *  Get the smallest length of a field, among documents that have the
+   *  field.
+   *  @param fieldName The field name.
+   *  @return The smallest field length, or 0 if no document has the field.
+   */
+  public int getMinLength (String fieldName) {
+
+    this.getLengths (fieldName);
+    return this.minLengths.get (fieldName);
+  }
+
+  /**
+   *  Copy the norms of a field into an array.
+   *  @param fieldName The field name.
+   *  @return The field lengths, indexed by internal docid.
+   */
+  private int[] load (String fieldName) {
+
+    int[] fieldLengths = new int[this.reader.maxDoc ()];
+    int min = Integer.MAX_VALUE;
+
+    try {
+      for (LeafReaderContext leaf : this.reader.leaves ()) {
+        NumericDocValues norms = leaf.reader ().getNormValues (fieldName);
+
+        if (norms == null)
+          continue;
+
+        for (int d = norms.nextDoc (); d != NumericDocValues.NO_MORE_DOCS; d = norms.nextDoc ()) {
+          int length = (int) Math.min (norms.longValue (), Integer.MAX_VALUE);
+
+          fieldLengths[leaf.docBase + d] = length;
+
+          if (length > 0)
+            min = Math.min (min, length);
+        }
+      }
+    } catch (IOException ex) {
+      throw new UncheckedIOException (ex);
+    }
+
+    this.minLengths.put (fieldName, (min == Integer.MAX_VALUE) ? 0 : min);
+    return fieldLengths;
+  }
+}
@@ -2,14 +2,11 @@
  *  Copyright (c) 2022, Carnegie Mellon University.  All Rights Reserved.
  */
 import java.io.*;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
-import org.apache.lucene.document.Document;
 import org.apache.lucene.index.*;
-import org.apache.lucene.search.*;
-import org.apache.lucene.store.*;
-import org.apache.lucene.util.BytesRef;
 
 /**
  *  Idx manages and provides access to Lucene indexes and auxiliary
@@ -20,6 +17,18 @@ import org.apache.lucene.util.BytesRef;
  *  federated search).  The Idx class designates one index the
  *  <i>current</i> index.  All requests are satisfied from the current
  *  index.  setCurrentIndex changes the current index.
+ *  </p><p>
+ *  Some auxiliary data structures are built from the Lucene index the
+ *  first time that it is opened and saved as sidecar files in the
+ *  index directory (see sidecarPath), so that later runs can reload
+ *  them.  Their names start with "qryeval.", which Lucene ignores.
+ *  </p><p>
+ *  Each open index is an IndexContext, which holds the Lucene index
+ *  and its auxiliary data structures.  Code that evaluates queries on
+ *  several indexes at the same time should pass IndexContexts (see
+ *  getIndexContext) instead of changing the current index, which
+ *  affects every thread.  The static methods of Idx are a facade for
+ *  the current index's IndexContext.
  *  </p>
  */
 public class Idx {
@@ -29,11 +38,15 @@ public class Idx {
   /**
    *  The Lucene index that is considered the current index.
    */
-  public static IndexReader INDEXREADER=null;
+  public static volatile IndexReader INDEXREADER=null;
 
-  private static HashMap<String,IndexReader> openIndexReaders =
-    new HashMap<String,IndexReader> ();
-  private static String externalIdField = new String ("externalId");
+  /**
+   *  The current index.
+   */
+  private static volatile IndexContext CURRENT = null;
+
+  private static ConcurrentHashMap<String,IndexContext> openIndexes =
+    new ConcurrentHashMap<String,IndexContext> ();
 
   //  --------------- Methods ---------------------------------------
 
@@ -46,9 +59,7 @@ public class Idx {
    */
   public static String getAttribute (String attributeName, int docid)
     throws IOException {
-
-    Document d = Idx.INDEXREADER.document (docid);
-    return d.get (attributeName);
+    return Idx.CURRENT.getAttribute (attributeName, docid);
   }
 
   /**
@@ -59,7 +70,7 @@ public class Idx {
    */
   public static int getDocCount (String fieldName)
     throws IOException {
-    return Idx.INDEXREADER.getDocCount (fieldName);
+    return Idx.CURRENT.getDocCount (fieldName);
   }
   
   
@@ -73,25 +84,40 @@ public class Idx {
    */
   public static long getDocFreq (String fieldName, String term)
     throws IOException {
-    return INDEXREADER.docFreq (new Term (fieldName, new BytesRef (term)));
+    return Idx.CURRENT.getDocFreq (fieldName, term);
   }
 
 
   /**
    *  Get the external document id for a document specified by an
-   *  internal document id.
+   *  internal document id.  This is an array lookup in a memory
+   *  mapped table (see ExternalIdTable).
    *  @param iid The internal document id of the document.
    *  @return the external document id
    *  @throws IOException Error accessing the Lucene index.
    */
   public static String getExternalDocid(int iid) throws IOException {
-    Document d = Idx.INDEXREADER.document(iid);
-    String eid = d.get(externalIdField);
-    return eid;
+    return Idx.CURRENT.getExternalDocid (iid);
+  }
+
+  /**
+   *  Compare the external document ids of two documents, e.g., to
+   *  break ties between documents that have the same score.
+   *  @param iid1 The internal document id of a document.
+   *  @param iid2 The internal document id of another document.
+   *  @return A negative number, zero, or a positive number if the
+   *  first external id sorts before, with, or after the second.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static int compareExternalDocids(int iid1, int iid2)
+    throws IOException {
+    return Idx.CURRENT.compareExternalDocids (iid1, iid2);
   }
 
   /**
    *  Get the length of the specified field in the specified document.
+   *  Lengths are read from the norms once per field and cached (see
+   *  FieldLengths), because scoring needs them for every document.
    *  @param fieldName Name of field to access lengths.
    *  @param docid The internal docid in the Lucene index.
    *  @return the length of the field, including stopword positions.
@@ -99,20 +125,17 @@ public class Idx {
    */
   public static long getFieldLength (String fieldName, int docid)
     throws IOException {
+    return Idx.CURRENT.getFieldLength (fieldName, docid);
+  }
 
-    LeafReaderContext leafContext = getLeafReaderContext (Idx.INDEXREADER, docid);
-    int leafDocid = docid - leafContext.docBase;
-    LeafReader leafReader = leafContext.reader ();
-    NumericDocValues norms = leafReader.getNormValues (fieldName);
-    long fieldLength = 0;
-	    
-    if (norms != null) {
-      if (norms.advanceExact (leafDocid)) {
-	fieldLength = norms.longValue();
-      }
-    }
-	    
-    return fieldLength;
+  /**
+   *  Get the smallest length of the specified field, among documents
+   *  that have the field.  Scoring operators use it to bound scores.
+   *  @param fieldName Name of field to access lengths.
+   *  @return the smallest field length.
+   */
+  public static int getMinFieldLength (String fieldName) {
+    return Idx.CURRENT.getMinFieldLength (fieldName);
   }
 
   /**
@@ -125,69 +148,60 @@ public class Idx {
    */
   public static int getInternalDocid(String externalId)
     throws Exception {
-
-    LeafReaderContext leafContext =
-      getLeafReaderContext (Idx.INDEXREADER, externalId);
-
-    if (leafContext == null) 
-      throw new Exception ("External id " + externalId + " not found.");
-
-    Term term = new Term (externalIdField, externalId);
-    LeafReader leafReader = leafContext.reader();
-    PostingsEnum postings = leafReader.postings (term);
-
-    if (postings.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
-      int internalId = leafContext.docBase + postings.docID();
-      return (internalId);
-    };
-
-    throw new Exception ("External id should exist, but isn't found.");
+    return Idx.CURRENT.getInternalDocid (externalId);
   }
 
   /**
-   *  Get the context of the LeafReader that contains the specified document.
-   *  @param reader An IndexReader (probably a CompositeReader)
-   *  @param docid An external document id
-   *  @return the LeafReaderContext that contains the document, or null
+   *  Get the internal document ids for many documents specified by
+   *  their external document ids.  This is much faster than calling
+   *  getInternalDocid for each document, so use it to read run files.
+   *  @param externalIds The external document ids.
+   *  @return The internal document ids, in the same order.
+   *  @throws Exception Error if an external id is not found.
    */
-  private static LeafReaderContext getLeafReaderContext (IndexReader reader, String docid)
-    throws Exception, IOException {
-
-    Term term = new Term (externalIdField, docid);
-
-    if (reader.docFreq (term) > 1)
-      throw new Exception ("Multiple matches for external id " + docid);
-
-    for (LeafReaderContext leafContext : reader.leaves()) {
-      LeafReader leafReader = leafContext.reader();
-      if (leafReader.postings (term) != null) {
-	return (leafContext);
-      };
-    };
-	
-    return null;
+  public static int[] getInternalDocids(String[] externalIds)
+    throws Exception {
+    return Idx.CURRENT.getInternalDocids (externalIds);
   }
 
   /**
-   *  Get the context of the LeafReader that contains the specified document.
-   *  @param reader An IndexReader (probably a CompositeReader)
-   *  @param docid An internal document id
-   *  @return the LeafReaderContext that contains the document, or null
+   *  Get the collection statistics of the current index.  The values
+   *  are the same as the other Idx statistics methods return, but
+   *  scoring code can keep the object instead of calling Idx for each
+   *  document.
+   *  @return The collection statistics.
    */
-  private static LeafReaderContext getLeafReaderContext (IndexReader reader, long docid) {
+  public static CollectionStats getCollectionStats () {
+    return Idx.CURRENT.getCollectionStats ();
+  }
 
-    LeafReader leafReader = null;
+  /**
+   *  Get the BM25 length normalization of every document in the
+   *  current index (see LengthNorms).
+   *  @param fieldName The field name.
+   *  @param k1 The BM25 k1 parameter.
+   *  @param b The BM25 b parameter.
+   *  @return The normalizations, indexed by internal docid.  The
+   *  array is shared, so callers must not change it.
+   */
+  public static double[] getBM25LengthNorms (String fieldName, double k1, double b) {
+    return Idx.CURRENT.getBM25LengthNorms (fieldName, k1, b);
+  }
 
-    for (LeafReaderContext leafContext : reader.leaves()) {
-      leafReader = leafContext.reader();
-      int minDocid = leafContext.docBase;
-      int maxDocid = leafContext.docBase + leafReader.numDocs();
-      if ((docid >= minDocid) && (docid < maxDocid)) {
-	return leafContext;
-      };
-    };
+  /**
+   *  Get the block-max index of the current index.
+   *  @return The block-max index, or null if it hasn't been built.
+   */
+  public static BlockMaxIndex getBlockMaxIndex () {
+    return Idx.CURRENT.getBlockMaxIndex ();
+  }
 
-    return null;
+  /**
+   *  Get the impact-ordered index of the current index.
+   *  @return The impact-ordered index, or null if it hasn't been built.
+   */
+  public static ImpactIndex getImpactIndex () {
+    return Idx.CURRENT.getImpactIndex ();
   }
 
   /**
@@ -196,7 +210,7 @@ public class Idx {
    *  @throws IOException Error accessing the Lucene index.
    */
   public static long getNumDocs () throws IOException {
-    return Idx.INDEXREADER.numDocs();
+    return Idx.CURRENT.getNumDocs ();
   }
 
   /**
@@ -209,7 +223,7 @@ public class Idx {
    */
   public static long getSumOfFieldLengths (String fieldName)
     throws IOException {
-    return Idx.INDEXREADER.getSumTotalTermFreq (fieldName);
+    return Idx.CURRENT.getSumOfFieldLengths (fieldName);
   }
 
 
@@ -224,56 +238,84 @@ public class Idx {
    */
   public static long getTotalTermFreq (String fieldName, String term)
     throws IOException {
-    return INDEXREADER.totalTermFreq (new Term (fieldName, new BytesRef (term)));
+    return Idx.CURRENT.getTotalTermFreq (fieldName, term);
   }
 
+  /**
+   *  Get the current index.
+   *  @return The current index, or null if no index is open.
+   */
+  public static IndexContext getIndexContext () {
+    return Idx.CURRENT;
+  }
 
   /**
-   *  Open a Lucene index.
+   *  Get an open index.
+   *  @param indexPath A directory that contains an open Lucene index.
+   *  @return The index.
+   *  @throws IllegalArgumentException The specified index isn't open.
+   */
+  public static IndexContext getIndexContext (String indexPath)
+    throws IllegalArgumentException {
+
+    IndexContext index = openIndexes.get (indexPath);
+
+    if (index == null) {
+      throw new IllegalArgumentException ("The index " + indexPath + " isn't open.");
+    }
+
+    return index;
+  }
+
+  /**
+   *  Open a Lucene index.  An index that is already open isn't opened
+   *  again.
    *  @param indexPath A directory that contains a Lucene index.
    *  @throws IllegalArgumentException Unable to open the index.
    *  @throws IOException Error accessing the index.
    */
-  public static void open (String indexPath)
+  public static synchronized void open (String indexPath)
     throws IllegalArgumentException, IOException {
 
-    IndexReader indexReader;
-
-    //  Open the Lucene index
-
-    indexReader = 
-      DirectoryReader.open (FSDirectory.open (Paths.get (indexPath)));
-  
-    if (indexReader == null) {
-      throw new IllegalArgumentException ("Unable to open the index.");
+    if (! openIndexes.containsKey (indexPath)) {
+      openIndexes.put (indexPath, new IndexContext (indexPath));
     }
-  
-    //  Keep track of the open indexes.
-
-    openIndexReaders.put (indexPath, indexReader);
 
     //  The current index defaults to the first open index.
 
-    if (Idx.INDEXREADER == null) {
-      Idx.INDEXREADER = indexReader;
+    if (Idx.CURRENT == null) {
+      setCurrentIndex (indexPath);
     }
   }
 
   /**
-   *  Change the current index to another open Lucene index.
+   *  Get the path of a sidecar file that stores an auxiliary data
+   *  structure for an index.
+   *  @param indexPath A directory that contains a Lucene index.
+   *  @param name The name of the data structure.
+   *  @return The path of the sidecar file.
+   */
+  public static Path sidecarPath (String indexPath, String name) {
+    return Paths.get (indexPath, "qryeval." + name);
+  }
+
+  /**
+   *  Change the current index to another open Lucene index.  The
+   *  current index is shared by every thread.
    *  @param indexPath A directory that contains an open Lucene index.
    *  @throws IllegalArgumentException The specified index isn't open.
    */
-  public static void setCurrentIndex (String indexPath)
+  public static synchronized void setCurrentIndex (String indexPath)
     throws IllegalArgumentException {
 
-    IndexReader indexReader = openIndexReaders.get (indexPath);
+    IndexContext index = openIndexes.get (indexPath);
 
-    if (indexReader == null) {
+    if (index == null) {
       throw new IllegalArgumentException (
         "An index must be open before it can be the current index");
     }
 
-    Idx.INDEXREADER = indexReader;
+    Idx.CURRENT = index;
+    Idx.INDEXREADER = index.getReader ();
   }
 }
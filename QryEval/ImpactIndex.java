@@ -0,0 +1,608 @@
+/**
+ *  Copyright (c) 2022, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ *  An impact-ordered copy of the inverted lists of an index, for
+ *  score-at-a-time BM25 evaluation (see ScoreAtATime).  Each posting
+ *  stores the term's BM25 score in the document, for fixed k1 and b,
+ *  quantized to an integer impact between 1 and 2^IMPACT_BITS - 1.
+ *  The postings of each term are grouped into segments of equal
+ *  impact, and the segments are stored from the highest impact to the
+ *  lowest.  Postings whose BM25 score is 0 (terms in more than half
+ *  of the documents) are not stored.
+ *  <p>
+ *  The index is built offline, because it requires a pass over every
+ *  inverted list:
+ *  </p>
+ *  <pre>
+ *    java ImpactIndex indexPath k1 b [field ...]
+ *  </pre>
+ *  <p>
+ *  It is saved as a sidecar file in the index directory and memory
+ *  mapped by Idx.open.  The file format is:
+ *  </p>
+ *  <pre>
+ *    int    MAGIC
+ *    int    number of terms
+ *    long   index version
+ *    double k1
+ *    double b
+ *    double scale                   the BM25 score of impact 1
+ *    int    keyStart[terms + 1]     byte offsets of each key
+ *    int    segmentStart[terms + 1] index of each term's first segment
+ *    byte   keys[]                  "field \0 term" in UTF-8, sorted, padded to 4 bytes
+ *    int    segments[][3]           impact, number of postings, byte offset
+ *    byte   postings[]              docid gaps as variable-length ints
+ *  </pre>
+ */
+public class ImpactIndex {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The number of bits of a quantized impact.
+   */
+  public static final int IMPACT_BITS = 8;
+
+  private static final int MAX_IMPACT = (1 << IMPACT_BITS) - 1;
+  private static final int MAGIC = 0x51454931;		// "QEI1"
+  private static final int HEADER_BYTES = 40;
+
+  private final ByteBuffer index;
+  private final int numTerms;
+  private final int keysStart;
+  private final int segmentsStart;
+  private final int postingsStart;
+
+  /**
+   *  The impact segments of one term.
+   */
+  public class Segments {
+    private final int first;
+    private final int count;
+
+    private Segments (int first, int count) {
+      this.first = first;
+      this.count = count;
+    }
+
+    /**
+     *  @return The number of segments.
+     */
+    public int size () {
+      return this.count;
+    }
+
+    /**
+     *  @param i The index of a segment.
+     *  @return The impact of every posting in the segment.
+     */
+    public int getImpact (int i) {
+      return index.getInt (segmentsStart + 12 * (this.first + i));
+    }
+
+    /**
+     *  @param i The index of a segment.
+     *  @return The number of postings in the segment.
+     */
+    public int getPostingCount (int i) {
+      return index.getInt (segmentsStart + 12 * (this.first + i) + 4);
+    }
+
+    /**
+     *  Decode the docids of a segment, in docid order.
+     *  @param i The index of a segment.
+     *  @param docids Receives the docids.
+     *  @param max The largest number of docids to decode.
+     *  @return The number of docids decoded.
+     */
+    public int getDocids (int i, int[] docids, int max) {
+
+      int n = Math.min (max, this.getPostingCount (i));
+      int pos = postingsStart + index.getInt (segmentsStart + 12 * (this.first + i) + 8);
+      int docid = 0;
+
+      for (int j = 0; j < n; j++) {
+        int gap = 0;
+        int shift = 0;
+        byte b;
+
+        do {
+          b = index.get (pos++);
+          gap |= (b & 0x7f) << shift;
+          shift += 7;
+        } while (b < 0);
+
+        docid += gap;
+        docids[j] = docid;
+      }
+
+      return n;
+    }
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Constructor.  Use open to get an index.
+   *  @param index The index contents.
+   */
+  private ImpactIndex (ByteBuffer index) {
+    this.index = index;
+    this.numTerms = index.getInt (4);
+    this.keysStart = HEADER_BYTES + 8 * (this.numTerms + 1);
+
+    int keyBytes = index.getInt (HEADER_BYTES + 4 * this.numTerms);
+    int numSegments = index.getInt (this.segmentStartOffset (this.numTerms));
+
+    this.segmentsStart = this.keysStart + ((keyBytes + 3) & ~3);
+    this.postingsStart = this.segmentsStart + 12 * numSegments;
+  }
+
+  /**
+   *  @return The BM25 k1 parameter that the impacts were computed with.
+   */
+  public double getK1 () {
+    return this.index.getDouble (16);
+  }
+
+  /**
+   *  @return The BM25 b parameter that the impacts were computed with.
+   */
+  public double getB () {
+    return this.index.getDouble (24);
+  }
+
+  /**
+   *  @return The BM25 score of one unit of impact.
+   */
+  public double getScale () {
+    return this.index.getDouble (32);
+  }
+
+  /**
+   *  Get the impact segments of a term.
+   *  @param field The field.
+   *  @param term The term.
+   *  @return The segments, or null if the term isn't in the index.
+   */
+  public Segments get (String field, String term) {
+
+    byte[] key = key (field, term);
+    int i = this.find (key);
+
+    if ((i < this.numTerms) && (this.compareKey (i, key) == 0)) {
+      int first = this.index.getInt (this.segmentStartOffset (i));
+      int last = this.index.getInt (this.segmentStartOffset (i + 1));
+      return new Segments (first, last - first);
+    }
+
+    return null;
+  }
+
+  /**
+   *  Whether a field was indexed.  A term of an indexed field that
+   *  isn't in the index has no postings with a positive score.
+   *  @param field The field.
+   *  @return True if the field was indexed.
+   */
+  public boolean hasField (String field) {
+
+    byte[] prefix = (field + "\0").getBytes (StandardCharsets.UTF_8);
+    int i = this.find (prefix);
+
+    if (i >= this.numTerms)
+      return false;
+
+    int start = this.index.getInt (HEADER_BYTES + 4 * i);
+    int length = this.index.getInt (HEADER_BYTES + 4 * (i + 1)) - start;
+
+    if (length < prefix.length)
+      return false;
+
+    for (int j = 0; j < prefix.length; j++) {
+      if (this.index.get (this.keysStart + start + j) != prefix[j])
+        return false;
+    }
+
+    return true;
+  }
+
+  /**
+   *  Find the first key that isn't smaller than a key.
+   *  @param key A key.
+   *  @return The index of the key, or the number of terms.
+   */
+  private int find (byte[] key) {
+
+    int lo = 0;
+    int hi = this.numTerms;
+
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+
+      if (this.compareKey (mid, key) < 0)
+        lo = mid + 1;
+      else
+        hi = mid;
+    }
+
+    return lo;
+  }
+
+  /**
+   *  Get the file offset of the i'th segmentStart entry.
+   *  @param i The index of a term.
+   *  @return The offset.
+   */
+  private int segmentStartOffset (int i) {
+    return HEADER_BYTES + 4 * (this.numTerms + 1) + 4 * i;
+  }
+
+  /**
+   *  Compare the i'th key to a key, as unsigned bytes.
+   *  @param i The index of a key.
+   *  @param key A key.
+   *  @return The comparison.
+   */
+  private int compareKey (int i, byte[] key) {
+
+    int start = this.index.getInt (HEADER_BYTES + 4 * i);
+    int length = this.index.getInt (HEADER_BYTES + 4 * (i + 1)) - start;
+    int n = Math.min (length, key.length);
+
+    for (int j = 0; j < n; j++) {
+      int b = this.index.get (this.keysStart + start + j) & 0xff;
+      int k = key[j] & 0xff;
+
+      if (b != k)
+        return b - k;
+    }
+
+    return length - key.length;
+  }
+
+  /**
+   *  The key of a term:  the field and term, separated by a 0 byte,
+   *  so that keys sort by field and then by term.
+   *  @param field The field.
+   *  @param term The term.
+   *  @return The key.
+   */
+  private static byte[] key (String field, String term) {
+    return (field + "\0" + term).getBytes (StandardCharsets.UTF_8);
+  }
+
+  /**
+   *  Map the impact index of an index, if it has been built.
+   *  @param reader The index.
+   *  @param file The sidecar file.
+   *  @return The impact index, or null if the file doesn't exist or
+   *  was built from a different version of the index.
+   *  @throws IOException Error reading the file.
+   */
+  public static ImpactIndex open (IndexReader reader, Path file)
+    throws IOException {
+
+    if (! Files.isReadable (file))
+      return null;
+
+    try (FileChannel channel = FileChannel.open (file, StandardOpenOption.READ)) {
+      ByteBuffer index = channel.map (FileChannel.MapMode.READ_ONLY, 0, channel.size ());
+
+      if ((index.capacity () < HEADER_BYTES) ||
+          (index.getInt (0) != MAGIC) ||
+          (index.getLong (8) != ExternalIdTable.indexVersion (reader))) {
+        System.out.println ("Ignoring " + file + ", which doesn't match the index." +
+                            "  Run ImpactIndex to rebuild it.");
+        return null;
+      }
+
+      return new ImpactIndex (index);
+    }
+  }
+
+  /**
+   *  Build the impact index of a Lucene index.
+   *  @param reader The index.
+   *  @param fields The fields to index.
+   *  @param k1 The BM25 k1 parameter.
+   *  @param b The BM25 b parameter.
+   *  @param file Where to save the impact index.
+   *  @throws IOException Error accessing the index.
+   */
+  public static void build (IndexReader reader, List<String> fields,
+                            double k1, double b, Path file)
+    throws IOException {
+
+    FieldLengths fieldLengths = new FieldLengths (reader);
+    CollectionStats stats = new CollectionStats (reader);
+    double N = stats.getNumDocs ();
+
+    List<String> sortedFields = new ArrayList<String> (fields);
+    Collections.sort (sortedFields);
+
+    //  The first pass finds the largest score, which determines the
+    //  quantization scale.
+
+    double maxScore = 0.0;
+
+    for (String field : sortedFields) {
+      Terms terms = MultiTerms.getTerms (reader, field);
+
+      if (terms == null)
+        continue;
+
+      int[] lengths = fieldLengths.getLengths (field);
+      double avgLength = stats.getFieldStats (field).avgLength;
+      TermsEnum termsEnum = terms.iterator ();
+      PostingsEnum postings = null;
+
+      while (termsEnum.next () != null) {
+        double idf = idf (N, termsEnum.docFreq ());
+
+        if (idf <= 0.0)
+          continue;
+
+        postings = termsEnum.postings (postings, PostingsEnum.FREQS);
+
+        while (postings.nextDoc () != DocIdSetIterator.NO_MORE_DOCS) {
+          maxScore = Math.max (maxScore,
+            score (idf, postings.freq (), lengths[postings.docID ()], avgLength, k1, b));
+        }
+      }
+    }
+
+    double scale = (maxScore > 0.0) ? (maxScore / MAX_IMPACT) : 1.0;
+
+    //  The second pass quantizes the scores and groups each term's
+    //  postings by impact.
+
+    ByteArrayOutputStream keys = new ByteArrayOutputStream ();
+    ByteArrayOutputStream postingBytes = new ByteArrayOutputStream ();
+    List<Integer> keyStarts = new ArrayList<Integer> ();
+    List<Integer> segmentStarts = new ArrayList<Integer> ();
+    int[] segments = new int[3 * 1024];
+    int numSegments = 0;
+
+    int[] docids = new int[1024];
+    int[] impacts = new int[1024];
+    int[] levelCounts = new int[MAX_IMPACT + 1];
+    int[] levelStarts = new int[MAX_IMPACT + 2];
+    int[] sorted = new int[1024];
+
+    for (String field : sortedFields) {
+      Terms terms = MultiTerms.getTerms (reader, field);
+
+      if (terms == null)
+        continue;
+
+      int[] lengths = fieldLengths.getLengths (field);
+      double avgLength = stats.getFieldStats (field).avgLength;
+      TermsEnum termsEnum = terms.iterator ();
+      PostingsEnum postings = null;
+      BytesRef term;
+
+      while ((term = termsEnum.next ()) != null) {
+        double idf = idf (N, termsEnum.docFreq ());
+
+        if (idf <= 0.0)
+          continue;
+
+        //  Read the postings and their impacts.
+
+        postings = termsEnum.postings (postings, PostingsEnum.FREQS);
+        Arrays.fill (levelCounts, 0);
+        int df = 0;
+
+        while (postings.nextDoc () != DocIdSetIterator.NO_MORE_DOCS) {
+          if (df == docids.length) {
+            docids = Arrays.copyOf (docids, 2 * df);
+            impacts = Arrays.copyOf (impacts, 2 * df);
+          }
+
+          int docid = postings.docID ();
+          double s = score (idf, postings.freq (), lengths[docid], avgLength, k1, b);
+          int impact = (int) Math.min (MAX_IMPACT, Math.max (1, Math.round (s / scale)));
+
+          docids[df] = docid;
+          impacts[df] = impact;
+          levelCounts[impact] ++;
+          df ++;
+        }
+
+        if (df == 0)
+          continue;
+
+        //  Counting sort by descending impact.  Docids stay in order
+        //  within each impact.
+
+        if (sorted.length < df)
+          sorted = new int[docids.length];
+
+        levelStarts[MAX_IMPACT] = 0;
+
+        for (int level = MAX_IMPACT; level > 0; level--)
+          levelStarts[level - 1] = levelStarts[level] + levelCounts[level];
+
+        for (int j = 0; j < df; j++)
+          sorted[levelStarts[impacts[j]] ++] = docids[j];
+
+        //  Write the term's segments.
+
+        keyStarts.add (keys.size ());
+        segmentStarts.add (numSegments);
+        byte[] key = key (field, term.utf8ToString ());
+        keys.write (key, 0, key.length);
+
+        int j = 0;
+
+        for (int level = MAX_IMPACT; level > 0; level--) {
+          if (levelCounts[level] == 0)
+            continue;
+
+          if (3 * (numSegments + 1) > segments.length)
+            segments = Arrays.copyOf (segments, 2 * segments.length);
+
+          segments[3 * numSegments] = level;
+          segments[3 * numSegments + 1] = levelCounts[level];
+          segments[3 * numSegments + 2] = postingBytes.size ();
+          numSegments ++;
+
+          int prev = 0;
+
+          for (int end = j + levelCounts[level]; j < end; j++) {
+            writeVInt (postingBytes, sorted[j] - prev);
+            prev = sorted[j];
+          }
+        }
+      }
+    }
+
+    keyStarts.add (keys.size ());
+    segmentStarts.add (numSegments);
+
+    //  Write the file.
+
+    int numTerms = keyStarts.size () - 1;
+    int keyBytes = keys.size ();
+    long size = HEADER_BYTES + 8L * (numTerms + 1) + ((keyBytes + 3) & ~3) +
+                12L * numSegments + postingBytes.size ();
+
+    if (size > Integer.MAX_VALUE)
+      throw new IOException ("The impact index is too large to map.");
+
+    ByteBuffer index = ExternalIdTable.allocate (file, (int) size);
+    int pos = HEADER_BYTES;
+
+    for (int start : keyStarts) {
+      index.putInt (pos, start);
+      pos += 4;
+    }
+
+    for (int start : segmentStarts) {
+      index.putInt (pos, start);
+      pos += 4;
+    }
+
+    byte[] keyArray = keys.toByteArray ();
+
+    for (int i = 0; i < keyArray.length; i++)
+      index.put (pos + i, keyArray[i]);
+
+    pos += (keyBytes + 3) & ~3;
+
+    for (int i = 0; i < 3 * numSegments; i++) {
+      index.putInt (pos, segments[i]);
+      pos += 4;
+    }
+
+    byte[] postingArray = postingBytes.toByteArray ();
+
+    for (int i = 0; i < postingArray.length; i++)
+      index.put (pos + i, postingArray[i]);
+
+    //  The header is written last, so that a partially written file
+    //  is never mistaken for a valid index.
+
+    index.putDouble (32, scale);
+    index.putDouble (24, b);
+    index.putDouble (16, k1);
+    index.putLong (8, ExternalIdTable.indexVersion (reader));
+    index.putInt (4, numTerms);
+    index.putInt (0, MAGIC);
+
+    if (index instanceof MappedByteBuffer)
+      ((MappedByteBuffer) index).force ();
+
+    System.out.println ("Impact index:  " + numTerms + " terms, " +
+                        numSegments + " segments, " + size + " bytes.");
+  }
+
+  /**
+   *  The BM25 idf, computed as QrySopScore.getScoreBM25 does.
+   *  @param N The number of documents.
+   *  @param df The document frequency.
+   *  @return The idf.
+   */
+  private static double idf (double N, double df) {
+    return Math.max(0, Math.log((N-df+0.5)/(df+0.5)));
+  }
+
+  /**
+   *  The BM25 score of a term in a document, computed as
+   *  QrySopScore.getScoreBM25 does.
+   *  @param idf The term's idf.
+   *  @param tf The term frequency.
+   *  @param doclen_d The field length of the document.
+   *  @param avg_doclen The average field length.
+   *  @param k1 The BM25 k1 parameter.
+   *  @param b The BM25 b parameter.
+   *  @return The score.
+   */
+  private static double score (double idf, double tf, double doclen_d, double avg_doclen,
+                               double k1, double b) {
+    double tf_w = tf/(tf+k1*((1-b)+b*(doclen_d/avg_doclen)));
+    return idf*tf_w;
+  }
+
+  /**
+   *  Write a non-negative int in a variable-length format:  7 bits
+   *  per byte, low bits first, and the high bit set on every byte
+   *  except the last.
+   *  @param out The output stream.
+   *  @param i The value.
+   */
+  private static void writeVInt (ByteArrayOutputStream out, int i) {
+    while ((i & ~0x7f) != 0) {
+      out.write ((i & 0x7f) | 0x80);
+      i >>>= 7;
+    }
+
+    out.write (i);
+  }
+
+  /**
+   *  Build the impact index of a Lucene index.
+   *  @param args The index path, the BM25 k1 and b parameters, and
+   *  optionally the fields to index.  The default is every field that
+   *  has norms.
+   *  @throws IOException Error accessing the index.
+   */
+  public static void main (String[] args) throws IOException {
+
+    if (args.length < 3) {
+      System.out.println ("Usage:  java ImpactIndex indexPath k1 b [field ...]");
+      System.exit (1);
+    }
+
+    IndexReader reader = DirectoryReader.open (FSDirectory.open (Paths.get (args[0])));
+    double k1 = Double.parseDouble (args[1]);
+    double b = Double.parseDouble (args[2]);
+    List<String> fields = new ArrayList<String> ();
+
+    if (args.length > 3) {
+      fields.addAll (Arrays.asList (args).subList (3, args.length));
+    } else {
+      for (FieldInfo info : FieldInfos.getMergedFieldInfos (reader)) {
+        if (info.hasNorms ())
+          fields.add (info.name);
+      }
+    }
+
+    build (reader, fields, k1, b, Idx.sidecarPath (args[0], "impacts"));
+    reader.close ();
+  }
+}
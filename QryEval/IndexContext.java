@@ -0,0 +1,319 @@
+/**
+ *  Copyright (c) 2022, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.file.Paths;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.*;
+import org.apache.lucene.store.*;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ *  An open Lucene index and its auxiliary data structures:  the
+ *  external id maps, field lengths, collection statistics, BM25
+ *  length normalizations, and the block-max and impact-ordered
+ *  indexes, if they have been built.
+ *  <p>
+ *  An IndexContext is immutable after it is opened, and its caches
+ *  are thread-safe, so several threads can evaluate queries on the
+ *  same index, and on different indexes, at the same time.  Query
+ *  operators get the index from Qry.initialize; InvList, TermVector,
+ *  ScoreList and TopKCollector take it as a constructor argument.
+ *  Idx keeps the open indexes, and provides static access to the
+ *  current index for code that doesn't pass an IndexContext.
+ *  </p>
+ */
+public class IndexContext {
+
+  //  --------------- Constants and variables ---------------------
+
+  private static final String EXTERNAL_ID_FIELD = "externalId";
+
+  private final String indexPath;
+  private final IndexReader reader;
+  private final ExternalIdTable externalIds;
+  private final ExternalIdIndex internalIds;
+  private final FieldLengths fieldLengths;
+  private final CollectionStats stats;
+  private final LengthNorms lengthNorms;
+
+  /**
+   *  The block-max index, or null if it hasn't been built (see
+   *  BlockMaxIndex).
+   */
+  private final BlockMaxIndex blockMax;
+
+  /**
+   *  The impact-ordered index, or null if it hasn't been built (see
+   *  ImpactIndex).
+   */
+  private final ImpactIndex impacts;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Open a Lucene index, and map (or build) its auxiliary data
+   *  structures.
+   *  @param indexPath A directory that contains a Lucene index.
+   *  @throws IllegalArgumentException Unable to open the index.
+   *  @throws IOException Error accessing the index.
+   */
+  public IndexContext (String indexPath)
+    throws IllegalArgumentException, IOException {
+
+    this.indexPath = indexPath;
+    this.reader = DirectoryReader.open (FSDirectory.open (Paths.get (indexPath)));
+
+    if (this.reader == null) {
+      throw new IllegalArgumentException ("Unable to open the index.");
+    }
+
+    //  Map (or build) the docid to external id table and its inverse.
+
+    this.externalIds =
+      ExternalIdTable.open (this.reader, EXTERNAL_ID_FIELD,
+                            Idx.sidecarPath (indexPath, "externalIds"));
+    this.internalIds =
+      ExternalIdIndex.open (this.reader, EXTERNAL_ID_FIELD, this.externalIds,
+                            Idx.sidecarPath (indexPath, "internalIds"));
+
+    this.fieldLengths = new FieldLengths (this.reader);
+    this.stats = new CollectionStats (this.reader);
+    this.lengthNorms = new LengthNorms (this.fieldLengths, this.stats);
+    this.blockMax =
+      BlockMaxIndex.open (this.reader, Idx.sidecarPath (indexPath, "blockMax"));
+    this.impacts =
+      ImpactIndex.open (this.reader, Idx.sidecarPath (indexPath, "impacts"));
+  }
+
+  /**
+   *  Get the directory that contains the index.
+   *  @return The index path.
+   */
+  public String getIndexPath () {
+    return this.indexPath;
+  }
+
+  /**
+   *  Get the Lucene index.
+   *  @return The index reader.
+   */
+  public IndexReader getReader () {
+    return this.reader;
+  }
+
+  /**
+   *  Get the number of docids in the index, including deleted
+   *  documents.
+   *  @return One more than the largest internal docid.
+   */
+  public int maxDoc () {
+    return this.reader.maxDoc ();
+  }
+
+  /**
+   *  Get the specified attribute from the specified document.
+   *  @param attributeName Name of attribute
+   *  @param docid The internal docid in the lucene index.
+   *  @return the attribute value, or null if there is no attribute or value
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public String getAttribute (String attributeName, int docid)
+    throws IOException {
+
+    Document d = this.reader.document (docid);
+    return d.get (attributeName);
+  }
+
+  /**
+   *  Get the number of documents that contain the specified field.
+   *  @param fieldName the field name
+   *  @return the number of documents that contain the field
+   */
+  public int getDocCount (String fieldName) {
+    return this.stats.getFieldStats (fieldName).docCount;
+  }
+
+  /**
+   *  Get the document frequency (df) of a term in a field (e.g., the total
+   *  number of documents that contain the term 'apple' in title fields).
+   *  @param fieldName The field name.
+   *  @param term The term.
+   *  @return The document frequency
+   */
+  public long getDocFreq (String fieldName, String term) {
+    return this.stats.getDocFreq (new Term (fieldName, new BytesRef (term)));
+  }
+
+  /**
+   *  Get the external document id for a document specified by an
+   *  internal document id.  This is an array lookup in a memory
+   *  mapped table (see ExternalIdTable).
+   *  @param iid The internal document id of the document.
+   *  @return the external document id
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public String getExternalDocid (int iid) throws IOException {
+
+    //  The external id table avoids loading a stored document.  It
+    //  may not cover documents without an indexed external id.
+
+    String eid = this.externalIds.get (iid);
+
+    if (eid != null)
+      return eid;
+
+    Document d = this.reader.document (iid);
+    return d.get (EXTERNAL_ID_FIELD);
+  }
+
+  /**
+   *  Compare the external document ids of two documents, e.g., to
+   *  break ties between documents that have the same score.
+   *  @param iid1 The internal document id of a document.
+   *  @param iid2 The internal document id of another document.
+   *  @return A negative number, zero, or a positive number if the
+   *  first external id sorts before, with, or after the second.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public int compareExternalDocids (int iid1, int iid2) throws IOException {
+
+    //  Every external id is in the table unless the index has
+    //  documents without one.  Then compare the strings.
+
+    if (this.externalIds.contains (iid1) && this.externalIds.contains (iid2))
+      return this.externalIds.compare (iid1, iid2);
+
+    return getExternalDocid (iid1).compareTo (getExternalDocid (iid2));
+  }
+
+  /**
+   *  Get the length of the specified field in the specified document.
+   *  Lengths are read from the norms once per field and cached (see
+   *  FieldLengths), because scoring needs them for every document.
+   *  @param fieldName Name of field to access lengths.
+   *  @param docid The internal docid in the Lucene index.
+   *  @return the length of the field, including stopword positions.
+   */
+  public long getFieldLength (String fieldName, int docid) {
+    return this.fieldLengths.get (fieldName, docid);
+  }
+
+  /**
+   *  Get the smallest length of the specified field, among documents
+   *  that have the field.  Scoring operators use it to bound scores.
+   *  @param fieldName Name of field to access lengths.
+   *  @return the smallest field length.
+   */
+  public int getMinFieldLength (String fieldName) {
+    return this.fieldLengths.getMinLength (fieldName);
+  }
+
+  /**
+   * Get the internal document id for a document specified by its
+   * external id, e.g. clueweb09-enwp00-88-09710. If no such document
+   * exists, throw an exception.
+   * @param externalId The external docid in the Lucene index.
+   * @return iternal docid.
+   * @throws Exception Could not read the internal document id from the index.
+   */
+  public int getInternalDocid (String externalId) throws Exception {
+
+    int docid = this.internalIds.get (externalId);
+
+    if (docid < 0)
+      throw new Exception ("External id " + externalId + " not found.");
+
+    return docid;
+  }
+
+  /**
+   *  Get the internal document ids for many documents specified by
+   *  their external document ids.  This is much faster than calling
+   *  getInternalDocid for each document, so use it to read run files.
+   *  @param externalIds The external document ids.
+   *  @return The internal document ids, in the same order.
+   *  @throws Exception Error if an external id is not found.
+   */
+  public int[] getInternalDocids (String[] externalIds) throws Exception {
+
+    int[] docids = this.internalIds.get (externalIds);
+
+    for (int i = 0; i < docids.length; i++)
+      if (docids[i] < 0)
+        throw new Exception ("External id " + externalIds[i] + " not found.");
+
+    return docids;
+  }
+
+  /**
+   *  Get the collection statistics of the index.  Scoring code can
+   *  keep the object instead of looking up statistics for each
+   *  document.
+   *  @return The collection statistics.
+   */
+  public CollectionStats getCollectionStats () {
+    return this.stats;
+  }
+
+  /**
+   *  Get the BM25 length normalization of every document (see
+   *  LengthNorms).
+   *  @param fieldName The field name.
+   *  @param k1 The BM25 k1 parameter.
+   *  @param b The BM25 b parameter.
+   *  @return The normalizations, indexed by internal docid.  The
+   *  array is shared, so callers must not change it.
+   */
+  public double[] getBM25LengthNorms (String fieldName, double k1, double b) {
+    return this.lengthNorms.getBM25 (fieldName, k1, b);
+  }
+
+  /**
+   *  Get the block-max index.
+   *  @return The block-max index, or null if it hasn't been built.
+   */
+  public BlockMaxIndex getBlockMaxIndex () {
+    return this.blockMax;
+  }
+
+  /**
+   *  Get the impact-ordered index.
+   *  @return The impact-ordered index, or null if it hasn't been built.
+   */
+  public ImpactIndex getImpactIndex () {
+    return this.impacts;
+  }
+
+  /**
+   *  Get the total number of documents in the corpus.
+   *  @return The total number of documents.
+   */
+  public long getNumDocs () {
+    return this.stats.getNumDocs ();
+  }
+
+  /**
+   *  Get the total number of term occurrences contained in all
+   *  instances of the specified field in the corpus (e.g., add up the
+   *  lengths of every TITLE field in the corpus).
+   *  @param fieldName The field name.
+   *  @return The total number of term occurrence
+   */
+  public long getSumOfFieldLengths (String fieldName) {
+    return this.stats.getFieldStats (fieldName).sumTotalTermFreq;
+  }
+
+  /**
+   *  Get the collection term frequency (ctf) of a term in
+   *  a field (e.g., the total number of times the term 'apple'
+   *  occurs in title fields.
+   *  @param fieldName The field name.
+   *  @param term The term.
+   *  @return The total number of term occurrence
+   */
+  public long getTotalTermFreq (String fieldName, String term) {
+    return this.stats.getTotalTermFreq (new Term (fieldName, new BytesRef (term)));
+  }
+}
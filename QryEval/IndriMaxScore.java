@@ -0,0 +1,191 @@
+/**
+ *  Copyright (c) 2022, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+/**
+ *  MaxScore evaluation for Indri #AND and #WAND operators whose
+ *  arguments are SCORE operators.
+ *  <p>
+ *  An Indri score is a weighted product of argument scores, so in log
+ *  space it is a sum of argument contributions w_i * log(p_i).  A
+ *  matching argument contributes at most the log of its score at the
+ *  list's largest tf and the field's shortest document; an argument
+ *  that doesn't match contributes at most the log of its default
+ *  score for an empty field.  A document that only matches a set S of
+ *  the arguments therefore scores at most the sum of every argument's
+ *  default bound plus, for each argument in S, the gain of its match
+ *  bound over its default bound.  That is the MaxScore setting:
+ *  arguments whose gains add up to less than the top-k threshold are
+ *  non-essential, candidates come from the essential arguments only,
+ *  and a candidate is dropped as soon as its partial score plus the
+ *  bounds of the arguments that haven't been read yet falls below the
+ *  threshold.
+ *  </p><p>
+ *  Candidates that survive are scored with the same log-space
+ *  arithmetic as the operators' getScore methods, in argument order,
+ *  so the top k is identical to exhaustive evaluation.
+ *  </p>
+ */
+public class IndriMaxScore {
+
+  /**
+   *  Log-space bounds are increased by this before they are compared
+   *  to the log of the top-k threshold, so that rounding differences
+   *  between the bounds and the scores can't prune a document that
+   *  belongs in the top k.
+   */
+  private static final double LOG_SLACK = 1e-9;
+
+  /**
+   *  Evaluate an Indri #AND or #WAND and collect the best documents.
+   *  @param args The arguments of the operator; each must be a
+   *  QrySopScore.
+   *  @param weights The weight of each argument's log score.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param topK Collects the best documents.
+   *  @return False if the scores can't be bounded (e.g., lambda and
+   *  mu are both 0), in which case nothing was evaluated and the
+   *  caller must evaluate the operator exhaustively.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public static boolean evaluate (List<Qry> args, double[] weights, RetrievalModel r,
+                                  TopKCollector topK) throws IOException {
+
+    int n = args.size ();
+    QrySopScore[] scorers = new QrySopScore[n];
+    double[] gains = new double[n];
+    double[] upper = new double[n];
+    double base = 0.0;
+    Integer[] order = new Integer[n];
+
+    for (int i = 0; i < n; i++) {
+      scorers[i] = (QrySopScore) args.get (i);
+
+      double matchBound = 0.0;
+      double defaultBound = 0.0;
+
+      if (weights[i] != 0.0) {
+        matchBound = weights[i] * Math.log (scorers[i].getUpperBound (r));
+        defaultBound = weights[i] * Math.log (scorers[i].getDefaultUpperBound (r));
+      }
+
+      if (Double.isNaN (matchBound) || Double.isInfinite (defaultBound) ||
+          Double.isNaN (defaultBound))
+        return false;
+
+      gains[i] = Math.max (0.0, matchBound - defaultBound);
+      upper[i] = defaultBound + gains[i];
+      base += defaultBound;
+      order[i] = i;
+    }
+
+    Arrays.sort (order, (a, b) -> Double.compare (gains[a], gains[b]));
+
+    //  gainSums[j] and upperSums[j] are the sums of the gains and the
+    //  upper bounds of order[0..j-1].
+
+    double[] gainSums = new double[n + 1];
+    double[] upperSums = new double[n + 1];
+
+    for (int j = 0; j < n; j++) {
+      gainSums[j + 1] = gainSums[j] + gains[order[j]];
+      upperSums[j + 1] = upperSums[j] + upper[order[j]];
+    }
+
+    double[] argLogScores = new double[n];
+    int firstEssential = 0;
+
+    while (true) {
+
+      //  The threshold only grows, so arguments only become
+      //  non-essential.
+
+      double threshold = topK.threshold ();
+      double logThreshold = (threshold == Double.NEGATIVE_INFINITY) ?
+        Double.NEGATIVE_INFINITY : Math.log (threshold);
+
+      while ((firstEssential < n) &&
+             (base + gainSums[firstEssential + 1] + LOG_SLACK < logThreshold))
+        firstEssential ++;
+
+      //  The next candidate is the smallest essential docid.
+
+      int docid = Qry.INVALID_DOCID;
+
+      for (int j = firstEssential; j < n; j++) {
+        QrySopScore q_j = scorers[order[j]];
+
+        if (q_j.docIteratorHasMatch (r)) {
+          int d = q_j.docIteratorGetMatch ();
+
+          if ((docid == Qry.INVALID_DOCID) || (d < docid))
+            docid = d;
+        }
+      }
+
+      if (docid == Qry.INVALID_DOCID)
+        break;
+
+      double logScore = 0.0;
+
+      for (int j = firstEssential; j < n; j++) {
+        int i = order[j];
+        argLogScores[i] = score (scorers[i], weights[i], r, docid);
+        logScore += argLogScores[i];
+      }
+
+      boolean pruned = false;
+
+      for (int j = firstEssential - 1; j >= 0; j--) {
+        if (logScore + upperSums[j + 1] + LOG_SLACK < logThreshold) {
+          pruned = true;
+          break;
+        }
+
+        int i = order[j];
+        scorers[i].docIteratorAdvanceTo (docid);
+        argLogScores[i] = score (scorers[i], weights[i], r, docid);
+        logScore += argLogScores[i];
+      }
+
+      if (! pruned) {
+        double score = 0.0;
+
+        for (int i = 0; i < n; i++)
+          score += argLogScores[i];
+
+        topK.add (docid, Math.exp (score));
+      }
+
+      for (int j = firstEssential; j < n; j++)
+        scorers[order[j]].docIteratorAdvancePast (docid);
+    }
+
+    return true;
+  }
+
+  /**
+   *  Get an argument's weighted log score for a document:  its match
+   *  score if its iterator is on the document, otherwise its default
+   *  score.
+   *  @param q The argument.  Its iterator must not be before docid.
+   *  @param weight The weight of the argument's log score.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param docid An internal document id.
+   *  @return The weighted log score.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  private static double score (QrySopScore q, double weight, RetrievalModel r, int docid)
+    throws IOException {
+
+    if (weight == 0.0)
+      return 0.0;
+
+    if (q.docIteratorHasMatch (r) && (q.docIteratorGetMatch () == docid))
+      return weight * q.getLogScore (r);
+    else
+      return weight * q.getLogDefaultScore (r, docid);
+  }
+}
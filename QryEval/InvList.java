@@ -7,17 +7,31 @@ import java.io.*;
 import org.apache.lucene.index.*;
 import org.apache.lucene.util.*;
 import org.apache.lucene.search.*;
+import org.apache.lucene.store.ByteArrayDataInput;
 
 /**
  *  This class implements the inverted list data structure and
  *  provides methods for accessing and manipulating inverted lists.
  *  Its purpose is to provide a simpler view of inverted lists than
  *  Lucene's native implementation.
+ *  <p>
+ *  Postings are stored in a compact columnar layout:  parallel
+ *  arrays of docids and term frequencies, and one flat array of
+ *  positions.  The positions of the n'th posting are stored in
+ *  positions[positionsStart[n] .. positionsStart[n+1]-1].  Query
+ *  operators access postings via getDocid, getTf, and getPosition,
+ *  which do not allocate or box values.
+ *  </p>
  */
 public class InvList {
 
   //  --------------- Constants and variables -----------------------
 
+  /**
+   *  The initial capacity of the posting arrays.  They grow as needed.
+   */
+  private static final int INITIAL_CAPACITY = 16;
+
   /**
    *  Collection term frequency: The number of times that a term
    *  occurs across all instances of the specified field.
@@ -36,50 +50,32 @@ public class InvList {
   public String field;
 
   /**
-   *  Postings that contain information about the occurrence of the
-   *  term in individual documents.
+   *  Whether the inverted list stores term positions.  Lists that are
+   *  only used for scoring store docids and term frequencies.
    */
-  public Vector<DocPosting> postings = new Vector<DocPosting>();
-
-  //  --------------- Nested classes --------------------------------
+  private boolean hasPositions = true;
 
   /**
-   *  Utility class that makes it easier to construct postings.
+   *  The internal document ids of the postings, in ascending order.
    */
-  public class DocPosting {
-
-    /**
-     *  The internal id of a document that contains the term in
-     *  the specified field.
-     */
-    public int docid = 0;
-
-    /**
-     *  Term frequency:  The number of times the term occurs in
-     *  the specified field of the document.
-     */
-    public int tf = 0;
+  private int[] docids = new int[INITIAL_CAPACITY];
 
-    /**
-     *  The locations where the term occurs in the specified field
-     *  of the document.
-     */
-    public Vector<Integer> positions = new Vector<Integer>();
+  /**
+   *  The term frequency of each posting.
+   */
+  private int[] tfs = new int[INITIAL_CAPACITY];
 
-    public DocPosting(int docid, int... locations) {
-      this.docid = docid;
-      this.tf = locations.length;
-      for (int i = 0; i < locations.length; i++)
-        this.positions.add(locations[i]);
-    }
+  /**
+   *  The offset of each posting's first position in the positions
+   *  array.  It has df+1 valid entries, so that the positions of
+   *  posting n end just before positionsStart[n+1].
+   */
+  private int[] positionsStart = new int[INITIAL_CAPACITY + 1];
 
-    public DocPosting(int docid, List<Integer> locations) {
-      this.docid = docid;
-      this.tf = locations.size();
-      for (int i = 0; i < locations.size(); i++)
-        this.positions.add(locations.get(i));
-    }
-  }
+  /**
+   *  The locations where the term occurs, for all postings.
+   */
+  private int[] positions = new int[INITIAL_CAPACITY];
 
   //  --------------- Methods ---------------------------------------
 
@@ -97,6 +93,16 @@ public class InvList {
     this.field = new String (fieldString);
   }
 
+  /**
+   *  Get an empty inverted list.
+   *  @param fieldString The field that the term occurs in.
+   *  @param positions Whether the list stores term positions.
+   */
+  public InvList(String fieldString, boolean positions) {
+    this.field = new String (fieldString);
+    this.hasPositions = positions;
+  }
+
   /**
    *  Get an inverted list from the index.
    *  @param termString The processed (stemmed, lower-cased, etc) term string.
@@ -104,26 +110,89 @@ public class InvList {
    *  @throws IOException Error accessing the Lucene index.
    */
   public InvList(String termString, String fieldString) throws IOException {
+    this (termString, fieldString, true);
+  }
+
+  /**
+   *  Get an inverted list from the current index.  Decoding positions
+   *  is a large part of the cost of reading postings, so they are
+   *  only read if the caller needs them.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @param positions Whether to read term positions.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public InvList(String termString, String fieldString, boolean positions)
+    throws IOException {
+    this (Idx.getIndexContext (), termString, fieldString, positions);
+  }
+
+  /**
+   *  Get an inverted list from an index.
+   *  @param index The index.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @param positions Whether to read term positions.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public InvList(IndexContext index, String termString, String fieldString,
+                 boolean positions)
+    throws IOException {
+    this (index, termString, fieldString, positions, 0, Integer.MAX_VALUE);
+  }
+
+  /**
+   *  Get the part of an inverted list that is in a range of docids.
+   *  Segments that are outside of the range aren't read.
+   *  @param index The index.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @param positions Whether to read term positions.
+   *  @param minDocid The first internal docid of the range.
+   *  @param maxDocid The internal docid after the range.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public InvList(IndexContext index, String termString, String fieldString,
+                 boolean positions, int minDocid, int maxDocid)
+    throws IOException {
 
     //  Store the field name.  This is used by other query operators.
 
     this.field = new String (fieldString);
+    this.hasPositions = positions;
 
     //  Prepare to access the index.
 
     BytesRef termBytes = new BytesRef(termString);
     Term term = new Term(fieldString, termBytes);
 
-    if (Idx.INDEXREADER.docFreq(term) < 1)
+    IndexReader reader = index.getReader();
+    int termDf = reader.docFreq(term);
+
+    if (termDf < 1)
       return;
 
+    //  The df and ctf of the whole list are known in advance, so the
+    //  arrays can be allocated once, at their final size.
+
+    if ((minDocid <= 0) && (maxDocid >= reader.maxDoc())) {
+      long termCtf = reader.totalTermFreq(term);
+
+      this.ensureCapacity (termDf, positions ? (int) termCtf : 0);
+    }
+
     //  Lucene indexes have segments, so postings must be retrieved
     //  from each segment.  Some segments may have no postings.
 
-    for (LeafReaderContext context : Idx.INDEXREADER.leaves()) {
+    for (LeafReaderContext context : reader.leaves()) {
+
+      if ((context.docBase >= maxDocid) ||
+          (context.docBase + context.reader().maxDoc() <= minDocid))
+        continue;
 
       PostingsEnum postings =
-	context.reader().postings (term, PostingsEnum.POSITIONS);
+	context.reader().postings (term, positions ? PostingsEnum.POSITIONS
+                                                   : PostingsEnum.FREQS);
 
       if (postings != null) {
 
@@ -132,18 +201,24 @@ public class InvList {
 	//  operators such as #SYN and #NEAR/n to be insulated from the
 	//  details of Lucene inverted list implementations.
 
-	while (postings.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+	int leafMaxDocid = maxDocid - context.docBase;
+
+	for (int leafDocid = postings.advance (Math.max (minDocid - context.docBase, 0));
+	     leafDocid < leafMaxDocid;
+	     leafDocid = postings.nextDoc()) {
 
-	  int docid = context.docBase + postings.docID();
 	  int tf = postings.freq();
-	  int[] positions = new int[tf];
 
-	  for (int j = 0; j < tf; j++)
-	    positions[j] = postings.nextPosition();
+	  if (positions) {
+	    this.ensureCapacity (this.df + 1, this.ctf + tf);
+
+	    for (int j = 0; j < tf; j++)
+	      this.positions[this.ctf + j] = postings.nextPosition();
+	  } else {
+	    this.ensureCapacity (this.df + 1, 0);
+	  }
 
-	  this.postings.add(new DocPosting(docid, positions));
-	  this.df++;
-	  this.ctf += tf;
+	  this.finishPosting (context.docBase + postings.docID(), tf);
 	}
       }
     }
@@ -157,29 +232,236 @@ public class InvList {
    *  @return true if the posting was added successfully, otherwise false.
    */
   public boolean appendPosting (int docid, List<Integer> positions) {
-    
-    //  A posting can only be appended if its docid is greater than
-    //  the last docid.
 
-    if ((this.df > 1) &&
-	(this.postings.get(this.df-1).docid >= docid))
+    if (! this.canAppend (docid))
       return false;
 
-    DocPosting p = new DocPosting (docid, positions);
+    int tf = positions.size();
 
-    this.postings.add (p);
-    this.df ++;
-    this.ctf += p.tf;
+    this.ensureCapacity (this.df + 1, this.ctf + tf);
+
+    for (int j = 0; j < tf; j++)
+      this.positions[this.ctf + j] = positions.get(j);
+
+    this.finishPosting (docid, tf);
     return true;
   }
 
+  /**
+   *  Append a posting to the posting list.  Posting must be appended
+   *  in docid order, otherwise this method fails.
+   *  @param docid The internal document id of the posting.
+   *  @param positions An array that contains the positions where the
+   *         term occurs.  It may be longer than tf; only the first tf
+   *         entries are used.
+   *  @param tf The number of positions to append.
+   *  @return true if the posting was added successfully, otherwise false.
+   */
+  public boolean appendPosting (int docid, int[] positions, int tf) {
+
+    if (! this.canAppend (docid))
+      return false;
+
+    this.ensureCapacity (this.df + 1, this.ctf + tf);
+    System.arraycopy (positions, 0, this.positions, this.ctf, tf);
+    this.finishPosting (docid, tf);
+    return true;
+  }
+
+  /**
+   *  Append a posting without positions to the posting list.  Posting
+   *  must be appended in docid order, otherwise this method fails.
+   *  @param docid The internal document id of the posting.
+   *  @param tf The term frequency of the posting.
+   *  @return true if the posting was added successfully, otherwise false.
+   *  @throws IllegalStateException The inverted list stores positions.
+   */
+  public boolean appendPosting (int docid, int tf) {
+
+    if (this.hasPositions)
+      throw new IllegalStateException ("This inverted list requires positions.");
+
+    if (! this.canAppend (docid))
+      return false;
+
+    this.ensureCapacity (this.df + 1, 0);
+    this.finishPosting (docid, tf);
+    return true;
+  }
+
+  /**
+   *  A posting can only be appended if its docid is greater than
+   *  the last docid.
+   *  @param docid The internal document id of the new posting.
+   *  @return true if the docid can be appended, otherwise false.
+   */
+  private boolean canAppend (int docid) {
+    return ((this.df == 0) || (this.docids[this.df-1] < docid));
+  }
+
+  /**
+   *  Record the docid and tf of a posting whose positions have
+   *  already been copied into the positions array.
+   *  @param docid The internal document id of the posting.
+   *  @param tf The term frequency of the posting.
+   */
+  private void finishPosting (int docid, int tf) {
+    this.docids[this.df] = docid;
+    this.tfs[this.df] = tf;
+    this.df ++;
+    this.ctf += tf;
+    this.positionsStart[this.df] = this.hasPositions ? this.ctf : 0;
+  }
+
+  /**
+   *  Make sure that the posting arrays can hold the specified number
+   *  of postings and positions.
+   *  @param numPostings The number of postings that must fit.
+   *  @param numPositions The number of positions that must fit.
+   */
+  private void ensureCapacity (int numPostings, int numPositions) {
+
+    if (numPostings > this.docids.length) {
+      int capacity = Math.max (numPostings, 2 * this.docids.length);
+      this.docids = Arrays.copyOf (this.docids, capacity);
+      this.tfs = Arrays.copyOf (this.tfs, capacity);
+      this.positionsStart = Arrays.copyOf (this.positionsStart, capacity + 1);
+    }
+
+    if (numPositions > this.positions.length) {
+      int capacity = Math.max (numPositions, 2 * this.positions.length);
+      this.positions = Arrays.copyOf (this.positions, capacity);
+    }
+  }
+
+  /**
+   *  Find the first posting at or after index from whose docid is
+   *  at least the specified docid.  An exponential (galloping) search
+   *  is used, so the cost is logarithmic in the distance skipped
+   *  rather than linear.
+   *  @param from The index of the posting to start searching from.
+   *  @param docid The internal document id to search for.
+   *  @return The index of the posting, or df if there is none.
+   */
+  public int findDocid(int from, int docid) {
+    return gallop (this.docids, from, this.df, docid);
+  }
+
+  /**
+   *  Find the first location at or after index from in the n'th
+   *  posting that is at least the specified position.  An
+   *  exponential (galloping) search is used.
+   *  @param n The index of the posting.
+   *  @param from The index of the location to start searching from.
+   *  @param position The position to search for.
+   *  @return The index of the location, or tf if there is none.
+   */
+  public int findPosition(int n, int from, int position) {
+    int start = this.positionsStart[n];
+    return gallop (this.positions, start + from, start + this.tfs[n], position) - start;
+  }
+
+  /**
+   *  Exponential search in a sorted array region.  The search probes
+   *  from+1, from+2, from+4, ... until it passes the target, and then
+   *  does a binary search within the last step.
+   *  @param a A sorted array.
+   *  @param from The first index of the region to search.
+   *  @param to The index just past the end of the region.
+   *  @param target The value to search for.
+   *  @return The smallest index i in [from, to) with a[i] &gt;= target,
+   *          or to if there is none.
+   */
+  static int gallop(int[] a, int from, int to, int target) {
+
+    if ((from >= to) || (a[from] >= target))
+      return from;
+
+    //  Invariant: a[lo] < target.  Double the step until a[hi] >=
+    //  target or the end of the region is reached.
+
+    int lo = from;
+    int step = 1;
+    int hi = from + 1;
+
+    while ((hi < to) && (a[hi] < target)) {
+      lo = hi;
+      step <<= 1;
+      hi = (to - lo > step) ? lo + step : to;
+    }
+
+    //  Binary search in (lo, hi] for the first value >= target.
+
+    lo ++;
+
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+
+      if (a[mid] < target) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+
+    return lo;
+  }
+
   /**
    *  Get the n'th document id from the inverted list.
-   *  @param docid The index of the requested document.
+   *  @param n The index of the requested document.
    *  @return The internal document id.
    */
-  public int getDocid(int docid) {
-    return this.postings.get(docid).docid;
+  public int getDocid(int n) {
+    return this.docids[n];
+  }
+
+  /**
+   *  Get the j'th position in the n'th document of the inverted list.
+   *  @param n The index of the requested document.
+   *  @param j The index of the requested position, 0 &lt;= j &lt; tf.
+   *  @return The position.
+   */
+  public int getPosition(int n, int j) {
+    return this.positions[this.positionsStart[n] + j];
+  }
+
+  /**
+   *  Copy the positions of the n'th document of the inverted list
+   *  into an array.
+   *  @param n The index of the requested document.
+   *  @param dest The destination array.
+   *  @param destPos The starting position in the destination array.
+   *  @return The number of positions copied (the tf).
+   */
+  public int getPositions(int n, int[] dest, int destPos) {
+    if (! this.hasPositions)
+      throw new IllegalStateException ("This inverted list has no positions.");
+
+    int tf = this.tfs[n];
+    System.arraycopy (this.positions, this.positionsStart[n], dest, destPos, tf);
+    return tf;
+  }
+
+  /**
+   *  Whether the inverted list stores term positions.
+   *  @return True if positions are available.
+   */
+  public boolean hasPositions() {
+    return this.hasPositions;
+  }
+
+  /**
+   *  Get the largest term frequency in the inverted list.
+   *  @return The largest tf, or 0 if the list is empty.
+   */
+  public int getMaxTf() {
+    int maxTf = 0;
+
+    for (int n = 0; n < this.df; n++)
+      maxTf = Math.max (maxTf, this.tfs[n]);
+
+    return maxTf;
   }
 
   /**
@@ -188,7 +470,121 @@ public class InvList {
    *  @return The document's term frequency.
    */
   public int getTf(int n) {
-    return this.postings.get(n).tf;
+    return this.tfs[n];
+  }
+
+  /**
+   *  Get an upper bound on the size of the encoded inverted list (see
+   *  encode):  at most 5 bytes per number.  It is a long, because it
+   *  can exceed the largest array for a very frequent term.
+   *  @return The largest possible size of the encoded list, in bytes.
+   */
+  public long maxEncodedSize() {
+    return 5L * (3L + 2L * this.df + this.positionsStart[this.df]);
+  }
+
+  /**
+   *  Encode the inverted list in a compact byte format:  docids are
+   *  stored as gaps, positions as gaps within each document, and all
+   *  numbers as variable-length integers (7 bits per byte).  The field
+   *  name is not stored.
+   *  @return The encoded inverted list.
+   *  @throws IllegalStateException The list is too large to encode
+   *  in an array (see maxEncodedSize).
+   */
+  public byte[] encode() {
+
+    long maxSize = maxEncodedSize ();
+
+    if (maxSize > Integer.MAX_VALUE)
+      throw new IllegalStateException ("The inverted list is too large to encode.");
+
+    byte[] buffer = new byte[(int) maxSize];
+    int length = 0;
+
+    length = writeVInt (buffer, length, this.df);
+    length = writeVInt (buffer, length, this.ctf);
+    buffer[length++] = (byte) (this.hasPositions ? 1 : 0);
+
+    int prevDocid = 0;
+
+    for (int n = 0; n < this.df; n++) {
+      length = writeVInt (buffer, length, this.docids[n] - prevDocid);
+      length = writeVInt (buffer, length, this.tfs[n]);
+      prevDocid = this.docids[n];
+
+      if (this.hasPositions) {
+        int prevPosition = 0;
+
+        for (int j = this.positionsStart[n]; j < this.positionsStart[n+1]; j++) {
+          length = writeVInt (buffer, length, this.positions[j] - prevPosition);
+          prevPosition = this.positions[j];
+        }
+      }
+    }
+
+    return Arrays.copyOf (buffer, length);
+  }
+
+  /**
+   *  Write a non-negative integer in 7-bit variable-length format.
+   *  @param buffer The destination array.
+   *  @param pos Where to write the integer.
+   *  @param value The integer.
+   *  @return The position after the integer.
+   */
+  private static int writeVInt (byte[] buffer, int pos, int value) {
+    while ((value & ~0x7f) != 0) {
+      buffer[pos++] = (byte) ((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+
+    buffer[pos++] = (byte) value;
+    return pos;
+  }
+
+  /**
+   *  Decode an inverted list that was encoded by encode.
+   *  @param fieldString The field that the term occurs in.
+   *  @param bytes The encoded inverted list.
+   *  @param positions Whether to decode term positions.  If the
+   *         encoded list has no positions, this must be false.
+   *  @return The inverted list.
+   */
+  public static InvList decode(String fieldString, byte[] bytes, boolean positions) {
+
+    ByteArrayDataInput in = new ByteArrayDataInput (bytes);
+    int df = in.readVInt ();
+    int ctf = in.readVInt ();
+    boolean encodedPositions = (in.readByte () != 0);
+
+    if (positions && ! encodedPositions)
+      throw new IllegalArgumentException ("The encoded inverted list has no positions.");
+
+    InvList list = new InvList (fieldString, positions);
+    list.ensureCapacity (df, positions ? ctf : 0);
+
+    int docid = 0;
+
+    for (int n = 0; n < df; n++) {
+      docid += in.readVInt ();
+      int tf = in.readVInt ();
+
+      if (encodedPositions) {
+        int position = 0;
+
+        for (int j = 0; j < tf; j++) {
+          position += in.readVInt ();
+
+          if (positions)
+            list.positions[list.ctf + j] = position;
+        }
+      }
+
+      list.finishPosting (docid, tf);
+    }
+
+    return list;
   }
 
   /**
@@ -199,11 +595,11 @@ public class InvList {
     System.out.println("df:  " + this.df + ", ctf: " + this.ctf);
 
     for (int i = 0; i < this.df; i++) {
-      System.out.print("docid:  " + this.postings.elementAt(i).docid + ", tf: "
-          + this.postings.elementAt(i).tf + ", locs: ");
+      System.out.print("docid:  " + this.getDocid(i) + ", tf: "
+          + this.getTf(i) + ", locs: ");
 
-      for (int j = 0; j < this.postings.elementAt(i).tf; j++) {
-        System.out.print(this.postings.elementAt(i).positions.elementAt(j) + " ");
+      for (int j = 0; this.hasPositions && (j < this.getTf(i)); j++) {
+        System.out.print(this.getPosition(i, j) + " ");
       }
 
       System.out.println();
@@ -0,0 +1,196 @@
+/**
+ *  Copyright (c) 2022, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.index.IndexReader;
+
+/**
+ *  A process-wide cache of term inverted lists.  Query logs repeat
+ *  the same frequent terms many times, so TERM operators keep the
+ *  inverted lists that they read from Lucene here, and later queries
+ *  decode them instead of reading Lucene postings again.
+ *  <p>
+ *  Lists are stored in the compact format of InvList.encode.  The
+ *  cache holds at most a configurable number of bytes (see
+ *  setBudget); when it is full, the least recently used lists are
+ *  evicted.  A budget of 0 disables the cache.  A list that was
+ *  cached with positions also serves requests that don't need them.
+ *  </p>
+ */
+public class InvListCache {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  An estimate of the memory used by a cache entry, in addition to
+   *  the encoded list and the term.
+   */
+  private static final int ENTRY_OVERHEAD = 96;
+
+  private static long budget = 0;
+  private static long bytes = 0;
+
+  private static long hits = 0;
+  private static long misses = 0;
+  private static long evictions = 0;
+
+  private static final LinkedHashMap<Key,byte[]> lists =
+    new LinkedHashMap<Key,byte[]> (16, 0.75f, true);
+
+  /**
+   *  A cache key.  Lists from different indexes are different entries.
+   */
+  private static final class Key {
+    private final IndexReader reader;
+    private final String term;
+    private final String field;
+    private final boolean positions;
+
+    private Key (IndexReader reader, String term, String field, boolean positions) {
+      this.reader = reader;
+      this.term = term;
+      this.field = field;
+      this.positions = positions;
+    }
+
+    public boolean equals (Object o) {
+      if (! (o instanceof Key))
+        return false;
+
+      Key k = (Key) o;
+      return ((this.reader == k.reader) && (this.positions == k.positions) &&
+              this.term.equals (k.term) && this.field.equals (k.field));
+    }
+
+    public int hashCode () {
+      return (31 * (31 * this.term.hashCode () + this.field.hashCode ()) +
+              (this.positions ? 1 : 0));
+    }
+
+    private long size (byte[] list) {
+      return ENTRY_OVERHEAD + 2 * (this.term.length () + this.field.length ()) +
+             list.length;
+    }
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Set the maximum size of the cache.  Lists are evicted if the
+   *  cache is already larger.
+   *  @param maxBytes The maximum number of bytes; 0 disables the cache.
+   */
+  public static synchronized void setBudget (long maxBytes) {
+    budget = maxBytes;
+    evict ();
+  }
+
+  /**
+   *  Whether the cache is enabled.
+   *  @return True if the cache has a budget.
+   */
+  public static synchronized boolean isEnabled () {
+    return (budget > 0);
+  }
+
+  /**
+   *  Get the inverted list of a term in an index, from the cache if
+   *  possible, otherwise from the index.
+   *  @param index The index.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @param positions Whether the list must have term positions.
+   *  @return The inverted list.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static InvList get (IndexContext index, String termString, String fieldString,
+                             boolean positions)
+    throws IOException {
+
+    Key key = new Key (index.getReader (), termString, fieldString, positions);
+    byte[] list = lookup (key);
+
+    if ((list == null) && ! positions) {
+      list = lookup (new Key (index.getReader (), termString, fieldString, true));
+    }
+
+    synchronized (InvListCache.class) {
+      if (list != null)
+        hits ++;
+      else
+        misses ++;
+    }
+
+    if (list != null)
+      return InvList.decode (fieldString, list, positions);
+
+    //  Read the list outside of the lock, so that other threads can
+    //  use the cache meanwhile.  A list whose encoding might not fit
+    //  in an array isn't cached; put checks the encoded size against
+    //  the budget.
+
+    InvList invList = new InvList (index, termString, fieldString, positions);
+
+    if (invList.maxEncodedSize () <= Integer.MAX_VALUE)
+      put (key, invList.encode ());
+
+    return invList;
+  }
+
+  /**
+   *  Look up a list without counting a hit or miss.
+   *  @param key The cache key.
+   *  @return The encoded list, or null.
+   */
+  private static synchronized byte[] lookup (Key key) {
+    return lists.get (key);
+  }
+
+  /**
+   *  Add a list to the cache and evict lists if the cache is too large.
+   *  Lists that are larger than the whole budget are not cached.
+   *  @param key The cache key.
+   *  @param list The encoded list.
+   */
+  private static synchronized void put (Key key, byte[] list) {
+
+    if (key.size (list) > budget)
+      return;
+
+    byte[] old = lists.put (key, list);
+
+    if (old != null)
+      bytes -= key.size (old);
+
+    bytes += key.size (list);
+    evict ();
+  }
+
+  /**
+   *  Evict the least recently used lists until the cache fits in its
+   *  budget.
+   */
+  private static synchronized void evict () {
+
+    Iterator<Map.Entry<Key,byte[]>> it = lists.entrySet ().iterator ();
+
+    while ((bytes > budget) && it.hasNext ()) {
+      Map.Entry<Key,byte[]> entry = it.next ();
+      bytes -= entry.getKey ().size (entry.getValue ());
+      evictions ++;
+      it.remove ();
+    }
+  }
+
+  /**
+   *  Get a summary of the cache statistics.
+   *  @return A string that describes the cache's use.
+   */
+  public static synchronized String statistics () {
+    return ("InvList cache:  " + hits + " hits, " + misses + " misses, " +
+            evictions + " evictions, " + lists.size () + " lists, " +
+            bytes + " of " + budget + " bytes");
+  }
+}
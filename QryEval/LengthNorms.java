@@ -0,0 +1,88 @@
+/**
+ *  Copyright (c) 2022, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ *  A cache of per-document BM25 length normalizations.  The BM25
+ *  score of a term in a document is
+ *  <pre>
+ *    idf * tf / (tf + k1 * ((1 - b) + b * length / avgLength))
+ *  </pre>
+ *  The denominator's second term depends only on the document, the
+ *  field and the BM25 parameters, so it is computed once for every
+ *  document the first time that a field is scored with a (k1, b)
+ *  pair, and shared by every query after that.
+ *  <p>
+ *  The table is stored in double precision, with the same arithmetic
+ *  as QrySopScore always used, so that scores (and the score bounds
+ *  that dynamic pruning compares them to) don't change.  It uses 8
+ *  bytes per document for each field and (k1, b) pair.
+ *  </p>
+ */
+public class LengthNorms {
+
+  //  --------------- Constants and variables ---------------------
+
+  private final FieldLengths fieldLengths;
+  private final CollectionStats stats;
+
+  /**
+   *  The normalizations, keyed by field, k1 and b.
+   */
+  private final ConcurrentHashMap<String,double[]> norms =
+    new ConcurrentHashMap<String,double[]> ();
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  @param fieldLengths The index's field lengths.
+   *  @param stats The index's collection statistics.
+   */
+  public LengthNorms (FieldLengths fieldLengths, CollectionStats stats) {
+    this.fieldLengths = fieldLengths;
+    this.stats = stats;
+  }
+
+  /**
+   *  Get the BM25 length normalization of every document.  The array
+   *  is shared, so callers must not change it.
+   *  @param fieldName The field name.
+   *  @param k1 The BM25 k1 parameter.
+   *  @param b The BM25 b parameter.
+   *  @return k1 * ((1 - b) + b * length / avgLength), indexed by
+   *  internal docid.
+   */
+  public double[] getBM25 (String fieldName, double k1, double b) {
+
+    String key = fieldName + "\0" + k1 + "\0" + b;
+    double[] fieldNorms = this.norms.get (key);
+
+    if (fieldNorms == null) {
+      fieldNorms = this.norms.computeIfAbsent (key, k -> this.loadBM25 (fieldName, k1, b));
+    }
+
+    return fieldNorms;
+  }
+
+  /**
+   *  Compute the BM25 length normalization of every document.
+   *  @param fieldName The field name.
+   *  @param k1 The BM25 k1 parameter.
+   *  @param b The BM25 b parameter.
+   *  @return The normalizations, indexed by internal docid.
+   */
+  private double[] loadBM25 (String fieldName, double k1, double b) {
+
+    int[] lengths = this.fieldLengths.getLengths (fieldName);
+    double avg_doclen = this.stats.getFieldStats (fieldName).avgLength;
+    double[] fieldNorms = new double[lengths.length];
+
+    for (int docid = 0; docid < lengths.length; docid++) {
+      double doclen_d = lengths[docid];
+      fieldNorms[docid] = k1*((1-b)+b*(doclen_d/avg_doclen));
+    }
+
+    return fieldNorms;
+  }
+}
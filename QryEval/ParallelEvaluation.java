@@ -0,0 +1,235 @@
+/**
+ *  Copyright (c) 2022, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ *  Intra-query parallel evaluation.  The index's docids are divided
+ *  into one contiguous range per thread, and the query tree is
+ *  instantiated once per range:  the query string is parsed again,
+ *  and the copy's TERM operators only read postings from the range
+ *  (see QryIopTerm.setDocidRange).  The copies are initialized and
+ *  evaluated on a fork-join pool, each into its own top-k collector,
+ *  and the collectors are merged.
+ *  <p>
+ *  Scores must use the whole index's statistics, not a range's, so
+ *  that they are identical to serial evaluation.  After the copies
+ *  are initialized, the df and ctf of each SCORE operator's argument
+ *  are set in every copy (see QrySopScore.initializeStatistics).  A
+ *  TERM operator's come from the index.  Other inverted lists (e.g.,
+ *  #NEAR/n) are only known in parts, but each document is in one
+ *  range, so their df and ctf are the sums of the ranges'.
+ *  </p><p>
+ *  A document that is in the top k of the whole index is also in the
+ *  top k of its range, and ties are broken by external docid, so the
+ *  merged results are the same as serial evaluation's.  Dynamic
+ *  pruning works in each range with that range's threshold.
+ *  Score-at-a-time evaluation reads the impact-ordered index instead
+ *  of the query tree, so it isn't evaluated in parallel.
+ *  </p>
+ */
+public class ParallelEvaluation {
+
+  //  --------------- Constants and variables ---------------------
+
+  private static int threads = 1;
+  private static ForkJoinPool pool = null;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Set the number of threads that evaluate each query.
+   *  @param numThreads The number of threads.  1 disables parallel
+   *  evaluation.
+   *  @throws IllegalArgumentException numThreads isn't positive.
+   */
+  public static synchronized void setThreads (int numThreads) {
+
+    if (numThreads < 1)
+      throw new IllegalArgumentException ("The number of threads must be positive.");
+
+    if (pool != null) {
+      pool.shutdown ();
+      pool = null;
+    }
+
+    threads = numThreads;
+
+    if (threads > 1)
+      pool = new ForkJoinPool (threads);
+  }
+
+  /**
+   *  Whether queries are evaluated in parallel.
+   *  @return True if more than one thread evaluates each query.
+   */
+  public static synchronized boolean isEnabled () {
+    return (pool != null);
+  }
+
+  /**
+   *  Evaluate a query in parallel and collect the best documents.
+   *  @param index The index.
+   *  @param q The query tree, which isn't initialized yet.  It is the
+   *  copy for the first range.
+   *  @param qString The query string that q was parsed from.
+   *  @param r The retrieval model.
+   *  @param k The number of documents to collect.
+   *  @param topK Collects the best documents.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static void evaluate (IndexContext index, Qry q, String qString,
+                               RetrievalModel r, int k, TopKCollector topK)
+    throws IOException {
+
+    ForkJoinPool pool;
+    int n;
+
+    synchronized (ParallelEvaluation.class) {
+      pool = ParallelEvaluation.pool;
+      n = ParallelEvaluation.threads;
+    }
+
+    //  Instantiate the query once per range of docids.
+
+    int maxDoc = index.maxDoc ();
+    Qry[] copies = new Qry[n];
+
+    for (int i = 0; i < n; i++) {
+      copies[i] = (i == 0) ? q : QryParser.getQuery (qString, index, r, false);
+      setDocidRange (copies[i],
+                     (int) ((long) maxDoc * i / n),
+                     (int) ((long) maxDoc * (i + 1) / n));
+    }
+
+    //  Initialize the copies, and then give them the whole index's
+    //  statistics.
+
+    List<Callable<Qry>> initializers = new ArrayList<Callable<Qry>> ();
+
+    for (Qry copy : copies) {
+      initializers.add (() -> { copy.initialize (index, r); return copy; });
+    }
+
+    invokeAll (pool, initializers);
+    setStatistics (index, copies, r);
+
+    //  Evaluate the copies, and merge their results.
+
+    List<Callable<ScoreList>> evaluators = new ArrayList<Callable<ScoreList>> ();
+
+    for (Qry copy : copies) {
+      evaluators.add (() -> {
+          TopKCollector rangeTopK = new TopKCollector (index, k);
+          QryEval.evaluateQuery (copy, r, rangeTopK);
+          return rangeTopK.getScoreList ();
+        });
+    }
+
+    for (ScoreList results : invokeAll (pool, evaluators)) {
+      for (int i = 0; i < results.size (); i++)
+        topK.add (results.getDocid (i), results.getDocidScore (i));
+    }
+  }
+
+  /**
+   *  Run tasks on a pool, and wait for them to finish.
+   *  @param pool The pool.
+   *  @param tasks The tasks.
+   *  @return The results of the tasks, in order.
+   *  @throws IOException A task failed to access the Lucene index, or
+   *  the thread was interrupted.
+   */
+  private static <T> List<T> invokeAll (ForkJoinPool pool, List<Callable<T>> tasks)
+    throws IOException {
+
+    List<T> results = new ArrayList<T> ();
+
+    for (Future<T> result : pool.invokeAll (tasks))
+      results.add (Utils.getResult (result));
+
+    return results;
+  }
+
+  /**
+   *  Restrict the TERM operators of a query to a range of docids.
+   *  @param q The query.
+   *  @param minDocid The first internal docid of the range.
+   *  @param maxDocid The internal docid after the range.
+   */
+  private static void setDocidRange (Qry q, int minDocid, int maxDocid) {
+
+    if (q instanceof QryIopTerm)
+      ((QryIopTerm) q).setDocidRange (minDocid, maxDocid);
+
+    for (Qry q_i : q.args)
+      setDocidRange (q_i, minDocid, maxDocid);
+  }
+
+  /**
+   *  Set the whole index's df and ctf in the SCORE operators of
+   *  initialized copies of a query.
+   *  @param index The index.
+   *  @param copies The copies, which are restricted to different
+   *  ranges of docids that cover the index.
+   *  @param r The retrieval model.
+   *  @throws IOException Error accessing the Lucene index.
+   *  @throws IllegalStateException The copies aren't the same query.
+   */
+  private static void setStatistics (IndexContext index, Qry[] copies,
+                                     RetrievalModel r)
+    throws IOException {
+
+    List<List<QrySopScore>> scoreOps = new ArrayList<List<QrySopScore>> ();
+
+    for (Qry copy : copies) {
+      List<QrySopScore> ops = new ArrayList<QrySopScore> ();
+      getScoreOperators (copy, ops);
+      scoreOps.add (ops);
+
+      if (ops.size () != scoreOps.get (0).size ())
+        throw new IllegalStateException ("The copies of a query differ.");
+    }
+
+    for (int j = 0; j < scoreOps.get (0).size (); j++) {
+      QryIop q_j = (QryIop) scoreOps.get (0).get (j).args.get (0);
+      int df = 0;
+      int ctf = 0;
+
+      if (q_j instanceof QryIopTerm) {
+        String term = ((QryIopTerm) q_j).getTerm ();
+        df = (int) index.getDocFreq (q_j.getField (), term);
+        ctf = (int) index.getTotalTermFreq (q_j.getField (), term);
+      } else {
+        for (List<QrySopScore> ops : scoreOps) {
+          QryIop q_ij = (QryIop) ops.get (j).args.get (0);
+          df += q_ij.getDf ();
+          ctf += q_ij.getCtf ();
+        }
+      }
+
+      for (List<QrySopScore> ops : scoreOps)
+        ops.get (j).initializeStatistics (r, df, ctf);
+    }
+  }
+
+  /**
+   *  Get the SCORE operators of a query, in prefix order.
+   *  @param q The query.
+   *  @param ops The SCORE operators are added here.
+   */
+  private static void getScoreOperators (Qry q, List<QrySopScore> ops) {
+
+    if (q instanceof QrySopScore) {
+      ops.add ((QrySopScore) q);
+      return;
+    }
+
+    if (q instanceof QrySop) {
+      for (Qry q_i : q.args)
+        getScoreOperators (q_i, ops);
+    }
+  }
+}
@@ -101,6 +101,16 @@ public abstract class Qry {
   private int matchingDocid;
   private double weight = 1;
 
+  /**
+   *  The order in which docIteratorAdvanceToAll visits the arguments.
+   */
+  private int[] conjunctionOrder = null;
+
+  /**
+   *  The index that the query operator was initialized with.
+   */
+  protected IndexContext index = null;
+
   //  --------------- Methods ---------------------------------------
 
   /**
@@ -243,57 +253,123 @@ public abstract class Qry {
   /**
    *  An instantiation of docIteratorHasMatch that is true if the
    *  query has a document that matches all query arguments; some
-   *  subclasses may choose to use this implementation.  
+   *  subclasses may choose to use this implementation.  The match is
+   *  found by docIteratorAdvanceToAll.
    *  @param r The retrieval model that determines what is a match
    *  @return True if the query matches, otherwise false.
    */
   protected boolean docIteratorHasMatchAll (RetrievalModel r) {
 
-    boolean matchFound = false;
+    int docid = this.docIteratorAdvanceToAll (r);
 
-    // Keep trying until a match is found or no match is possible.
+    if (docid == Qry.INVALID_DOCID)
+      return false;
 
-    while (! matchFound) {
+    docIteratorSetMatchCache (docid);
+    return true;
+  }
 
-      // Get the docid of the first query argument.
-      
-      Qry q_0 = this.args.get (0);
+  /**
+   *  Advance every query argument to the next document that all of
+   *  them match.  This is a leapfrog intersection:  the arguments are
+   *  visited from the cheapest (see getCost) to the most expensive,
+   *  and each one is advanced to the largest docid seen so far,
+   *  until they agree.  Starting with the rarest argument means that
+   *  frequent arguments are advanced in large skips, rather than
+   *  anchoring on whichever argument happens to be first.
+   *  @param r The retrieval model that determines what is a match
+   *  @return The docid that all arguments match, or INVALID_DOCID if
+   *  there are no more matches.
+   */
+  protected int docIteratorAdvanceToAll (RetrievalModel r) {
 
-      if (! q_0.docIteratorHasMatch (r)) {
-	return false;
-      }
+    int[] order = this.getConjunctionOrder ();
+    Qry q_0 = this.args.get (order[0]);
 
-      int docid_0 = q_0.docIteratorGetMatch ();
+    if (! q_0.docIteratorHasMatch (r)) {
+      return Qry.INVALID_DOCID;
+    }
 
-      // Other query arguments must match the docid of the first query
-      // argument.
-      
-      matchFound = true;
+    //  docid is the candidate; matched is the number of consecutive
+    //  arguments (in cost order) that are on it.
 
-      for (int i=1; i<this.args.size(); i++) {
-	Qry q_i = this.args.get(i);
+    int docid = q_0.docIteratorGetMatch ();
+    int matched = 1;
+    int i = 1 % order.length;
 
-	q_i.docIteratorAdvanceTo (docid_0);
+    while (matched < order.length) {
+      Qry q_i = this.args.get (order[i]);
 
-	if (! q_i.docIteratorHasMatch (r)) {	// If any argument is exhausted
-	  return false;				// there are no more matches.
-	}
+      q_i.docIteratorAdvanceTo (docid);
+
+      if (! q_i.docIteratorHasMatch (r)) {	// If any argument is exhausted
+        return Qry.INVALID_DOCID;		// there are no more matches.
+      }
 
-	int docid_i = q_i.docIteratorGetMatch ();
+      int docid_i = q_i.docIteratorGetMatch ();
 
-	if (docid_0 != docid_i) {	// docid_0 can't match.  Try again.
-	  q_0.docIteratorAdvanceTo (docid_i);
-	  matchFound = false;
-	  break;
-	}
+      if (docid_i == docid) {
+        matched ++;
+      } else {				// docid can't match.  Leap to docid_i.
+        docid = docid_i;
+        matched = 1;
       }
 
-      if (matchFound) {
-        docIteratorSetMatchCache (docid_0);
+      i = (i + 1) % order.length;
+    }
+
+    return docid;
+  }
+
+  /**
+   *  Get the order in which a conjunction visits the query arguments:
+   *  the cheapest argument first.  Ties keep the query order.  The
+   *  costs are only known after the arguments are initialized, so the
+   *  order is computed the first time that it is needed.
+   *  @return Argument indexes, in ascending cost order.
+   */
+  private int[] getConjunctionOrder () {
+
+    if ((this.conjunctionOrder == null) ||
+        (this.conjunctionOrder.length != this.args.size ())) {
+      int n = this.args.size ();
+      long[] costs = new long[n];
+      Integer[] order = new Integer[n];
+
+      for (int i = 0; i < n; i++) {
+        costs[i] = this.args.get (i).getCost ();
+        order[i] = i;
       }
+
+      Arrays.sort (order, (a, b) -> Long.compare (costs[a], costs[b]));
+
+      this.conjunctionOrder = new int[n];
+
+      for (int i = 0; i < n; i++)
+        this.conjunctionOrder[i] = order[i];
     }
 
-    return true;
+    return this.conjunctionOrder;
+  }
+
+  /**
+   *  Estimate the number of documents that this query operator
+   *  matches.  Conjunctions use the estimates to decide which
+   *  argument to anchor on.  This implementation returns the sum of
+   *  the arguments' estimates, which is an upper bound for operators
+   *  that match documents that any argument matches; other operators
+   *  override it.  It is an error to call this method before the
+   *  object's initialize method is called.
+   *  @return The estimated number of matching documents.
+   */
+  public long getCost () {
+
+    long cost = 0;
+
+    for (int i=0; i<this.args.size(); i++)
+      cost += this.args.get(i).getCost ();
+
+    return cost;
   }
 
   /**
@@ -361,7 +437,7 @@ public abstract class Qry {
    *  Set the matching docid cache.
    *  @param docid The internal document id to store in the cache.
    */
-  private void docIteratorSetMatchCache (int docid) {
+  protected void docIteratorSetMatchCache (int docid) {
     this.docIteratorMatchCache = docid;
   }
 
@@ -384,14 +460,34 @@ public abstract class Qry {
     return this.displayName;
   }
 
+  /**
+   *  Get the index that the query operator was initialized with.
+   *  @return The index, or null if the operator isn't initialized.
+   */
+  public IndexContext getIndexContext () {
+    return this.index;
+  }
+
+  /**
+   *  Initialize the query operator (and its arguments) to evaluate
+   *  the current index (see Idx.getIndexContext).
+   *  @param r A retrieval model that guides initialization
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public void initialize(RetrievalModel r) throws IOException {
+    this.initialize (Idx.getIndexContext (), r);
+  }
+
   /**
    *  Initialize the query operator (and its arguments), including any
    *  internal iterators; this method must be called before iteration
    *  can begin.
+   *  @param index The index that the query is evaluated on.
    *  @param r A retrieval model that guides initialization
    *  @throws IOException Error accessing the Lucene index.
    */
-  public abstract void initialize(RetrievalModel r) throws IOException;
+  public abstract void initialize(IndexContext index, RetrievalModel r)
+    throws IOException;
 
   /**
    *  Removes an argument from the list of query operator arguments.
@@ -7,6 +7,7 @@
 import java.io.*;
 import java.text.DecimalFormat;
 import java.util.*;
+import java.util.concurrent.*;
 //import java.time.*;
 import java.nio.charset.*;
 import java.util.stream.Collectors;
@@ -28,11 +29,14 @@ public class QryEval {
           "Usage:  java QryEval paramFile\n\n";
 
   //  --------------- Methods ---------------------------------------
-  private static CharsetEncoder asciiEncoder =
-          Charset.forName("US-ASCII").newEncoder();
+  //  A CharsetEncoder isn't thread-safe, and queries in a batch may
+  //  be expanded concurrently, so each thread has its own encoder.
+
+  private static final ThreadLocal<CharsetEncoder> asciiEncoder =
+          ThreadLocal.withInitial(() -> Charset.forName("US-ASCII").newEncoder());
 
   public static boolean isAsciiString (String s) {
-    return asciiEncoder.canEncode(s);
+    return asciiEncoder.get().canEncode(s);
   }
 
   /**
@@ -64,6 +68,7 @@ public class QryEval {
     //  Open the index and initialize the retrieval model.
 
     Idx.open (parameters.get ("indexPath"));
+    initializeEvaluation (parameters);
     RetrievalModel model = initializeRetrievalModel (parameters);
     String isDiverse = parameters.get("diversity");
     // handle LeToR
@@ -91,10 +96,43 @@ public class QryEval {
 //    Instant after = Instant.now();
     timer.stop ();
     System.out.println ("Time:  " + timer);
+
+    if (InvListCache.isEnabled ())
+      System.out.println (InvListCache.statistics ());
 //    long delta = Duration.between(before, after).toMillis();
 //    System.out.println ("Time MS:  " + delta);
   }
 
+  /**
+   *  Configure how query operators access the index, using optional
+   *  parameters from the parameter file.
+   *  @param parameters The parameters, in <key, value> format.
+   */
+  private static void initializeEvaluation (Map<String, String> parameters) {
+
+    //  postings:streaming=true makes TERM operators iterate over
+    //  Lucene postings instead of materializing inverted lists.
+
+    QryIopTerm.setStreaming (
+      Boolean.parseBoolean (parameters.get ("postings:streaming")));
+
+    //  postings:cacheBytes=n keeps up to n bytes of compressed inverted
+    //  lists in memory across queries.
+
+    if (parameters.containsKey ("postings:cacheBytes")) {
+      InvListCache.setBudget (
+        Long.parseLong (parameters.get ("postings:cacheBytes")));
+    }
+
+    //  query:threads=n evaluates each query with n threads, each of
+    //  which evaluates a range of docids.
+
+    if (parameters.containsKey ("query:threads")) {
+      ParallelEvaluation.setThreads (
+        Integer.parseInt (parameters.get ("query:threads")));
+    }
+  }
+
   /**
    *  Allocate the retrieval model and initialize it using parameters
    *  from the parameter file.
@@ -112,18 +150,28 @@ public class QryEval {
 
       model = new RetrievalModelUnrankedBoolean();
 
-      //  If this retrieval model had parameters, they would be
-      //  initialized here.
-
+      // optional bitmap evaluation, e.g. UnrankedBoolean:evaluation=bitmap
+      if (parameters.containsKey ("UnrankedBoolean:evaluation")) {
+        ((RetrievalModelUnrankedBoolean) model).setEvaluation (
+          parameters.get ("UnrankedBoolean:evaluation"));
+      }
     }
     //  STUDENTS::  Add new retrieval models here.
     else if (modelString.equals("rankedboolean")) {
 
       model = new RetrievalModelRankedBoolean();
 
-      //  If this retrieval model had parameters, they would be
-      //  initialized here.
+      // optional dynamic pruning for #OR queries, e.g. RankedBoolean:pruning=bmw
+      if (parameters.containsKey ("RankedBoolean:pruning")) {
+        ((RetrievalModelRankedBoolean) model).setPruning (
+          parameters.get ("RankedBoolean:pruning"));
+      }
 
+      // optional bitmap evaluation, e.g. RankedBoolean:evaluation=bitmap
+      if (parameters.containsKey ("RankedBoolean:evaluation")) {
+        ((RetrievalModelRankedBoolean) model).setEvaluation (
+          parameters.get ("RankedBoolean:evaluation"));
+      }
     }
     else if (modelString.equals("bm25")) {
       double k1 = Double.parseDouble(parameters.get ("BM25:k_1"));
@@ -132,12 +180,40 @@ public class QryEval {
 
       model = new RetrievalModelBM25(k1, b, k3);
 
+      // optional dynamic pruning for #SUM queries, e.g. BM25:pruning=maxscore or bmw
+      if (parameters.containsKey ("BM25:pruning")) {
+        ((RetrievalModelBM25) model).setPruning (
+          parameters.get ("BM25:pruning"));
+      }
+
+      // optional term- or score-at-a-time evaluation, e.g. BM25:evaluation=taat,
+      // or BM25:evaluation=saat with BM25:saatBudget=100000
+      if (parameters.containsKey ("BM25:evaluation")) {
+        ((RetrievalModelBM25) model).setEvaluation (
+          parameters.get ("BM25:evaluation"));
+      }
+      if (parameters.containsKey ("BM25:saatBudget")) {
+        ((RetrievalModelBM25) model).saatBudget =
+          Long.parseLong (parameters.get ("BM25:saatBudget"));
+      }
     }
     else if (modelString.equals("indri")) {
       int miu = Integer.parseInt(parameters.get ("Indri:mu"));
       double lambda = Double.parseDouble(parameters.get ("Indri:lambda"));
       model = new RetrievalModelIndri(miu, lambda);
 
+      // optional dynamic pruning for #AND and #WAND queries, e.g. Indri:pruning=maxscore
+      if (parameters.containsKey ("Indri:pruning")) {
+        ((RetrievalModelIndri) model).setPruning (
+          parameters.get ("Indri:pruning"));
+      }
+
+      // optional term-at-a-time evaluation, e.g. Indri:evaluation=taat
+      if (parameters.containsKey ("Indri:evaluation")) {
+        ((RetrievalModelIndri) model).setEvaluation (
+          parameters.get ("Indri:evaluation"));
+      }
+
     }
 
     else if (modelString.equals("ltr")) {
@@ -183,7 +259,7 @@ public class QryEval {
 
     String defaultOp = model.defaultQrySopName ();
     qString = defaultOp + "(" + qString + ")";
-    Qry q = QryParser.getQuery (qString);
+    Qry q = QryParser.getQuery (qString, model);
 
     // Show the query that is evaluated
 
@@ -210,9 +286,119 @@ public class QryEval {
       return null;
   }
 
+  /**
+   * Process one query, keeping only the best k documents.  The
+   * results are the same as processQuery followed by sort and
+   * truncate(k), but the documents that don't make the top k are
+   * never stored or sorted.
+   * @param qString A string that contains a query.
+   * @param model The retrieval model determines how matching and scoring is done.
+   * @param k The number of documents to return.
+   * @return Search results, sorted
+   * @throws IOException Error accessing the index
+   */
+  static ScoreList processQuery(String qString, RetrievalModel model, int k)
+          throws IOException {
+    return processQuery (Idx.getIndexContext (), qString, model, k);
+  }
+
+  /**
+   * Process one query on an index, keeping only the best k documents.
+   * Queries on different indexes may be processed at the same time.
+   * @param index The index.
+   * @param qString A string that contains a query.
+   * @param model The retrieval model determines how matching and scoring is done.
+   * @param k The number of documents to return.
+   * @return Search results, sorted
+   * @throws IOException Error accessing the index
+   */
+  static ScoreList processQuery(IndexContext index, String qString,
+                                RetrievalModel model, int k)
+          throws IOException {
+    return processQuery (index, qString, model, k, System.out);
+  }
+
+  /**
+   * Process one query on an index, keeping only the best k documents,
+   * and log the query to a stream.  Queries that are processed at the
+   * same time log to their own streams.
+   * @param index The index.
+   * @param qString A string that contains a query.
+   * @param model The retrieval model determines how matching and scoring is done.
+   * @param k The number of documents to return.
+   * @param log Where the parsed query and its estimated cost are logged.
+   * @return Search results, sorted
+   * @throws IOException Error accessing the index
+   */
+  static ScoreList processQuery(IndexContext index, String qString,
+                                RetrievalModel model, int k, PrintStream log)
+          throws IOException {
+
+    String defaultOp = model.defaultQrySopName ();
+    qString = defaultOp + "(" + qString + ")";
+    Qry q = QryParser.getQuery (qString, index, model, log);
+
+    // Show the query that is evaluated
+
+    log.println("    --> " + q);
+
+    if (q != null) {
+
+      TopKCollector topK = new TopKCollector (index, k);
+
+      if (q.args.size () > 0) {		// Ignore empty queries
+
+        //  Score-at-a-time evaluation reads the impact-ordered index
+        //  instead of the inverted lists, so the query isn't
+        //  initialized.
+
+        if (ScoreAtATime.canEvaluate (index, q, model)) {
+          ScoreAtATime.evaluate (index, q, (RetrievalModelBM25) model, topK);
+        } else if (ParallelEvaluation.isEnabled ()) {
+          ParallelEvaluation.evaluate (index, q, qString, model, k, topK);
+        } else {
+          q.initialize (index, model);
+          evaluateQuery (q, model, topK);
+        }
+      }
+
+      return topK.getScoreList ();
+    } else
+      return null;
+  }
+
+  /**
+   * Evaluate an initialized query and collect the best documents,
+   * term-at-a-time, with bitmaps, or document-at-a-time, depending
+   * on the query and the retrieval model.
+   * @param q An initialized query.
+   * @param model The retrieval model determines how matching and scoring is done.
+   * @param topK Collects the best documents.
+   * @throws IOException Error accessing the index
+   */
+  static void evaluateQuery(Qry q, RetrievalModel model, TopKCollector topK)
+          throws IOException {
+
+    if (TermAtATime.canEvaluate (q, model)) {
+      TermAtATime.evaluate (q, model, topK);
+      return;
+    }
+
+    //  Bitmap evaluation declines queries whose scores it can't compute.
+
+    if (BooleanBitmaps.canEvaluate (q, model) &&
+        BooleanBitmaps.evaluate (q, model, topK))
+      return;
+
+    ((QrySop) q).evaluateTopK (model, topK);
+  }
+
 
   /**
-   *  Process the query file.
+   *  Process the query file.  Queries are processed one at a time,
+   *  unless batch:threads=n (n > 1) is specified, in which case n
+   *  threads process them concurrently (see processQueryBatch).  The
+   *  output files are the same either way.
    *  @param parameters with query file, truncate size and other info on the input parameters
    *  @param model A retrieval model that will guide matching and scoring
    *  @throws IOException Error accessing the Lucene index.
@@ -235,18 +421,10 @@ public class QryEval {
       // check if we want to perform query expansion
       String performExp =  parameters.get("prf");
       Map<String, ScoreList> expandScoreLists = null;
-      int expTermNum = 0;
-      int expDocNum = 0;
-      double mu = 0;
-      double origQueryW = 1.0;
       String expFile = null;
       PrintWriter queryWriter = null;
       if ((performExp != null) && performExp.equals("Indri")){
 
-        expTermNum = Integer.parseInt(parameters.get("prf:numTerms"));
-        expDocNum = Integer.parseInt(parameters.get("prf:numDocs"));
-        mu = Double.parseDouble(parameters.get("prf:Indri:mu"));
-        origQueryW = Double.parseDouble(parameters.get("prf:Indri:origWeight"));
         expFile = parameters.get("prf:initialRankingFile");
         queryWriter = new PrintWriter(parameters.get("prf:expansionQueryFile"));
         // get the scorelists of term for query expansion, per query ID
@@ -256,55 +434,28 @@ public class QryEval {
         }
 
       }
-      while ((qLine = input.readLine()) != null) {
 
-        printMemoryUsage(false);
-        System.out.println("Query " + qLine);
-        String[] pair = qLine.split(":");
+      //  batch:threads=n processes n queries at a time.
 
-        if (pair.length != 2) {
-          throw new IllegalArgumentException
-                  ("Syntax error:  Each line must contain one ':'.");
-        }
+      int threads = 1;
 
-        String qid = pair[0];
-        String query = pair[1];
-        if ((performExp != null) && performExp.equals("Indri")){
-          ScoreList expTerm = null;
-          String origQuery = new String(query);
-          if (expandScoreLists != null){
-            expTerm = expandScoreLists.get(qid);
-            //System.out.println("Getting the expanded scorelist by prerank");
-          }
-          else{
-            expTerm = processQuery(origQuery, model);
-            //System.out.println("Getting the expanded scorelist by original query");
-          }
-          // sort and select only top doc for expansion
-          expTerm.sort();
-          expTerm.truncate(expDocNum);
-          // run query expansion to generate expanded query
-          String expQuery = runIndriQueryExpansion(expDocNum, expTermNum, mu, expTerm);
-          query = "#WAND ( "+origQueryW+" #AND ( "+origQuery+
-                  " ) "+(1.0-origQueryW)+" "+expQuery+" )";
-          // write the query to the file and handling the query id issue
-          writeIntoQuery(queryWriter, qid, expQuery);
-          System.out.println("Expanded Query is "+expQuery);
-        }
-        int outputLen = Integer.parseInt(parameters.get("trecEvalOutputLength"));
-//        String structured_str = QueryMultiRep(query, 0.05, 0.15, 0.4, 0.4);
-//        String structured_str = QueryBySDM(query, 0.45, 0.45, 0.1);
-//        writer_qry.println(qid+": "+structured_str);
-        ScoreList results = processQuery(query, model);
-
-        if (results != null) {
-          // sort the result before the print
-          results.sort ();
-          // cap the result based on parameters
-          results.truncate(outputLen);
-          writeIntoTrecEval(writer, qid, results);
-//          printResults(qid, results);
-          System.out.println(); //>>> enable later
+      if (parameters.containsKey("batch:threads")) {
+        threads = Integer.parseInt(parameters.get("batch:threads"));
+
+        if (threads < 1)
+          throw new IllegalArgumentException ("batch:threads must be positive.");
+      }
+
+      if (threads > 1) {
+        processQueryBatch(input, parameters, expandScoreLists, model, threads,
+                          writer, queryWriter);
+      } else {
+        while ((qLine = input.readLine()) != null) {
+
+          printMemoryUsage(false);
+          System.out.println("Query " + qLine);
+          processQueryLine(Idx.getIndexContext(), qLine, parameters, expandScoreLists,
+                           model, System.out, writer, queryWriter);
         }
       }
       writer.close();
@@ -317,6 +468,171 @@ public class QryEval {
     }
   }
 
+  /**
+   *  Process one line of the query file:  expand the query if
+   *  prf=Indri is specified, evaluate it, and write its results.
+   *  @param index The index.
+   *  @param qLine A line of the query file, qid:query.
+   *  @param parameters The parameters, in <key, value> format.
+   *  @param expandScoreLists The initial rankings for query
+   *  expansion, by query id, or null if the query is evaluated to
+   *  get its initial ranking.
+   *  @param model A retrieval model that will guide matching and scoring
+   *  @param log Where the query's progress is logged.
+   *  @param writer Where the trec_eval results are written.
+   *  @param queryWriter Where the expanded query is written, or null
+   *  if queries aren't expanded.
+   *  @throws IOException Error accessing the Lucene index.
+   *  @throws IllegalArgumentException The line isn't qid:query.
+   */
+  private static void processQueryLine(IndexContext index, String qLine,
+                                       Map<String, String> parameters,
+                                       Map<String, ScoreList> expandScoreLists,
+                                       RetrievalModel model, PrintStream log,
+                                       PrintWriter writer, PrintWriter queryWriter)
+          throws IOException {
+
+    String[] pair = qLine.split(":");
+
+    if (pair.length != 2) {
+      throw new IllegalArgumentException
+              ("Syntax error:  Each line must contain one ':'.");
+    }
+
+    String qid = pair[0];
+    String query = pair[1];
+    String performExp =  parameters.get("prf");
+    if ((performExp != null) && performExp.equals("Indri")){
+      int expTermNum = Integer.parseInt(parameters.get("prf:numTerms"));
+      int expDocNum = Integer.parseInt(parameters.get("prf:numDocs"));
+      double mu = Double.parseDouble(parameters.get("prf:Indri:mu"));
+      double origQueryW = Double.parseDouble(parameters.get("prf:Indri:origWeight"));
+      ScoreList expTerm = null;
+      String origQuery = new String(query);
+      if (expandScoreLists != null){
+        expTerm = expandScoreLists.get(qid);
+        //System.out.println("Getting the expanded scorelist by prerank");
+      }
+      else{
+        expTerm = processQuery(index, origQuery, model, expDocNum, log);
+        //System.out.println("Getting the expanded scorelist by original query");
+      }
+      // sort and select only top doc for expansion
+      expTerm.sort();
+      expTerm.truncate(expDocNum);
+      // run query expansion to generate expanded query
+      String expQuery = runIndriQueryExpansion(expDocNum, expTermNum, mu, expTerm);
+      query = "#WAND ( "+origQueryW+" #AND ( "+origQuery+
+              " ) "+(1.0-origQueryW)+" "+expQuery+" )";
+      // write the query to the file and handling the query id issue
+      writeIntoQuery(queryWriter, qid, expQuery);
+      log.println("Expanded Query is "+expQuery);
+    }
+    int outputLen = Integer.parseInt(parameters.get("trecEvalOutputLength"));
+//    String structured_str = QueryMultiRep(query, 0.05, 0.15, 0.4, 0.4);
+//    String structured_str = QueryBySDM(query, 0.45, 0.45, 0.1);
+//    writer_qry.println(qid+": "+structured_str);
+    ScoreList results = processQuery(index, query, model, outputLen, log);
+
+    if (results != null) {
+      // results are already sorted and capped at outputLen
+      writeIntoTrecEval(writer, index, qid, results);
+//      printResults(qid, results);
+      log.println(); //>>> enable later
+    }
+  }
+
+  /**
+   *  The output of one query in a batch, buffered until the queries
+   *  before it are written.
+   */
+  private static class QueryOutput {
+    private String qLine;
+    private ByteArrayOutputStream log = new ByteArrayOutputStream ();
+    private StringWriter results = new StringWriter ();
+    private StringWriter expansion = new StringWriter ();
+  }
+
+  /**
+   *  Process the rest of the query file with several threads.  Each
+   *  worker processes a query into its own buffers (see QueryOutput),
+   *  and the buffers are written in the order of the query file, so
+   *  the output files and the log are the same as when the queries
+   *  are processed one at a time.  The memory usage is logged as each
+   *  query is written.  At most a few queries per thread are read
+   *  ahead, so a large file isn't buffered in memory.
+   *  <p>
+   *  Workers share the index (see IndexContext), the inverted list
+   *  cache, and the pool that evaluates each query in parallel (see
+   *  ParallelEvaluation), which are thread-safe.
+   *  </p>
+   *  @param input The query file.
+   *  @param parameters The parameters, in <key, value> format.
+   *  @param expandScoreLists The initial rankings for query
+   *  expansion, by query id, or null.
+   *  @param model A retrieval model that will guide matching and scoring
+   *  @param threads The number of workers.
+   *  @param writer Where the trec_eval results are written.
+   *  @param queryWriter Where the expanded queries are written, or null.
+   *  @throws IOException Error accessing the Lucene index, or the
+   *  thread was interrupted.
+   */
+  private static void processQueryBatch(BufferedReader input,
+                                        Map<String, String> parameters,
+                                        Map<String, ScoreList> expandScoreLists,
+                                        RetrievalModel model, int threads,
+                                        PrintWriter writer, PrintWriter queryWriter)
+          throws IOException {
+
+    IndexContext index = Idx.getIndexContext();
+    ExecutorService workers = Executors.newFixedThreadPool(threads);
+    Deque<Future<QueryOutput>> pending = new ArrayDeque<Future<QueryOutput>>();
+    int readAhead = 4 * threads;
+
+    try {
+      String qLine = null;
+
+      while (true) {
+
+        //  Keep the workers busy, and write the oldest query when
+        //  enough are in progress or the file has been read.
+
+        if ((pending.size() < readAhead) && ((qLine = input.readLine()) != null)) {
+          String line = qLine;
+
+          pending.add(workers.submit(() -> {
+                QueryOutput output = new QueryOutput();
+                PrintStream log = new PrintStream(output.log);
+                PrintWriter results = new PrintWriter(output.results);
+                PrintWriter expansion = new PrintWriter(output.expansion);
+
+                output.qLine = line;
+                processQueryLine(index, line, parameters, expandScoreLists, model,
+                                 log, results, (queryWriter == null) ? null : expansion);
+                log.flush();
+                results.flush();
+                expansion.flush();
+                return output;
+              }));
+        } else if (! pending.isEmpty()) {
+          QueryOutput output = Utils.getResult(pending.remove());
+
+          printMemoryUsage(false);
+          System.out.println("Query " + output.qLine);
+          output.log.writeTo(System.out);
+          writer.write(output.results.toString());
+
+          if (queryWriter != null)
+            queryWriter.write(output.expansion.toString());
+        } else {
+          break;
+        }
+      }
+    } finally {
+      workers.shutdownNow();
+    }
+  }
+
 
   /**
    **/
@@ -328,13 +644,22 @@ public class QryEval {
       String qLine = null;
       //int rankLen = Integer.parseInt(parameters.get("prf:numDocs"));
       input = new BufferedReader(new FileReader(expFile));
+      // read the whole file first so that docids are looked up in one batch
+      List<String[]> lines = new ArrayList<String[]>();
       while ((qLine = input.readLine()) != null) {
-        String[] docinfo = qLine.split(" ");
+        lines.add(qLine.split(" "));
+      }
+      String[] extDocids = new String[lines.size()];
+      for (int i=0; i<extDocids.length; i++){
+        extDocids[i] = lines.get(i)[2];
+      }
+      int[] docids = Idx.getInternalDocids(extDocids);
+      for (int i=0; i<docids.length; i++) {
+        String[] docinfo = lines.get(i);
         ScoreList result = null;
         // we need this extra step to remove 0
         String queryID = String.valueOf(Integer.parseInt(docinfo[0]));
-        String extDocid = docinfo[2];
-        int docid = Idx.getInternalDocid(extDocid);
+        int docid = docids[i];
         if (results.containsKey(queryID)){
           result = results.get(queryID);
         }
@@ -448,6 +773,25 @@ public class QryEval {
    * @throws IOException Error accessing the Lucene index.
    */
   static void writeIntoTrecEval(PrintWriter writer, String queryName, ScoreList result) throws IOException {
+    writeIntoTrecEval(writer, Idx.getIndexContext(), queryName, result);
+  }
+
+  /**
+   * Write the query results on an index into trec_eval file in the
+   * format of QueryID Q0 DocID Rank Score RunID
+   *
+   * @param writer
+   *          The trec_eval file to save result
+   * @param index
+   *          The index that the query was evaluated on.
+   * @param queryName
+   *          Original query.
+   * @param result
+   *          A list of document ids and scores
+   * @throws IOException Error accessing the Lucene index.
+   */
+  static void writeIntoTrecEval(PrintWriter writer, IndexContext index,
+                                String queryName, ScoreList result) throws IOException {
 
     if (result.size() < 1) {
       writer.println(queryName+" Q0 OOONothingReturn 1 0 HW5");
@@ -455,7 +799,7 @@ public class QryEval {
       // NOTE the result ScoreList should have been sorted descending, so ranking is easy to add
       for (int i = 0; i < result.size(); i++) {
         int curr_rank = i+1;
-        String output_str = queryName+" Q0 "+Idx.getExternalDocid(result.getDocid(i)) + " "
+        String output_str = queryName+" Q0 "+index.getExternalDocid(result.getDocid(i)) + " "
                 +curr_rank+" " +result.getDocidScore(i)+" HW5";
         writer.println(output_str);
       }
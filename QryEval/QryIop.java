@@ -53,6 +53,29 @@ public abstract class QryIop extends Qry {
    */
   protected InvList invertedList = null;
 
+  /**
+   *  The largest tf in the inverted list, or -1 if it isn't known yet.
+   */
+  protected int maxTf = -1;
+
+  /**
+   *  Whether the operator that consumes this inverted list needs
+   *  term positions.  If not, the inverted list may contain only
+   *  docids and term frequencies, which is much cheaper to produce.
+   *  The parent operator sets this before the operator is initialized.
+   */
+  protected boolean positionsRequired = false;
+
+  /**
+   *  Buffers for operators that match argument positions (e.g.,
+   *  NEAR):  the positions of each argument in the current document,
+   *  the number of positions, and a cursor into each.  They are
+   *  reused across documents, so matching doesn't allocate.
+   */
+  protected int[][] argPositions = new int[0][];
+  protected int[] argTfs = new int[0];
+  protected int[] argCursors = new int[0];
+
   /**
    *  The index of the document that the docIterator points to now.
    */
@@ -65,31 +88,33 @@ public abstract class QryIop extends Qry {
 
   /**
    *  Advance the query operator's internal iterator beyond the
-   *  specified document.
+   *  specified document.  The inverted list is searched with
+   *  exponential (galloping) search, so skipping far ahead is cheap.
    *  @param docid The document's internal document id
    */
   public void docIteratorAdvancePast (int docid) {
 
-    while ((this.docIteratorIndex < this.invertedList.df) &&
-           (this.invertedList.getDocid (this.docIteratorIndex) <= docid)) {
-      this.docIteratorIndex ++;
+    if (docid == Integer.MAX_VALUE) {
+      this.docIteratorFinish ();
+    } else {
+      this.docIteratorIndex =
+        this.invertedList.findDocid (this.docIteratorIndex, docid + 1);
     }
-           
+
     this.locIteratorIndex = 0;
   }
 
   /**
    *  Advance the query operator's internal iterator to the specified
-   *  document if it exists, or beyond if it doesn't.
+   *  document if it exists, or beyond if it doesn't.  The inverted
+   *  list is searched with exponential (galloping) search.
    *  @param docid The document's internal document id
    */
   public void docIteratorAdvanceTo (int docid) {
 
-    while ((this.docIteratorIndex < this.invertedList.df) &&
-           (this.invertedList.getDocid (this.docIteratorIndex) < docid)) {
-      this.docIteratorIndex ++;
-    }
-           
+    this.docIteratorIndex =
+      this.invertedList.findDocid (this.docIteratorIndex, docid);
+
     this.locIteratorIndex = 0;
   }
 
@@ -98,7 +123,7 @@ public abstract class QryIop extends Qry {
    *  any possible document.
    */
   public void docIteratorFinish () {
-    this.docIteratorIndex = this.invertedList.postings.size();
+    this.docIteratorIndex = this.invertedList.df;
   }
 
   /**
@@ -113,12 +138,26 @@ public abstract class QryIop extends Qry {
   }
 
   /**
-   *  Return the postings for the document that the docIterator points to
-   *  now, or throw an error if the docIterator doesn't point at a document.
-   *  @return A document posting.
+   *  Return the term frequency of the document that the docIterator
+   *  points to now.  Use docIteratorHasMatch to determine whether the
+   *  iterator currently points to a document.
+   *  @return The term frequency (tf) of the current document.
+   */
+  public int docIteratorGetMatchTf () {
+    return this.invertedList.getTf (this.docIteratorIndex);
+  }
+
+  /**
+   *  Copy the positions of the document that the docIterator points
+   *  to now into an array.  Use docIteratorHasMatch to determine
+   *  whether the iterator currently points to a document.
+   *  @param dest The destination array.  It must have room for tf
+   *         positions after destPos.
+   *  @param destPos The starting position in the destination array.
+   *  @return The number of positions copied (the tf).
    */
-  public InvList.DocPosting docIteratorGetMatchPosting () {
-    return this.invertedList.postings.get(docIteratorIndex);
+  public int docIteratorGetMatchPositions (int[] dest, int destPos) {
+    return this.invertedList.getPositions (this.docIteratorIndex, dest, destPos);
   }
 
   /**
@@ -150,6 +189,110 @@ public abstract class QryIop extends Qry {
     return this.invertedList.df;
   }
 
+  /**
+   *  Copy the positions of every argument's current document into
+   *  argPositions and argTfs, and reset argCursors.  Every argument's
+   *  docIterator must be on the same document.
+   */
+  protected void loadArgPositions () {
+    for (int i = 0; i < this.args.size (); i++)
+      this.loadArgPositions (i);
+  }
+
+  /**
+   *  Copy the positions of one argument's current document into
+   *  argPositions and argTfs, and reset its cursor.
+   *  @param i The index of the argument.
+   */
+  protected void loadArgPositions (int i) {
+
+    int n = this.args.size ();
+
+    if (this.argPositions.length != n) {
+      this.argPositions = new int[n][16];
+      this.argTfs = new int[n];
+      this.argCursors = new int[n];
+    }
+
+    QryIop q_i = (QryIop) this.args.get (i);
+    int tf = q_i.docIteratorGetMatchTf ();
+
+    if (this.argPositions[i].length < tf)
+      this.argPositions[i] = new int[Math.max (tf, 2 * this.argPositions[i].length)];
+
+    this.argTfs[i] = q_i.docIteratorGetMatchPositions (this.argPositions[i], 0);
+    this.argCursors[i] = 0;
+  }
+
+  /**
+   *  Get the inverted list that this query operator produced.  It is
+   *  shared, so callers must not change it.  It is an error to call
+   *  this method before the object's initialize method is called.
+   *  @return The inverted list, or null if it isn't materialized
+   *  (e.g., a term in streaming mode).
+   */
+  public InvList getInvertedList () {
+    return this.invertedList;
+  }
+
+  /**
+   *  Estimate the number of documents that this query operator
+   *  matches:  its document frequency.
+   *  @return The estimated number of matching documents.
+   */
+  public long getCost () {
+    return this.getDf ();
+  }
+
+  /**
+   *  Get the largest term frequency of any document that matches this
+   *  query operator.  Scoring operators use it to bound scores.  It
+   *  is an error to call this method before the object's initialize
+   *  method is called.
+   *  @return The largest term frequency (tf).
+   */
+  public int getMaxTf () {
+    if (this.maxTf < 0)
+      this.maxTf = this.invertedList.getMaxTf ();
+
+    return this.maxTf;
+  }
+
+  /**
+   *  Move the block iterator to the block that contains the first
+   *  posting whose docid is at least the specified docid, without
+   *  moving the document iterator.  Together with getBlockMaxTf and
+   *  getBlockMinLength, this lets scoring operators bound the scores
+   *  of documents in a block without reading it (see BlockMaxWand).
+   *  <p>
+   *  Operators without per-block metadata treat the whole inverted
+   *  list as one block, so the bounds are list-level bounds.
+   *  </p>
+   *  @param docid An internal document id.
+   *  @return The last docid in the block, or Integer.MAX_VALUE if
+   *  the block is the last one.
+   */
+  public int advanceShallow (int docid) {
+    return Integer.MAX_VALUE;
+  }
+
+  /**
+   *  Get the largest tf in the block that advanceShallow moved to.
+   *  @return The largest tf in the block.
+   */
+  public int getBlockMaxTf () {
+    return this.getMaxTf ();
+  }
+
+  /**
+   *  Get the length of the shortest document in the block that
+   *  advanceShallow moved to.
+   *  @return The shortest document length in the block.
+   */
+  public int getBlockMinLength () {
+    return this.index.getMinFieldLength (this.field);
+  }
+
   /**
    *  Get the field associated with this query operator.
    *  @return The field associated with this query operator.
@@ -158,6 +301,17 @@ public abstract class QryIop extends Qry {
     return this.field;
   }
 
+  /**
+   *  Whether the arguments of this operator must provide term
+   *  positions.  By default an operator needs positions from its
+   *  arguments only if its own consumer needs positions (e.g., #SYN).
+   *  Operators that match on positions (e.g., #NEAR/n) override this.
+   *  @return True if the arguments must provide positions.
+   */
+  protected boolean argsRequirePositions () {
+    return this.positionsRequired;
+  }
+
   /**
    *  Evaluate the query operator; the result is an internal inverted
    *  list that may be accessed via the internal iterators.
@@ -169,19 +323,27 @@ public abstract class QryIop extends Qry {
    *  Initialize the query operator (and its arguments), including any
    *  internal iterators; this method must be called before iteration
    *  can begin.
+   *  @param index The index that the query is evaluated on.
    *  @param r A retrieval model (that is ignored)
    */
-  public void initialize(RetrievalModel r) throws IOException {
+  public void initialize(IndexContext index, RetrievalModel r) throws IOException {
 
-    //  Initialize the query arguments (if any).
+    this.index = index;
+
+    //  Initialize the query arguments (if any).  Tell them first
+    //  whether this operator needs their positions.
+
+    boolean argsPositions = this.argsRequirePositions ();
 
     for (Qry q_i: this.args) {
-      ((QryIop) q_i).initialize (r);
+      ((QryIop) q_i).positionsRequired = argsPositions;
+      ((QryIop) q_i).initialize (index, r);
     }
 
     //  Evaluate the operator.
     
     this.evaluate ();
+    this.maxTf = -1;
 
     //  Initialize the internal iterators.
 
@@ -203,12 +365,12 @@ public abstract class QryIop extends Qry {
    *  @param loc The location to advance beyond.
    */
   public void locIteratorAdvancePast (int loc) {
-    int tf = this.invertedList.postings.get(this.docIteratorIndex).tf;
-    Vector<Integer> positions = this.invertedList.postings.get(this.docIteratorIndex).positions;
-
-    while ((this.locIteratorIndex < tf) &&
-           (positions.get (this.locIteratorIndex) <= loc)) {
-      locIteratorIndex ++;
+    if (loc == Integer.MAX_VALUE) {
+      this.locIteratorFinish ();
+    } else {
+      this.locIteratorIndex =
+        this.invertedList.findPosition (this.docIteratorIndex,
+                                        this.locIteratorIndex, loc + 1);
     }
   }
 
@@ -218,7 +380,7 @@ public abstract class QryIop extends Qry {
    */
   public void locIteratorFinish () {
     this.locIteratorIndex =
-      this.invertedList.postings.get(this.docIteratorIndex).tf;
+      this.invertedList.getTf (this.docIteratorIndex);
   }
 
   /**
@@ -229,8 +391,8 @@ public abstract class QryIop extends Qry {
    *  @return The internal id of the current document.
    */
   public int locIteratorGetMatch () {
-    Vector<Integer> locations = this.docIteratorGetMatchPosting().positions;
-    return locations.get (this.locIteratorIndex);
+    return this.invertedList.getPosition (this.docIteratorIndex,
+                                          this.locIteratorIndex);
   }
 
   /**
@@ -9,9 +9,53 @@ import java.util.*;
  */
 public class QryIopSyn extends QryIop {
 
+  /**
+   *  A min-heap of the indexes of the arguments that aren't
+   *  exhausted, ordered by their current docid.
+   */
+  private int[] heap = new int[0];
+  private int heapSize = 0;
+
+  /**
+   *  The arguments' positions in the current document are merged
+   *  here; it is reused across documents.
+   */
+  private int[] positions = new int[16];
+
+  /**
+   *  SYN needs its arguments' positions if its parent needs positions,
+   *  or if two arguments may match the same position (e.g.,
+   *  #SYN (apple apple)), which must be counted once.  Arguments that
+   *  are distinct terms can't overlap.
+   *  @return True if the arguments must provide positions.
+   */
+  protected boolean argsRequirePositions () {
+    return this.positionsRequired || this.argsMayOverlap ();
+  }
+
+  /**
+   *  Whether two arguments may match the same position:  unless the
+   *  arguments are distinct terms.
+   *  @return True if the arguments may overlap.
+   */
+  private boolean argsMayOverlap () {
+
+    Set<String> terms = new HashSet<String> ();
+
+    for (Qry q_i: this.args) {
+      if (! (q_i instanceof QryIopTerm) || ! terms.add (q_i.toString ()))
+        return true;
+    }
+
+    return false;
+  }
+
   /**
    *  Evaluate the query operator; the result is an internal inverted
-   *  list that may be accessed via the internal iterators.
+   *  list that may be accessed via the internal iterators.  This is
+   *  a k-way merge of the arguments' inverted lists, which uses a
+   *  heap to find the next document, so it takes O(log k) time per
+   *  argument posting rather than O(k) per result posting.
    *  @throws IOException Error accessing the Lucene index.
    */
   protected void evaluate () throws IOException {
@@ -19,55 +63,152 @@ public class QryIopSyn extends QryIop {
     //  Create an empty inverted list.  If there are no query arguments,
     //  this is the final result.
     
-    this.invertedList = new InvList (this.getField());
+    this.invertedList = new InvList (this.getField(), this.positionsRequired);
 
     if (args.size () == 0) {
       return;
     }
 
+    boolean mergePositions = this.argsRequirePositions ();
+
+    //  Put the arguments that have postings in the heap.
+
+    if (this.heap.length != this.args.size ())
+      this.heap = new int[this.args.size ()];
+
+    this.heapSize = 0;
+
+    for (int i = 0; i < this.args.size (); i++) {
+      if (this.args.get (i).docIteratorHasMatch (null))
+        this.heap[this.heapSize ++] = i;
+    }
+
+    for (int i = this.heapSize / 2 - 1; i >= 0; i--)
+      this.siftDown (i);
+
     //  Each pass of the loop adds 1 document to result inverted list
-    //  until all of the argument inverted lists are depleted.
+    //  until all of the argument inverted lists are depleted.  The
+    //  arguments that match the document are at the top of the heap.
 
-    while (true) {
+    while (this.heapSize > 0) {
+
+      int minDocid = this.docid (this.heap[0]);
+      int tf = 0;
+      int numArgs = 0;
 
-      //  Find the minimum next document id.  If there is none, we're done.
+      while ((this.heapSize > 0) && (this.docid (this.heap[0]) == minDocid)) {
+        QryIop iop_i = (QryIop) this.args.get (this.heap[0]);
+
+        if (mergePositions) {
+          this.positions = growPositions (this.positions, tf + iop_i.docIteratorGetMatchTf ());
+          tf += iop_i.docIteratorGetMatchPositions (this.positions, tf);
+        } else {
+          tf += iop_i.docIteratorGetMatchTf ();
+        }
 
-      int minDocid = Qry.INVALID_DOCID;
+        numArgs ++;
+        iop_i.docIteratorAdvancePast (minDocid);
 
-      for (Qry q_i: this.args) {
-        if (q_i.docIteratorHasMatch (null)) {
-          int q_i_Docid = q_i.docIteratorGetMatch ();
-          
-          if ((minDocid > q_i_Docid) ||
-              (minDocid == Qry.INVALID_DOCID)) {
-            minDocid = q_i_Docid;
-          }
+        if (iop_i.docIteratorHasMatch (null)) {
+          this.siftDown (0);
+        } else {
+          this.heap[0] = this.heap[-- this.heapSize];
+          this.siftDown (0);
         }
       }
 
-      if (minDocid == Qry.INVALID_DOCID)
-        break;				// All docids have been processed.  Done.
-      
-      //  Create a new posting that is the union of the posting lists
-      //  that match the minDocid.  Save it.
-      //  Note:  This implementation assumes that a location will not appear
-      //  in two or more arguments.  #SYN (apple apple) would break it.
-
-      List<Integer> positions = new ArrayList<Integer>();
-
-      for (Qry q_i: this.args) { // iterate through internal docid
-        if (q_i.docIteratorHasMatch (null) &&
-            (q_i.docIteratorGetMatch () == minDocid)) {
-          Vector<Integer> locations_i =
-            ((QryIop) q_i).docIteratorGetMatchPosting().positions;
-	  positions.addAll (locations_i);
-          q_i.docIteratorAdvancePast (minDocid);
-	}
+      //  Positions from several arguments are sorted, and a position
+      //  that more than one argument matches is counted once.
+
+      if (mergePositions && (numArgs > 1)) {
+        Arrays.sort (this.positions, 0, tf);
+        tf = removeDuplicates (this.positions, tf);
       }
 
-      Collections.sort (positions);
-      this.invertedList.appendPosting (minDocid, positions);
+      if (this.positionsRequired) {
+        this.invertedList.appendPosting (minDocid, this.positions, tf);
+      } else {
+        this.invertedList.appendPosting (minDocid, tf);
+      }
     }
   }
 
+  /**
+   *  Get the current docid of an argument.
+   *  @param i The index of the argument.
+   *  @return The docid.
+   */
+  private int docid (int i) {
+    return this.args.get (i).docIteratorGetMatch ();
+  }
+
+  /**
+   *  Move a heap entry down to restore the heap order.
+   *  @param i The index of the entry in the heap.
+   */
+  private void siftDown (int i) {
+
+    int entry = this.heap[i];
+    int entryDocid = (i < this.heapSize) ? this.docid (entry) : 0;
+
+    while (true) {
+      int child = 2 * i + 1;
+
+      if (child >= this.heapSize)
+        break;
+
+      int childDocid = this.docid (this.heap[child]);
+
+      if (child + 1 < this.heapSize) {
+        int rightDocid = this.docid (this.heap[child + 1]);
+
+        if (rightDocid < childDocid) {
+          child ++;
+          childDocid = rightDocid;
+        }
+      }
+
+      if (childDocid >= entryDocid)
+        break;
+
+      this.heap[i] = this.heap[child];
+      i = child;
+    }
+
+    this.heap[i] = entry;
+  }
+
+  /**
+   *  Remove adjacent duplicates from a sorted array.
+   *  @param a A sorted array.
+   *  @param size The number of values in the array.
+   *  @return The number of distinct values, which are at the start
+   *  of the array.
+   */
+  private static int removeDuplicates (int[] a, int size) {
+
+    int n = 0;
+
+    for (int i = 0; i < size; i++) {
+      if ((n == 0) || (a[n - 1] != a[i]))
+        a[n++] = a[i];
+    }
+
+    return n;
+  }
+
+  /**
+   *  Make sure that a positions buffer can hold the specified number
+   *  of positions, preserving its contents.
+   *  @param positions The current buffer.
+   *  @param size The number of positions that must fit.
+   *  @return The buffer, or a larger copy of it.
+   */
+  private static int[] growPositions (int[] positions, int size) {
+    if (size <= positions.length)
+      return positions;
+
+    return Arrays.copyOf (positions, Math.max (size, 2 * positions.length));
+  }
+
 }
@@ -4,18 +4,87 @@
 import java.io.*;
 import java.util.*;
 
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.BytesRef;
+
 /**
  *  The TERM operator for all retrieval models.  The TERM operator stores
  *  information about a query term, for example "apple" in the query
  *  "#AND (apple pie).  Although it may seem odd to use a query
  *  operator to store a term, doing so makes it easy to build
  *  structured queries with nested query operators.
- *
+ *  <p>
+ *  By default the TERM operator materializes its inverted list when
+ *  it is initialized, like other QryIop operators.  In streaming mode
+ *  (see setStreaming) it does not materialize the inverted list.
+ *  Instead, its docIterator and locIterator walk Lucene's postings
+ *  segment by segment, and docIteratorAdvanceTo uses Lucene's skip
+ *  lists.  The df and ctf come from the index statistics.
+ *  </p><p>
+ *  In either mode, positions are only read from the index if the
+ *  parent operator needs them (see QryIop.positionsRequired).
+ *  </p><p>
+ *  Materialized inverted lists are shared across queries through
+ *  InvListCache, if it is enabled.
+ *  </p><p>
+ *  A TERM operator may be restricted to a range of docids (see
+ *  setDocidRange), so that a query can be evaluated in parts (see
+ *  ParallelEvaluation).  Its postings are then only read from that
+ *  range, and they aren't cached.
+ *  </p>
  */
 public class QryIopTerm extends QryIop {
 
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  Whether new TERM operators stream postings from Lucene.
+   */
+  private static boolean streamPostings = false;
+
   private String term;
 
+  /*
+   *  The range of docids that postings are read from.
+   */
+  private int minDocid = 0;
+  private int maxDocid = Integer.MAX_VALUE;
+
+  /**
+   *  Whether this operator streams its postings.  It is fixed when
+   *  the operator is evaluated.
+   */
+  private boolean streaming = false;
+
+  /*
+   *  Streaming state.  leafPostings iterates over the postings in
+   *  leaves[leafIndex]; it is null if that leaf doesn't contain the
+   *  term.  The PostingsEnum object is reused across leaves and
+   *  across initializations.
+   */
+  private List<LeafReaderContext> leaves;
+  private int leafIndex;
+  private PostingsEnum leafPostings;
+  private int streamDocid;
+  private int streamDf;
+  private int streamCtf;
+
+  /*
+   *  Block metadata for Block-Max WAND, if the term has it.
+   */
+  private BlockMaxIndex.Blocks blocks;
+  private int blockIndex;
+
+  /*
+   *  The positions of the current document are decoded on demand.
+   */
+  private int[] streamPositions = new int[16];
+  private int streamPositionsDocid;
+  private int streamLocIndex;
+
+  //  --------------- Methods ---------------------------------------
+
   /**
    *  The term is assumed to match the body field.
    *  @param termString A term string.
@@ -35,17 +104,441 @@ public class QryIopTerm extends QryIop {
     this.field = fieldString;
   }
 
+  /**
+   *  Get the term string.
+   *  @return The processed (stemmed, lower-cased, etc) term string.
+   */
+  public String getTerm () {
+    return this.term;
+  }
+
+  /**
+   *  Enable or disable streaming of postings for TERM operators that
+   *  are evaluated after this call.
+   *  @param stream True to stream postings, false to materialize them.
+   */
+  public static void setStreaming (boolean stream) {
+    streamPostings = stream;
+  }
+
+  /**
+   *  Restrict the postings that are read to a range of docids.  It
+   *  applies when the operator is next initialized.
+   *  @param minDocid The first internal docid of the range.
+   *  @param maxDocid The internal docid after the range.
+   */
+  public void setDocidRange (int minDocid, int maxDocid) {
+    this.minDocid = minDocid;
+    this.maxDocid = maxDocid;
+  }
+
   /**
    *  Evaluate the query operator; the result is an internal inverted
-   *  list that may be accessed via the internal iterators.
+   *  list that may be accessed via the internal iterators.  In
+   *  streaming mode, prepare to iterate over Lucene's postings.
    *  @throws IOException Error accessing the Lucene index.
    */
   protected void evaluate () throws IOException {
-    this.invertedList = new InvList(this.term, this.field);
+
+    this.streaming = streamPostings;
+    this.blockIndex = 0;
+    this.blocks = (this.index.getBlockMaxIndex () == null) ? null :
+      this.index.getBlockMaxIndex ().get (this.field, this.term);
+
+    if (! this.streaming) {
+      if ((this.minDocid > 0) || (this.maxDocid < Integer.MAX_VALUE))
+        this.invertedList = new InvList(this.index, this.term, this.field,
+                                        this.positionsRequired,
+                                        this.minDocid, this.maxDocid);
+      else if (InvListCache.isEnabled ())
+        this.invertedList = InvListCache.get (this.index, this.term, this.field,
+                                              this.positionsRequired);
+      else
+        this.invertedList = new InvList(this.index, this.term, this.field,
+                                        this.positionsRequired);
+      return;
+    }
+
+    Term t = new Term (this.field, new BytesRef (this.term));
+
+    this.invertedList = null;
+    this.streamDf = this.index.getReader ().docFreq (t);
+    this.streamCtf = (int) this.index.getReader ().totalTermFreq (t);
+    this.leaves = this.index.getReader ().leaves ();
+    this.streamDocid = -1;
+    this.streamPositionsDocid = -1;
+    this.streamLocIndex = 0;
+
+    if (this.streamDf < 1) {
+      this.leafIndex = this.leaves.size ();
+      this.streamDocid = DocIdSetIterator.NO_MORE_DOCS;
+      return;
+    }
+
+    this.openLeaf (0);
+    this.docIteratorAdvanceTo (this.minDocid);
+  }
+
+  /**
+   *  Position the streaming iterator at the start of a leaf.
+   *  @param i The index of the leaf.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private void openLeaf (int i) throws IOException {
+
+    this.leafIndex = i;
+
+    if (i >= this.leaves.size ())
+      return;
+
+    Terms terms = this.leaves.get (i).reader ().terms (this.field);
+
+    if (terms == null) {
+      this.leafPostings = null;
+      return;
+    }
+
+    TermsEnum termsEnum = terms.iterator ();
+
+    if (termsEnum.seekExact (new BytesRef (this.term))) {
+      int flags = this.positionsRequired ? PostingsEnum.POSITIONS : PostingsEnum.FREQS;
+      this.leafPostings = termsEnum.postings (this.leafPostings, flags);
+    } else {
+      this.leafPostings = null;
+    }
+  }
+
+  /**
+   *  Advance the query operator's internal iterator beyond the
+   *  specified document.
+   *  @param docid The document's internal document id
+   */
+  public void docIteratorAdvancePast (int docid) {
+
+    if (! this.streaming) {
+      super.docIteratorAdvancePast (docid);
+      return;
+    }
+
+    if (docid == Integer.MAX_VALUE) {
+      this.docIteratorFinish ();
+    } else {
+      this.docIteratorAdvanceTo (docid + 1);
+    }
+  }
+
+  /**
+   *  Advance the query operator's internal iterator to the specified
+   *  document if it exists, or beyond if it doesn't.  In streaming
+   *  mode, leaves that end before the document are skipped, and
+   *  Lucene's skip lists are used within a leaf.
+   *  @param docid The document's internal document id
+   */
+  public void docIteratorAdvanceTo (int docid) {
+
+    if (! this.streaming) {
+      super.docIteratorAdvanceTo (docid);
+      return;
+    }
+
+    this.streamLocIndex = 0;
+
+    if (this.streamDocid >= docid)
+      return;
+
+    try {
+      while (this.leafIndex < this.leaves.size ()) {
+        LeafReaderContext leaf = this.leaves.get (this.leafIndex);
+
+        if ((this.leafPostings != null) &&
+            (docid < leaf.docBase + leaf.reader ().maxDoc ())) {
+
+          int target = Math.max (docid - leaf.docBase, 0);
+          int leafDocid = this.leafPostings.docID ();
+
+          if (leafDocid < target) {
+            leafDocid = this.leafPostings.advance (target);
+          }
+
+          if (leafDocid != DocIdSetIterator.NO_MORE_DOCS) {
+            this.streamDocid = leaf.docBase + leafDocid;
+
+            if (this.streamDocid >= this.maxDocid)
+              this.docIteratorFinish ();
+
+            return;
+          }
+        }
+
+        this.openLeaf (this.leafIndex + 1);
+      }
+    } catch (IOException ex) {
+      throw new UncheckedIOException (ex);
+    }
+
+    this.streamDocid = DocIdSetIterator.NO_MORE_DOCS;
+  }
+
+  /**
+   *  Advance the query operator's internal iterator beyond the
+   *  any possible document.
+   */
+  public void docIteratorFinish () {
+
+    if (! this.streaming) {
+      super.docIteratorFinish ();
+      return;
+    }
+
+    this.leafIndex = this.leaves.size ();
+    this.streamDocid = DocIdSetIterator.NO_MORE_DOCS;
+  }
+
+  /**
+   *  Return the id of the document that the query operator's internal
+   *  iterator points to now.
+   *  @return The internal id of the current document.
+   */
+  public int docIteratorGetMatch () {
+    if (! this.streaming)
+      return super.docIteratorGetMatch ();
+
+    return this.streamDocid;
+  }
+
+  /**
+   *  Return the term frequency of the document that the docIterator
+   *  points to now.
+   *  @return The term frequency (tf) of the current document.
+   */
+  public int docIteratorGetMatchTf () {
+    if (! this.streaming)
+      return super.docIteratorGetMatchTf ();
+
+    try {
+      return this.leafPostings.freq ();
+    } catch (IOException ex) {
+      throw new UncheckedIOException (ex);
+    }
+  }
+
+  /**
+   *  Copy the positions of the document that the docIterator points
+   *  to now into an array.
+   *  @param dest The destination array.
+   *  @param destPos The starting position in the destination array.
+   *  @return The number of positions copied (the tf).
+   */
+  public int docIteratorGetMatchPositions (int[] dest, int destPos) {
+    if (! this.streaming)
+      return super.docIteratorGetMatchPositions (dest, destPos);
+
+    int tf = this.loadPositions ();
+    System.arraycopy (this.streamPositions, 0, dest, destPos, tf);
+    return tf;
+  }
+
+  /**
+   *  Indicates whether the query has a matching document.
+   *  @param r A retrieval model (that is ignored - it can be null)
+   *  @return True if the query matches a document, otherwise false.
+   */
+  public boolean docIteratorHasMatch (RetrievalModel r) {
+    if (! this.streaming)
+      return super.docIteratorHasMatch (r);
+
+    return (this.streamDocid != DocIdSetIterator.NO_MORE_DOCS);
+  }
+
+  /**
+   *  Get the collection term frequency (ctf) of the term.
+   *  @return The collection term frequency (ctf).
+   */
+  public int getCtf () {
+    if (! this.streaming)
+      return super.getCtf ();
+
+    return this.streamCtf;
+  }
+
+  /**
+   *  Get the document frequency (df) of the term.
+   *  @return The document frequency (df).
+   */
+  public int getDf () {
+    if (! this.streaming)
+      return super.getDf ();
+
+    return this.streamDf;
+  }
+
+  /**
+   *  Get the largest term frequency of any document that matches the
+   *  term.  In streaming mode the postings aren't scanned, so this is
+   *  an upper bound:  every other matching document has tf &gt;= 1.
+   *  @return The largest term frequency (tf), or an upper bound.
+   */
+  public int getMaxTf () {
+    if (! this.streaming)
+      return super.getMaxTf ();
+
+    return Math.max (this.streamCtf - this.streamDf + 1, 0);
+  }
+
+  /**
+   *  Move the block iterator to the block that contains the first
+   *  posting whose docid is at least the specified docid.  Terms
+   *  with block metadata use it; others have one block.
+   *  @param docid An internal document id.
+   *  @return The last docid in the block, or Integer.MAX_VALUE if
+   *  the block is the last one.
+   */
+  public int advanceShallow (int docid) {
+    if (this.blocks == null)
+      return super.advanceShallow (docid);
+
+    int from = this.blockIndex;
+
+    if ((from > 0) && (from <= this.blocks.size ()) &&
+        (this.blocks.getLastDocid (from - 1) >= docid))
+      from = 0;
+
+    this.blockIndex = this.blocks.find (from, docid);
+
+    if (this.blockIndex >= this.blocks.size () - 1)
+      return Integer.MAX_VALUE;
+
+    return this.blocks.getLastDocid (this.blockIndex);
+  }
+
+  /**
+   *  Get the largest tf in the block that advanceShallow moved to.
+   *  @return The largest tf in the block.
+   */
+  public int getBlockMaxTf () {
+    if (this.blocks == null)
+      return super.getBlockMaxTf ();
+
+    if (this.blockIndex >= this.blocks.size ())
+      return 0;
+
+    return this.blocks.getMaxTf (this.blockIndex);
+  }
+
+  /**
+   *  Get the length of the shortest document in the block that
+   *  advanceShallow moved to.
+   *  @return The shortest document length in the block.
+   */
+  public int getBlockMinLength () {
+    if (this.blocks == null)
+      return super.getBlockMinLength ();
+
+    if (this.blockIndex >= this.blocks.size ())
+      return Integer.MAX_VALUE;
+
+    return this.blocks.getMinLength (this.blockIndex);
+  }
+
+  /**
+   *  Decode the positions of the current document, if that hasn't
+   *  been done already.  Lucene positions can only be read once per
+   *  document, so they are kept in a reusable buffer.
+   *  @return The number of positions (the tf).
+   */
+  private int loadPositions () {
+    try {
+      int tf = this.leafPostings.freq ();
+
+      if (this.streamPositionsDocid != this.streamDocid) {
+        if (this.streamPositions.length < tf) {
+          this.streamPositions = new int[Math.max (tf, 2 * this.streamPositions.length)];
+        }
+
+        for (int j = 0; j < tf; j++)
+          this.streamPositions[j] = this.leafPostings.nextPosition ();
+
+        this.streamPositionsDocid = this.streamDocid;
+      }
+
+      return tf;
+    } catch (IOException ex) {
+      throw new UncheckedIOException (ex);
+    }
+  }
+
+  /**
+   *  Advance the query operator's internal iterator to the
+   *  next location.
+   */
+  public void locIteratorAdvance () {
+    if (! this.streaming) {
+      super.locIteratorAdvance ();
+      return;
+    }
+
+    this.streamLocIndex ++;
+  }
+
+  /**
+   *  Advance the query operator's internal iterator beyond the
+   *  specified location.
+   *  @param loc The location to advance beyond.
+   */
+  public void locIteratorAdvancePast (int loc) {
+    if (! this.streaming) {
+      super.locIteratorAdvancePast (loc);
+      return;
+    }
+
+    int tf = this.loadPositions ();
+
+    while ((this.streamLocIndex < tf) &&
+           (this.streamPositions[this.streamLocIndex] <= loc)) {
+      this.streamLocIndex ++;
+    }
+  }
+
+  /**
+   *  Advance the query operator's internal iterator beyond
+   *  any possible location.
+   */
+  public void locIteratorFinish () {
+    if (! this.streaming) {
+      super.locIteratorFinish ();
+      return;
+    }
+
+    this.streamLocIndex = this.docIteratorGetMatchTf ();
+  }
+
+  /**
+   *  Return the document location that the query operator's internal
+   *  iterator points to now.
+   *  @return The current location.
+   */
+  public int locIteratorGetMatch () {
+    if (! this.streaming)
+      return super.locIteratorGetMatch ();
+
+    this.loadPositions ();
+    return this.streamPositions[this.streamLocIndex];
+  }
+
+  /**
+   *  Returns true if the query operator's internal iterator currently
+   *  points to a location.
+   *  @return True if the iterator currently points to a location.
+   */
+  public boolean locIteratorHasMatch () {
+    if (! this.streaming)
+      return super.locIteratorHasMatch ();
+
+    return (this.streamLocIndex < this.docIteratorGetMatchTf ());
   }
 
   /**
-   *  Get a string version of this query operator.  
+   *  Get a string version of this query operator.
    *  @return The string version of this query operator.
    */
   public String toString(){
@@ -1,7 +1,6 @@
 /**
  *  Copyright (c) 2022, Carnegie Mellon University.  All Rights Reserved.
  */
-import javax.swing.*;
 import java.io.*;
 import java.util.*;
 
@@ -10,135 +9,163 @@ import java.util.*;
  */
 public class QryIopWindow extends QryIop {
     public int distance;
-    public QryIopWindow(int distance){
-        // constructor to create WINDOW operator with input distance
-        this.distance = distance;
-    }
 
     /**
-     *  Helper Function to checking if docid exist in the inverted list of input QryIop
-     *  assuming the inverted list is already sorted by docid
+     *  The positions of the matches in the current document; reused
+     *  across documents.
+     */
+    private int[] matches = new int[16];
+
+    /**
+     *  A min-heap of argument indexes, ordered by the position at
+     *  each argument's cursor, and then by argument index.
      */
-    public boolean checkDocidExist (int docid, Qry q) {
-        // advance the input qry to anchored docid
-        q.docIteratorAdvanceTo(docid);
-        // check if Qry q is pointing to any docid
-        // if not, the doc iterator of q is exhausted, and hence no match possible
-        if (! q.docIteratorHasMatch(null)) {return false;}
-        // get the docid where q is pointing to, this should be docid if docid exists
-        // in the inverted list of Qry q, else it would surpass docid
-        int q_docid = q.docIteratorGetMatch();
-        return q_docid == docid;
+    private int[] heap = new int[0];
+
+    public QryIopWindow(int distance){
+        // constructor to create WINDOW operator with input distance
+        this.distance = distance;
     }
 
     /**
-     *  Helper Function to checking if any of the inverted list has exhausted
-     *  ONLY return true if all query inverted lists has location iterator pointing to somewhere not null
+     *  WINDOW matches on term positions, so its arguments must provide them.
+     *  @return True.
      */
-    public boolean checkAnyExhausted () {
-        for (int j = 0; j < this.args.size(); j++) {
-            QryIop q_j = (QryIop) this.args.get(j);
-            if (!q_j.locIteratorHasMatch()) {
-                return false;
-            }}
+    protected boolean argsRequirePositions () {
         return true;
     }
 
-
     /**
      *  Evaluate the query operator; the result is an internal inverted
      *  list that may be accessed via the internal iterators.
      *  @throws IOException Error accessing the Lucene index.
      */
-
     protected void evaluate () throws IOException {
 
         //  Create an empty inverted list.  If there are no query arguments,
         //  this is the final result.
 
-        this.invertedList = new InvList (this.getField());
+        this.invertedList = new InvList (this.getField(), this.positionsRequired);
         // WINDOW operator should take at least 2 arguments, else we simply
         // return the empty invertedList
         if (args.size () <= 1) {
             return;
         }
 
-        // Anchor the initial Qry and loop through the remaining Qry
-        Qry q_0 = this.args.get(0);
-        // loop until the anchored inverted list is exhausted
-        while (q_0.docIteratorHasMatch(null)) {
-            // get the current leftmost docid id and search for remaining Qry for same docid
-            int q_0_docid = q_0.docIteratorGetMatch ();
-            boolean docid_all_match = true;
-            // starting from the next Qry
-            for (int i=1; i<this.args.size(); i++){
-                Qry q_i = this.args.get(i);
-                docid_all_match = checkDocidExist(q_0_docid, q_i);
-                // as long as we have an inverted list without the docid, we break the for loop
-                if (!docid_all_match)
-                    break;
+        // find the docids that every inverted list has, rarest list first,
+        // until one of them is exhausted
+        int docid;
+        while ((docid = this.docIteratorAdvanceToAll(null)) != Qry.INVALID_DOCID) {
+            // all Qry are now pointing to the same docid; match their positions
+            this.loadArgPositions();
+            int tf = this.matchPositions();
+
+            // append the doc-loc posting to inverted list, if not empty.
+            // matches are found left to right, so the positions are sorted
+            if (tf > 0) {
+                if (this.positionsRequired)
+                    this.invertedList.appendPosting (docid, this.matches, tf);
+                else
+                    this.invertedList.appendPosting (docid, tf);
             }
-            if (docid_all_match){
-                // once we find a common docid among all inverted lists,
-                // create new position list per docid to record potential match
-                List<Integer> max_locids = new ArrayList<Integer>();
-                // we loop into the location. Note all Qry is now pointing to the same docid already
-                // via the call of checkDocidExist
-                // while none of iterator exhaust
-                boolean not_exhausted = checkAnyExhausted();
-                while (not_exhausted) {
-                    // set up
-                    int min_qry_idx = 0;
-                    int max_qry_idx = 0;
-//                    int max_locid = 0;
-//                    int min_locid = 0;
-                    // loop through entire query list to get max and min
-                    for (int j = 0; j < this.args.size(); j++) {
-                        QryIop q_j = (QryIop) this.args.get(j);
-                        // has match must work here under not_exhausted condition
-                        int locid_j = q_j.locIteratorGetMatch();
-//                        max_locid = ((QryIop) this.args.get(max_qry_idx)).locIteratorGetMatch();
-//                        min_locid = ((QryIop) this.args.get(min_qry_idx)).locIteratorGetMatch();
-                        // update the iterator holding min and max location id
-                        if (((QryIop) this.args.get(min_qry_idx)).locIteratorGetMatch() > locid_j) {
-                            min_qry_idx = j;
-                        } else if (((QryIop) this.args.get(max_qry_idx)).locIteratorGetMatch() < locid_j) {
-                            max_qry_idx = j;
-                        }
-                        // otherwise, current locid falling in the min-max range
-                    }
-                    int max_locid = ((QryIop) this.args.get(max_qry_idx)).locIteratorGetMatch();
-                    int min_locid = ((QryIop) this.args.get(min_qry_idx)).locIteratorGetMatch();
-
-                    // check if the min-max range is within window range
-                    if (Math.abs(max_locid - min_locid) < this.distance) {
-                        // if we have a match, add max locid to list and advance all iterators
-                        max_locids.add(max_locid);
-                        // move the all loc iterator to the next location
-                        for (int k = 0; k < this.args.size(); k++) {
-                            Qry q_k = this.args.get(k);
-                            ((QryIop) q_k).locIteratorAdvance();
-                        }
-                    } else {
-                        // WINDOW does not match, then move the min locid if not exhausted
-                        ((QryIop) this.args.get(min_qry_idx)).locIteratorAdvance();
-                    }
-                    // at the end, check if every node after the loop is not exhausted
-                    not_exhausted = checkAnyExhausted();
-                }
+            // advance the leftmost doc iterator passing the current matched docid
+            this.args.get(0).docIteratorAdvancePast(docid);
+        }
+    }
+
+    /**
+     *  Find the WINDOW matches in the loaded argument positions.  The
+     *  window spans the smallest and the largest position at the
+     *  arguments' cursors.  The smallest comes from a min-heap of the
+     *  cursors; the largest only grows while cursors move forward, so
+     *  it is tracked as a running maximum.  If the window is shorter
+     *  than distance, the largest position is recorded and every
+     *  cursor moves forward; otherwise only the smallest cursor moves.
+     *  Matching stops when any cursor is exhausted.
+     *  @return The number of matches, which are in this.matches.
+     */
+    private int matchPositions () {
+
+        int n = this.args.size();
+        int[][] positions = this.argPositions;
+        int[] tfs = this.argTfs;
+        int[] cursors = this.argCursors;
+        int numMatches = 0;
+
+        if (this.heap.length != n)
+            this.heap = new int[n];
+
+        int max_locid = this.buildHeap();
+
+        while (true) {
+            int min_qry_idx = this.heap[0];
+            int min_locid = positions[min_qry_idx][cursors[min_qry_idx]];
 
-                // append the doc-loc posting to inverted list, if not empty
-                if (max_locids.size() > 0) {
-                    // make sure the list of locid is sorted
-                    Collections.sort (max_locids);
-                    this.invertedList.appendPosting (q_0_docid, max_locids);
+            // check if the min-max range is within window range
+            if (max_locid - min_locid < this.distance) {
+                // if we have a match, record max locid and advance all cursors
+                if (numMatches == this.matches.length)
+                    this.matches = Arrays.copyOf (this.matches, 2 * numMatches);
+                this.matches[numMatches++] = max_locid;
+                for (int k=0; k<n; k++) {
+                    if (++cursors[k] >= tfs[k])
+                        return numMatches;
                 }
+                max_locid = this.buildHeap();
+            } else {
+                // WINDOW does not match, then move the min cursor
+                if (++cursors[min_qry_idx] >= tfs[min_qry_idx])
+                    return numMatches;
+                max_locid = Math.max (max_locid, positions[min_qry_idx][cursors[min_qry_idx]]);
+                this.siftDown(0);
             }
-            // regardless we have a match or not, at the end, we advance the leftmost doc iterator
-            // passing the current matched docid
-            q_0.docIteratorAdvancePast(q_0_docid);
         }
+    }
 
+    /**
+     *  Build the heap from every argument's cursor.
+     *  @return The largest position at the cursors.
+     */
+    private int buildHeap () {
+        int n = this.heap.length;
+        int max_locid = Integer.MIN_VALUE;
+        for (int i=0; i<n; i++) {
+            this.heap[i] = i;
+            max_locid = Math.max (max_locid, this.argPositions[i][this.argCursors[i]]);
+        }
+        for (int i=n/2-1; i>=0; i--)
+            this.siftDown(i);
+        return max_locid;
     }
-}
 
+    /**
+     *  Move a heap entry down to restore the heap order.
+     *  @param i The index of the entry in the heap.
+     */
+    private void siftDown (int i) {
+        int n = this.heap.length;
+        int entry = this.heap[i];
+        while (true) {
+            int child = 2*i+1;
+            if (child >= n)
+                break;
+            if ((child+1 < n) && this.before(this.heap[child+1], this.heap[child]))
+                child++;
+            if (! this.before(this.heap[child], entry))
+                break;
+            this.heap[i] = this.heap[child];
+            i = child;
+        }
+        this.heap[i] = entry;
+    }
+
+    /**
+     *  Whether argument a's cursor comes before argument b's:  it has
+     *  a smaller position, or the same position and a smaller index.
+     */
+    private boolean before (int a, int b) {
+        int loc_a = this.argPositions[a][this.argCursors[a]];
+        int loc_b = this.argPositions[b][this.argCursors[b]];
+        return (loc_a < loc_b) || ((loc_a == loc_b) && (a < b));
+    }
+}
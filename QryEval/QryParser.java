@@ -37,18 +37,32 @@ public class QryParser {
 
   //  --------------- Constants and variables ---------------------
 
-  private static final EnglishAnalyzerConfigurable ANALYZER =
-    new EnglishAnalyzerConfigurable();
+  /**
+   *  The analyzer that tokenizes query terms.  Queries may be parsed
+   *  by several threads at the same time (e.g., a batch of queries,
+   *  see QryEval.processQueryFile), and an analyzer's configuration
+   *  and token streams aren't shared safely, so each thread has its
+   *  own analyzer.
+   */
+  private static final ThreadLocal<EnglishAnalyzerConfigurable> ANALYZER =
+    ThreadLocal.withInitial (QryParser::createAnalyzer);
 
-  //  -------------------- Initialization -------------------------
+  //  ----------- Methods, in alphabetical order ------------------
 
-  static {
-    ANALYZER.setLowercase(true);
-    ANALYZER.setStopwordRemoval(true);
-    ANALYZER.setStemmer(EnglishAnalyzerConfigurable.StemmerType.KSTEM);
-  }
+  /**
+   *  Create an analyzer that lowercases, removes stopwords, and
+   *  stems with the Krovetz stemmer.
+   *  @return The analyzer.
+   */
+  private static EnglishAnalyzerConfigurable createAnalyzer () {
 
-  //  ----------- Methods, in alphabetical order ------------------
+    EnglishAnalyzerConfigurable analyzer = new EnglishAnalyzerConfigurable();
+
+    analyzer.setLowercase(true);
+    analyzer.setStopwordRemoval(true);
+    analyzer.setStemmer(EnglishAnalyzerConfigurable.StemmerType.KSTEM);
+    return analyzer;
+  }
 
   /**
    *  Count the number of occurrences of character c in string s.
@@ -120,6 +134,10 @@ public class QryParser {
     operator = new QryIopWindow (operatorDistance);
     break;
 
+      case "#filter":
+	operator = new QrySopFilter ();
+	break;
+
       //  STUDENTS:: 
       //  Add new query operators here.
 
@@ -196,6 +214,80 @@ public class QryParser {
     return q;
   }
 
+  /**
+   *  Parse a query string into a query tree, and rewrite the tree
+   *  with index statistics into a cheaper tree that produces the
+   *  same ranking under the retrieval model (see rewriteQuery).  The
+   *  estimated cost (see estimateCost) is logged before and after.
+   *  @param queryString The query string, in an Indri-style
+   *  query language.
+   *  @param r The retrieval model that the query will be evaluated with.
+   *  @return Qry The query tree for the parsed query.
+   *  @throws IOException Error accessing the Lucene index.
+   *  @throws IllegalArgumentException Query syntax error.
+   */
+  public static Qry getQuery (String queryString, RetrievalModel r)
+      throws IOException, IllegalArgumentException {
+    return getQuery (queryString, Idx.getIndexContext (), r, true);
+  }
+
+  /**
+   *  Parse a query string into a query tree, and rewrite the tree
+   *  with the statistics of an index (see getQuery (queryString, r)).
+   *  Evaluating a query in parts (see ParallelEvaluation) parses it
+   *  once per part, and only needs to log the estimated cost once.
+   *  @param queryString The query string, in an Indri-style
+   *  query language.
+   *  @param index The index that the query will be evaluated on.
+   *  @param r The retrieval model that the query will be evaluated with.
+   *  @param logCost Whether to log the estimated cost.
+   *  @return Qry The query tree for the parsed query.
+   *  @throws IOException Error accessing the Lucene index.
+   *  @throws IllegalArgumentException Query syntax error.
+   */
+  public static Qry getQuery (String queryString, IndexContext index,
+                              RetrievalModel r, boolean logCost)
+      throws IOException, IllegalArgumentException {
+    return getQuery (queryString, index, r, logCost ? System.out : null);
+  }
+
+  /**
+   *  Parse a query string into a query tree, and rewrite the tree
+   *  with the statistics of an index (see getQuery (queryString, r)).
+   *  Queries that are evaluated concurrently log to their own
+   *  streams, so that each query's log isn't interleaved with others.
+   *  @param queryString The query string, in an Indri-style
+   *  query language.
+   *  @param index The index that the query will be evaluated on.
+   *  @param r The retrieval model that the query will be evaluated with.
+   *  @param log Where the estimated cost is logged, or null.
+   *  @return Qry The query tree for the parsed query.
+   *  @throws IOException Error accessing the Lucene index.
+   *  @throws IllegalArgumentException Query syntax error.
+   */
+  public static Qry getQuery (String queryString, IndexContext index,
+                              RetrievalModel r, PrintStream log)
+      throws IOException, IllegalArgumentException {
+
+    Qry q = getQuery (queryString);
+
+    if (q == null) {
+      return q;
+    }
+
+    if (log == null) {
+      return rewriteQuery (q, index, r);
+    }
+
+    long costBefore = estimateCost (q, index);
+    q = rewriteQuery (q, index, r);
+    long costAfter = estimateCost (q, index);
+
+    log.println ("    Estimated cost: " + costBefore + " -> " + costAfter +
+		 " postings");
+    return q;
+  }
+
   /**
    *  Get the index of the right parenenthesis that balances the
    *  left-most parenthesis.  Return -1 if it doesn't exist.
@@ -226,7 +318,9 @@ public class QryParser {
    *  query parsing, for example '#NEAR/1 (of the)' which turns into
    *  '#NEAR/1 ()' after stopwords are removed; and unnecessary nodes
    *  or subtrees, such as #AND (#AND (a)), which can be replaced by
-   *  'a'.
+   *  'a'.  A #FILTER is never replaced by one of its arguments,
+   *  because that would drop the mask or score the mask; if either
+   *  argument is deleted, the #FILTER can't match and is deleted.
    */
   private static Qry optimizeQuery(Qry q) {
 
@@ -240,6 +334,7 @@ public class QryParser {
     //  arguments.  This is done in reverse to simplify deleting
     //  query arguments that become null.
     double q_orig_weight = q.getWeight();
+    int q_orig_size = q.args.size();
     for (int i = q.args.size() - 1; i >= 0; i--) {
 
       Qry q_i_before = q.args.get(i);
@@ -261,11 +356,20 @@ public class QryParser {
       return null;
     }
 
-    //  Only SCORE operators can have a single argument.  Other
-    //  query operators that have just one argument are deleted.
+    //  A #FILTER that lost an argument can't match any document.
+
+    if ((q instanceof QrySopFilter) && (q.args.size () < q_orig_size)) {
+      return null;
+    }
+
+    //  Only SCORE and FILTER operators can have a single argument.
+    //  Other query operators that have just one argument are deleted.
+    //  A #FILTER with the wrong number of arguments is reported when
+    //  it is initialized.
 
     if ((q.args.size() == 1) &&
-        (! (q instanceof QrySopScore))) {
+        (! (q instanceof QrySopScore)) &&
+        (! (q instanceof QrySopFilter))) {
       q = q.args.get (0);
     }
 
@@ -275,6 +379,187 @@ public class QryParser {
   }
 
 
+  /**
+   *  Rewrite an optimized query tree into a cheaper tree that
+   *  produces the same ranking under the retrieval model.  This is a
+   *  depth-first pass that uses index statistics:
+   *  <ul>
+   *  <li>Nested operators of the same type are flattened when that
+   *      doesn't change scores:  #SYN always; #AND and #OR under the
+   *      Boolean models; #SUM under BM25; and #WSUM and #WAND, whose
+   *      weights multiply (Indri weights are normalized, so
+   *      #WAND (0.5 #WAND (0.4 a 0.6 b) 0.5 c) is
+   *      #WAND (0.2 a 0.3 b 0.5 c)).
+   *
+   *  <li>Duplicate arguments of #WSUM and #WAND are merged into one
+   *      argument whose weight is the sum of their weights.
+   *
+   *  <li>Arguments that can't match any document (e.g., terms whose
+   *      df is 0) are dropped from #SYN, from #OR under the Boolean
+   *      models, and from #SUM under BM25, where they contribute
+   *      nothing.  Other operators keep them, because they make a
+   *      conjunction empty or contribute an Indri default score.
+   *
+   *  <li>Arguments of #SYN, and of #AND and #OR under the Boolean
+   *      models, are sorted by df, rarest first.  Their scores don't
+   *      depend on argument order.
+   *
+   *  <li>An operator that is left with one argument (e.g., a #SYN of
+   *      one term) is replaced by that argument, except #FILTER.
+   *  </ul>
+   *  Flattening and merging can change the order in which scores are
+   *  added or multiplied, so scores may differ in the last bits.
+   *  @param q An optimized query tree (see optimizeQuery).
+   *  @param index The index that the query will be evaluated on.
+   *  @param r The retrieval model that the query will be evaluated with.
+   *  @return The rewritten query tree.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private static Qry rewriteQuery (Qry q, IndexContext index, RetrievalModel r)
+    throws IOException {
+
+    if (q instanceof QryIopTerm) {
+      return q;
+    }
+
+    for (int i = 0; i < q.args.size(); i++) {
+      q.args.set (i, rewriteQuery (q.args.get (i), index, r));
+    }
+
+    boolean isBoolean = (r instanceof RetrievalModelUnrankedBoolean) ||
+                        (r instanceof RetrievalModelRankedBoolean);
+    boolean isWeighted = (q instanceof QrySopWsum) || (q instanceof QrySopWand);
+
+    //  Flatten nested operators of the same type.
+
+    if ((q instanceof QryIopSyn) ||
+        (isBoolean && ((q instanceof QrySopAnd) || (q instanceof QrySopOr))) ||
+        ((r instanceof RetrievalModelBM25) && (q instanceof QrySopSum)) ||
+        isWeighted) {
+      ArrayList<Qry> flat = new ArrayList<Qry> ();
+
+      for (Qry q_i : q.args) {
+        if (q_i.getClass () == q.getClass ()) {
+          for (Qry q_ij : q_i.args) {
+            if (isWeighted) {
+              q_ij.setWeight (q_i.getWeight () * q_ij.getWeight ());
+            }
+            flat.add (q_ij);
+          }
+        } else {
+          flat.add (q_i);
+        }
+      }
+
+      q.args = flat;
+    }
+
+    //  Merge duplicate weighted arguments.
+
+    if (isWeighted) {
+      Map<String,Qry> seen = new HashMap<String,Qry> ();
+
+      for (int i = 0; i < q.args.size(); i++) {
+        Qry q_i = q.args.get (i);
+        Qry first = seen.putIfAbsent (q_i.toString (), q_i);
+
+        if (first != null) {
+          first.setWeight (first.getWeight () + q_i.getWeight ());
+          q.removeArg (i--);
+        }
+      }
+    }
+
+    //  Drop arguments that can't match, but keep at least one, so
+    //  that the operator still means the same thing.
+
+    if ((q instanceof QryIopSyn) ||
+        (isBoolean && (q instanceof QrySopOr)) ||
+        ((r instanceof RetrievalModelBM25) && (q instanceof QrySopSum))) {
+      for (int i = q.args.size() - 1; (i >= 0) && (q.args.size() > 1); i--) {
+        if (isEmpty (q.args.get (i), index)) {
+          q.removeArg (i);
+        }
+      }
+    }
+
+    //  Sort order-independent arguments by df, rarest first.  The
+    //  sort is stable, so ties keep the query order.
+
+    if ((q instanceof QryIopSyn) ||
+        (isBoolean && ((q instanceof QrySopAnd) || (q instanceof QrySopOr)))) {
+      Map<Qry,Long> costs = new IdentityHashMap<Qry,Long> ();
+
+      for (Qry q_i : q.args) {
+        costs.put (q_i, estimateCost (q_i, index));
+      }
+
+      q.args.sort ((a, b) -> Long.compare (costs.get (a), costs.get (b)));
+    }
+
+    //  Only SCORE and FILTER operators can have a single argument.
+
+    if ((q.args.size() == 1) &&
+        (! (q instanceof QrySopScore)) && (! (q instanceof QrySopFilter))) {
+      Qry q_0 = q.args.get (0);
+      q_0.setWeight (q.getWeight ());
+      return q_0;
+    }
+
+    return q;
+  }
+
+  /**
+   *  Estimate the cost of evaluating a query tree:  the number of
+   *  postings that its terms read, which is the sum of their dfs.
+   *  @param q A query tree.
+   *  @param index The index that the query will be evaluated on.
+   *  @return The estimated cost.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private static long estimateCost (Qry q, IndexContext index) throws IOException {
+
+    if (q instanceof QryIopTerm) {
+      QryIopTerm t = (QryIopTerm) q;
+      return index.getDocFreq (t.getField (), t.getTerm ());
+    }
+
+    long cost = 0;
+
+    for (Qry q_i : q.args) {
+      cost += estimateCost (q_i, index);
+    }
+
+    return cost;
+  }
+
+  /**
+   *  Whether a query tree can't match any document, based on the
+   *  document frequencies of its terms.  A term is empty if its df
+   *  is 0; #NEAR and #WINDOW are empty if any argument is empty;
+   *  other operators are empty if every argument is empty.
+   *  @param q A query tree.
+   *  @param index The index that the query will be evaluated on.
+   *  @return True if q can't match any document.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private static boolean isEmpty (Qry q, IndexContext index) throws IOException {
+
+    if (q instanceof QryIopTerm) {
+      return estimateCost (q, index) == 0;
+    }
+
+    boolean conjunctive = (q instanceof QryIopNear) || (q instanceof QryIopWindow);
+
+    for (Qry q_i : q.args) {
+      if (isEmpty (q_i, index) == conjunctive) {
+        return conjunctive;
+      }
+    }
+
+    return ! conjunctive;
+  }
+
   /**
    *  Parse a query string into a query tree.
    *  @param queryString The query string, in an Indri-style query
@@ -485,7 +770,7 @@ public class QryParser {
    */
   public static String[] tokenizeString(String query) throws IOException {
 
-    TokenStream tokenStream = ANALYZER.tokenStream ("dummyField", new StringReader(query));
+    TokenStream tokenStream = ANALYZER.get ().tokenStream ("dummyField", new StringReader(query));
     CharTermAttribute charTermAttribute =
       tokenStream.addAttribute(CharTermAttribute.class);
     tokenStream.reset();
@@ -14,6 +14,15 @@ import java.io.*;
  */
 public abstract class QrySop extends Qry {
 
+  /**
+   *  Score bounds are multiplied by this before they are compared to
+   *  the top-k threshold, so that rounding differences between a sum
+   *  of bounds and a sum of scores can't prune a document that
+   *  belongs in the top k.  Dynamic pruning (e.g., MaxScore in
+   *  QrySopSum, BlockMaxWand) uses it.
+   */
+  static final double BOUND_SLACK = 1.0 + 1e-9;
+
   /**
    *  STUDENTS: In HW2 you may find it useful to extend QrySop objects
    *  to include additional methods to support other retieval models.
@@ -39,17 +48,81 @@ public abstract class QrySop extends Qry {
    */
   public abstract double getDefaultScore (RetrievalModel r, long docid)
           throws IOException;
+
+  /**
+   *  Get the natural log of the score of the document that
+   *  docIteratorHasMatch matched.  Indri operators that multiply
+   *  argument scores add their logs instead, which replaces a pow per
+   *  argument with a multiplication and can't underflow.  This
+   *  implementation takes the log of getScore; operators that can
+   *  compute the log directly override it.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The log of the document score.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public double getLogScore (RetrievalModel r) throws IOException {
+    return Math.log (this.getScore (r));
+  }
+
+  /**
+   *  Get the natural log of the score of a document that
+   *  docIteratorHasMatch failed (see getLogScore).
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param docid the document ID to calculate default score
+   *  @return The log of the document score.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public double getLogDefaultScore (RetrievalModel r, long docid) throws IOException {
+    return Math.log (this.getDefaultScore (r, docid));
+  }
+
+  /**
+   *  Evaluate the query and collect the best documents.  This
+   *  implementation scores every matching document.  Operators that
+   *  can bound their scores override it to skip documents that can't
+   *  enter the top k.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param topK Collects the best documents.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public void evaluateTopK (RetrievalModel r, TopKCollector topK)
+    throws IOException {
+
+    while (this.docIteratorHasMatch (r)) {
+      int docid = this.docIteratorGetMatch ();
+      topK.add (docid, this.getScore (r));
+      this.docIteratorAdvancePast (docid);
+    }
+  }
+
+  /**
+   *  Whether every argument is a SCORE operator.  SCORE operators can
+   *  bound their scores, which dynamic pruning requires.
+   *  @return True if every argument is a SCORE operator.
+   */
+  protected boolean argsAreScoreOperators () {
+    for (Qry q_i : this.args) {
+      if (! (q_i instanceof QrySopScore))
+        return false;
+    }
+
+    return true;
+  }
+
   /**
    *  Initialize the query operator (and its arguments), including any
    *  internal iterators.  If the query operator is of type QryIop, it
    *  is fully evaluated, and the results are stored in an internal
    *  inverted list that may be accessed via the internal iterator.
+   *  @param index The index that the query is evaluated on.
    *  @param r A retrieval model that guides initialization
    *  @throws IOException Error accessing the Lucene index.
    */
-  public void initialize(RetrievalModel r) throws IOException {
+  public void initialize(IndexContext index, RetrievalModel r) throws IOException {
+    this.index = index;
+
     for (Qry q_i: this.args) {
-      q_i.initialize (r);
+      q_i.initialize (index, r);
     }
   }
 }
@@ -1,4 +1,5 @@
 import java.io.*;
+import java.util.*;
 
 /**
  *  The AND operator for all retrieval models.
@@ -19,6 +20,20 @@ public class QrySopAnd extends QrySop {
             return this.docIteratorHasMatchAll (r);
     }
 
+    /**
+     *  Estimate the number of documents that the query matches.  A
+     *  Boolean AND can't match more documents than its rarest
+     *  argument, so that is its estimate.
+     *  @return The estimated number of matching documents.
+     */
+    public long getCost () {
+        long cost = Long.MAX_VALUE;
+        for (int i=0; i<this.args.size(); i++) {
+            cost = Math.min(cost, this.args.get(i).getCost());
+        }
+        return cost;
+    }
+
     /**
      *  Get a score for the document that docIteratorHasMatch matched.
      *  @param r The retrieval model that determines how scores are calculated.
@@ -47,25 +62,75 @@ public class QrySopAnd extends QrySop {
         }
     }
 
+    /**
+     *  Evaluate the query and collect the best documents.  If the
+     *  Indri model enables MaxScore pruning and every argument is a
+     *  SCORE operator, documents that can't enter the top k are
+     *  skipped (see IndriMaxScore); otherwise every document that
+     *  matches an argument is scored.
+     *  @param r The retrieval model that determines how scores are calculated.
+     *  @param topK Collects the best documents.
+     *  @throws IOException Error accessing the Lucene index
+     */
+    public void evaluateTopK (RetrievalModel r, TopKCollector topK) throws IOException {
+        if ((r instanceof RetrievalModelIndri) &&
+                ((RetrievalModelIndri) r).getPruning ().equals ("maxscore") &&
+                this.argsAreScoreOperators ()) {
+            double[] weights = new double[this.args.size()];
+            Arrays.fill (weights, 1.0/this.args.size());
+
+            if (IndriMaxScore.evaluate (this.args, weights, r, topK))
+                return;
+        }
+
+        super.evaluateTopK (r, topK);
+    }
+
     public double getDefaultScore (RetrievalModel r, long docid) throws IOException {
+        if (r instanceof RetrievalModelIndri) {
+            return Math.exp(this.getLogDefaultScore(r, docid));
+        }
+        else {
+            throw new IllegalArgumentException
+                    (r.getClass().getName() + " doesn't support the Default Score for AND operator.");
+        }
+    }
 
+    /**
+     *  Get the log of the default score of a document that
+     *  docIteratorHasMatch failed:  the weighted sum of the log
+     *  default scores of the arguments.
+     *  @param r The retrieval model that determines how scores are calculated.
+     *  @param docid the document ID to calculate default score
+     *  @return The log of the document score.
+     *  @throws IOException Error accessing the Lucene index
+     */
+    public double getLogDefaultScore (RetrievalModel r, long docid) throws IOException {
         if (r instanceof RetrievalModelIndri) {
-            // get the length of this query
             int query_size = this.args.size();
-            double score = 1.0;
-            // iterate through each term
+            double log_score = 0.0;
             for (int i=0; i<query_size; i++) {
                 QrySop q_i = (QrySop) this.args.get(i);
-
-                score *= Math.pow(q_i.getDefaultScore(r,docid), 1.0/query_size);
+                double weight = 1.0/query_size;
+                log_score += weight*q_i.getLogDefaultScore(r,docid);
             }
-            return score;
+            return log_score;
         }
+        return super.getLogDefaultScore(r, docid);
+    }
 
-        else {
-            throw new IllegalArgumentException
-                    (r.getClass().getName() + " doesn't support the Default Score for AND operator.");
+    /**
+     *  Get the log of the score of the document that
+     *  docIteratorHasMatch matched.
+     *  @param r The retrieval model that determines how scores are calculated.
+     *  @return The log of the document score.
+     *  @throws IOException Error accessing the Lucene index
+     */
+    public double getLogScore (RetrievalModel r) throws IOException {
+        if (r instanceof RetrievalModelIndri) {
+            return this.getLogScoreIndri (r);
         }
+        return super.getLogScore(r);
     }
 
     /**
@@ -112,24 +177,35 @@ public class QrySopAnd extends QrySop {
     }
 
     private double getScoreIndri (RetrievalModel r) throws IOException {
-        // set initial score to be 1 for mulplication
-        double score = 1.0;
-        double q_score;
+        return Math.exp(this.getLogScoreIndri(r));
+    }
+
+    /**
+     *  The Indri score in log space:  the weighted sum of the log
+     *  scores of the arguments, in argument order.  Weights are
+     *  multipliers instead of exponents, so there is no pow per
+     *  argument.
+     *  @param r The retrieval model that determines how scores are calculated.
+     *  @return The log of the document score.
+     *  @throws IOException Error accessing the Lucene index
+     */
+    private double getLogScoreIndri (RetrievalModel r) throws IOException {
+        // set initial log score to be 0 for summation
+        double log_score = 0.0;
         // Note that the getScoreIndri would not be called on doc with none of the query term
         // so there must be at least one Qry has matched on the docid
         int docid = this.docIteratorGetMatch ();
         int query_size = this.args.size();
         for (int i=0; i<query_size; i++) {
             QrySop q_i = (QrySop) this.args.get(i);
+            double weight = 1.0/query_size;
             if (q_i.docIteratorHasMatch (r) &&
                     (q_i.docIteratorGetMatch () == docid)){
-                q_score = Math.pow(q_i.getScore(r), 1.0/query_size);
+                log_score += weight*q_i.getLogScore(r);
             }
-            else{q_score = Math.pow(q_i.getDefaultScore(r,docid), 1.0/query_size);}
-            score *= q_score;
+            else{log_score += weight*q_i.getLogDefaultScore(r,docid);}
         }
-        //if (docid == 291129){System.out.println("AND score is "+score);}
-        return score;
+        return log_score;
     }
 
 
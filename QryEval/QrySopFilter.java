@@ -0,0 +1,99 @@
+/**
+ *  Copyright (c) 2022, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+
+/**
+ *  The FILTER operator for all retrieval models.
+ *  #FILTER (boolean-query scored-query) matches the documents that
+ *  both arguments match, and scores them with the scored query.  The
+ *  first argument is a Boolean mask:  a tree of #AND and #OR
+ *  operators (see BooleanBitmaps.isBooleanTree), which is evaluated
+ *  with Boolean semantics and bitmaps when the operator is
+ *  initialized, whatever the retrieval model is.  It only decides
+ *  which documents match, so it doesn't affect scores.
+ */
+public class QrySopFilter extends QrySop {
+
+  /**
+   *  The documents that the Boolean mask matches.
+   */
+  private DocBitmap mask;
+
+  /**
+   *  Indicates whether the query has a match.  The scored query's
+   *  iterator leaps to the next document in the mask.
+   *  @param r The retrieval model that determines what is a match
+   *  @return True if the query matches, otherwise false.
+   */
+  public boolean docIteratorHasMatch (RetrievalModel r) {
+
+    Qry q_1 = this.args.get (1);
+
+    while (q_1.docIteratorHasMatch (r)) {
+      int docid = q_1.docIteratorGetMatch ();
+      int maskDocid = this.mask.nextDocid (docid);
+
+      if (maskDocid == Qry.INVALID_DOCID) {
+        return false;
+      }
+
+      if (maskDocid == docid) {
+        this.docIteratorSetMatchCache (docid);
+        return true;
+      }
+
+      q_1.docIteratorAdvanceTo (maskDocid);
+    }
+
+    return false;
+  }
+
+  /**
+   *  Get a score for the document that docIteratorHasMatch matched:
+   *  the score of the scored query.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The document score.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public double getScore (RetrievalModel r) throws IOException {
+    return ((QrySop) this.args.get (1)).getScore (r);
+  }
+
+  /**
+   *  Get the default score of a document that docIteratorHasMatch
+   *  failed:  the default score of the scored query.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param docid the document ID to calculate default score
+   *  @return The document score.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public double getDefaultScore (RetrievalModel r, long docid) throws IOException {
+    return ((QrySop) this.args.get (1)).getDefaultScore (r, docid);
+  }
+
+  /**
+   *  Initialize the query operator and its arguments, and evaluate
+   *  the Boolean mask.  The mask's iterators are moved to the end of
+   *  their lists, so advancing this operator doesn't move them.
+   *  @param index The index that the query is evaluated on.
+   *  @param r A retrieval model that guides initialization
+   *  @throws IOException Error accessing the Lucene index.
+   *  @throws IllegalArgumentException The arguments aren't a Boolean
+   *  query and a scored query.
+   */
+  public void initialize (IndexContext index, RetrievalModel r) throws IOException {
+
+    if ((this.args.size () != 2) ||
+        (! BooleanBitmaps.isBooleanTree (this.args.get (0)))) {
+      throw new IllegalArgumentException
+        ("#FILTER requires a Boolean query and a scored query.");
+    }
+
+    super.initialize (index, r);
+
+    this.mask = BooleanBitmaps.getBitmap (this.args.get (0));
+    this.args.get (0).docIteratorAdvancePast (Integer.MAX_VALUE);
+  }
+}
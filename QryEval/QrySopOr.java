@@ -46,6 +46,27 @@ public class QrySopOr extends QrySop {
     }
   }
 
+  /**
+   *  Evaluate the query and collect the best documents.  If the
+   *  Ranked Boolean model enables Block-Max WAND pruning and every
+   *  argument is a SCORE operator, documents that can't enter the
+   *  top k are skipped; otherwise every matching document is scored.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param topK Collects the best documents.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public void evaluateTopK (RetrievalModel r, TopKCollector topK)
+    throws IOException {
+
+    if ((r instanceof RetrievalModelRankedBoolean) &&
+        ((RetrievalModelRankedBoolean) r).getPruning ().equals ("bmw") &&
+        this.argsAreScoreOperators ()) {
+      BlockMaxWand.evaluate (this.args, r, false, topK);
+    } else {
+      super.evaluateTopK (r, topK);
+    }
+  }
+
   public double getDefaultScore (RetrievalModel r, long docid) throws IOException {
     if (r instanceof RetrievalModelIndri){
       double score = 1.0;
@@ -12,9 +12,30 @@ public class QrySopScore extends QrySop {
 
   /**
    *  Document-independent values that should be determined just once.
-   *  Some retrieval models have these, some don't.
+   *  Some retrieval models have these, some don't.  They are set by
+   *  initialize from the index's collection statistics.
    */
-  
+  private double numDocs;
+  private CollectionStats.FieldStats fieldStats;
+
+  /**
+   *  BM25 values that are set by initialize:  the argument's idf, and
+   *  the length normalization of every document, for the model's k1
+   *  and b (see LengthNorms).
+   */
+  private double idf;
+  private double[] bm25Norms;
+
+  /**
+   *  Indri values that are set by initialize:  the smoothing
+   *  constants (1 - lambda), mu * p_mle and lambda * p_mle, so that a
+   *  score only needs the tf and the document length.
+   */
+  private double indriOneMinusLambda;
+  private double indriMu;
+  private double indriMuP;
+  private double indriLambdaP;
+
   /**
    *  Indicates whether the query has a match.
    *  @param r The retrieval model that determines what is a match
@@ -112,7 +133,7 @@ public class QrySopScore extends QrySop {
     //  when getScore is called, the operator should know about the document ID
     QryIop q_0 = (QryIop) this.args.get (0);
     // already know the match when this function is called, stored under the cache
-    int tf = q_0.docIteratorGetMatchPosting().tf;
+    int tf = q_0.docIteratorGetMatchTf();
 
     return tf;
   }
@@ -129,25 +150,90 @@ public class QrySopScore extends QrySop {
     //  We know that SCORE operators can only have a single QryIop object as its child.
     //  Cast the query argument to QryIop so that we can access its inverted list.
 
-    RetrievalModelBM25 rbm25 = (RetrievalModelBM25) r;
     //  when getScore is called, the operator should know about the document ID
     QryIop q_0 = (QryIop) this.args.get (0);
     // already know the match exists when this function is called, stored under the cache
-    int tf = q_0.docIteratorGetMatchPosting().tf;
+    int tf = q_0.docIteratorGetMatchTf();
 
-    double N = Idx.getNumDocs();
-    double doclen_d = Idx.getFieldLength(q_0.getField(), q_0.docIteratorGetMatch());
-    double avg_doclen = Idx.getSumOfFieldLengths(q_0.getField()) / (float) Idx.getDocCount (q_0.getField());
-    double df = q_0.getDf();
-
-    // calculate three parts separately
-    // NOTE for the idf part, we need to make sure it's none zero
-    double idf = Math.max(0, Math.log((N-df+0.5)/(df+0.5)));
-    double tf_w = tf/(tf+rbm25.k1*((1-rbm25.b)+rbm25.b*(doclen_d/avg_doclen)));
+    // the idf and k1*((1-b)+b*doclen/avg_doclen) were computed by initialize
+    double tf_w = tf/(tf+this.bm25Norms[q_0.docIteratorGetMatch()]);
     // assuming qtf = 1 for all BM25 models, then k3 does not matter here (rbm25.k3+1)/(rbm25.k3+1);
     double user_w = 1.0;
 
-    return idf*tf_w*user_w;
+    return this.idf*tf_w*user_w;
+  }
+
+  /**
+   *  An upper bound on the score of any document.  BM25 scores grow
+   *  with tf and shrink with document length, so the bound uses the
+   *  largest tf of the inverted list and the shortest document in the
+   *  field.  Ranked Boolean scores are tfs.  Indri scores also grow
+   *  with tf and shrink with document length.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The upper bound.
+   */
+  public double getUpperBound (RetrievalModel r) {
+
+    QryIop q_0 = (QryIop) this.args.get (0);
+    return this.getUpperBound (r, q_0.getMaxTf(),
+                               this.index.getMinFieldLength(q_0.getField()));
+  }
+
+  /**
+   *  Move the argument's block iterator to the block that contains
+   *  the specified docid (see QryIop.advanceShallow).
+   *  @param docid An internal document id.
+   *  @return The last docid in the block, or Integer.MAX_VALUE.
+   */
+  public int advanceShallow (int docid) {
+    return ((QryIop) this.args.get (0)).advanceShallow (docid);
+  }
+
+  /**
+   *  An upper bound on the score of any document in the block that
+   *  advanceShallow moved to.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The upper bound.
+   */
+  public double getBlockUpperBound (RetrievalModel r) {
+
+    QryIop q_0 = (QryIop) this.args.get (0);
+    return this.getUpperBound (r, q_0.getBlockMaxTf(), q_0.getBlockMinLength());
+  }
+
+  /**
+   *  An upper bound on the score of documents with at most maxTf
+   *  occurrences and at least minLength terms.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param maxTf The largest tf.
+   *  @param minLength The shortest document length.
+   *  @return The upper bound.
+   */
+  private double getUpperBound (RetrievalModel r, int maxTf, int minLength) {
+
+    if (maxTf == 0)
+      return 0.0;
+
+    if (r instanceof RetrievalModelRankedBoolean)
+      return maxTf;
+
+    if (r instanceof RetrievalModelIndri)
+      return this.getScoreIndri (maxTf, minLength);
+
+    if (! (r instanceof RetrievalModelBM25))
+      throw new IllegalArgumentException
+        (r.getClass().getName() + " doesn't support SCORE upper bounds.");
+
+    RetrievalModelBM25 rbm25 = (RetrievalModelBM25) r;
+    double tf = maxTf;
+    double doclen_d = minLength;
+    double avg_doclen = this.fieldStats.avgLength;
+
+    // same arithmetic as getScoreBM25 and LengthNorms, so rounding
+    // can't exceed the bound
+    double tf_w = tf/(tf+rbm25.k1*((1-rbm25.b)+rbm25.b*(doclen_d/avg_doclen)));
+
+    return this.idf*tf_w;
   }
 
   /**
@@ -162,22 +248,28 @@ public class QrySopScore extends QrySop {
     //  We know that SCORE operators can only have a single QryIop object as its child.
     //  Cast the query argument to QryIop so that we can access its inverted list.
 
-    RetrievalModelIndri rindri = (RetrievalModelIndri) r;
     //  when getScore is called, the operator should know about the document ID
     QryIop q_0 = (QryIop) this.args.get (0);
-    double ctf = q_0.getCtf();
-    if (ctf == 0){ctf = 0.5;}
     // already know the match when this function is called, stored under the cache
-    int tf = q_0.docIteratorGetMatchPosting().tf;
-    double length_d = Idx.getFieldLength(q_0.getField(), q_0.docIteratorGetMatch());
+    int tf = q_0.docIteratorGetMatchTf();
+    double length_d = this.index.getFieldLength(q_0.getField(), q_0.docIteratorGetMatch());
+
+    return this.getScoreIndri (tf, length_d);
+  }
 
-    double p_mle_corpus = ctf/Idx.getSumOfFieldLengths(q_0.getField());
-    double score = (1.0-rindri.lambda)*(tf+(rindri.miu*p_mle_corpus))/(length_d+rindri.miu)+
-            rindri.lambda*p_mle_corpus;
-//    if (q_0.docIteratorGetMatch() == 291129){
-//      System.out.println("docid 291129 score "+score+" and corpus MLE is "+p_mle_corpus);
-//    }
-    if ((length_d == 0) && (rindri.miu==0)){score = rindri.lambda*p_mle_corpus;}
+  /**
+   *  The Indri score of a document that has tf occurrences of the
+   *  term and the specified field length.
+   *  @param tf The term frequency in the document.
+   *  @param length_d The field length of the document.
+   *  @return The document score.
+   */
+  private double getScoreIndri (int tf, double length_d) {
+
+    // (1-lambda)*(tf+miu*Pmle(q|C))/(length_d+miu) + lambda*Pmle(q|C)
+    double score = this.indriOneMinusLambda*(tf+this.indriMuP)/(length_d+this.indriMu)+
+            this.indriLambdaP;
+    if ((length_d == 0) && (this.indriMu==0)){score = this.indriLambdaP;}
 
     return score;
   }
@@ -186,19 +278,42 @@ public class QrySopScore extends QrySop {
 
     //  Default Score for Indri - setting tf = 0
     //  wrap model as indri model and the pointer as Iop type
-    RetrievalModelIndri rindri = (RetrievalModelIndri) r;
     QryIop q_0 = (QryIop) this.args.get (0);
-    double ctf = q_0.getCtf();
-    if (ctf == 0){ctf = 0.5;}
+    double length_d = this.index.getFieldLength(q_0.getField(), (int) docid);
+
+    return this.getDefaultScoreIndri (length_d);
+  }
+
+  /**
+   *  An upper bound on the default score of any document.  Indri
+   *  default scores shrink with document length, so the bound is the
+   *  default score of a document that doesn't have the field.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The upper bound.
+   */
+  public double getDefaultUpperBound (RetrievalModel r) {
+
+    if (! (r instanceof RetrievalModelIndri))
+      throw new IllegalArgumentException
+        (r.getClass().getName() + " doesn't support SCORE default score bounds.");
+
+    return this.getDefaultScoreIndri (0.0);
+  }
+
+  /**
+   *  The Indri default score of a document with the specified field
+   *  length.  It only depends on the length.
+   *  @param length_d The field length of the document.
+   *  @return The default score.
+   */
+  private double getDefaultScoreIndri (double length_d) {
+
     // set tf=0, then the score would be
     // (1-lambda)*miu*Pmle(q|C)/(length_d+miu)+ lambdaPmle(q|C)
-    double length_d = Idx.getFieldLength(q_0.getField(), (int) docid);
-    double p_mle_corpus = ctf/Idx.getSumOfFieldLengths(q_0.getField());
-    double default_score = (1.0-rindri.lambda)*(rindri.miu*p_mle_corpus)/(length_d+rindri.miu)+
-            rindri.lambda*p_mle_corpus;
+    double default_score = this.indriOneMinusLambda*this.indriMuP/(length_d+this.indriMu)+
+            this.indriLambdaP;
     // when division by 0 happens
-    if ((length_d == 0) && (rindri.miu==0)){default_score = rindri.lambda*p_mle_corpus;}
-//    if (default_score > 1) {System.out.println(docid);}
+    if ((length_d == 0) && (this.indriMu==0)){default_score = this.indriLambdaP;}
 
     return default_score;
   }
@@ -207,21 +322,65 @@ public class QrySopScore extends QrySop {
    *  internal iterators.  If the query operator is of type QryIop, it
    *  is fully evaluated, and the results are stored in an internal
    *  inverted list that may be accessed via the internal iterator.
+   *  @param index The index that the query is evaluated on.
    *  @param r A retrieval model that guides initialization
    *  @throws IOException Error accessing the Lucene index.
    */
-  public void initialize (RetrievalModel r) throws IOException {
+  public void initialize (IndexContext index, RetrievalModel r) throws IOException {
+
+    this.index = index;
+
+    QryIop q = (QryIop) this.args.get (0);
+    q.initialize (index, r);
+
+    this.initializeStatistics (r, q.getDf (), q.getCtf ());
+  }
+
+  /**
+   *  Cache the collection statistics that scores use, so that they
+   *  aren't looked up for every document.  initialize uses the df and
+   *  ctf of the argument.  When a query is evaluated in parts (see
+   *  ParallelEvaluation), the argument's inverted list only covers
+   *  part of the index, so the whole index's df and ctf are set
+   *  afterwards.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param df The document frequency of the argument.
+   *  @param ctf The collection term frequency of the argument.
+   */
+  public void initializeStatistics (RetrievalModel r, int df, int ctf) {
 
     Qry q = this.args.get (0);
-    q.initialize (r);
-
-    /*
-     *  STUDENTS:: In HW2 during query initialization you may find it
-     *  useful to have this SCORE node precompute and cache some
-     *  values that it will use repeatedly when calculating document
-     *  scores.  It won't change your results, but it will improve the
-     *  speed of your software.
-     */
+    CollectionStats stats = this.index.getCollectionStats ();
+    String field = ((QryIop) q).getField ();
+    this.numDocs = stats.getNumDocs ();
+    this.fieldStats = stats.getFieldStats (field);
+
+    //  BM25 scores also need the idf, which depends on the argument's
+    //  df, and the length normalization of each document.
+
+    if (r instanceof RetrievalModelBM25) {
+      RetrievalModelBM25 rbm25 = (RetrievalModelBM25) r;
+      double N = this.numDocs;
+
+      // NOTE for the idf part, we need to make sure it's none zero
+      this.idf = Math.max(0, Math.log((N-df+0.5)/(df+0.5)));
+      this.bm25Norms = this.index.getBM25LengthNorms (field, rbm25.k1, rbm25.b);
+    }
+
+    //  Indri scores need the smoothing constants, which depend on the
+    //  argument's ctf.
+
+    if (r instanceof RetrievalModelIndri) {
+      RetrievalModelIndri rindri = (RetrievalModelIndri) r;
+      double ctf_d = ctf;
+      if (ctf_d == 0){ctf_d = 0.5;}
+
+      double p_mle_corpus = ctf_d/this.fieldStats.sumTotalTermFreq;
+      this.indriOneMinusLambda = 1.0-rindri.lambda;
+      this.indriMu = rindri.miu;
+      this.indriMuP = rindri.miu*p_mle_corpus;
+      this.indriLambdaP = rindri.lambda*p_mle_corpus;
+    }
   }
 
 }
@@ -1,4 +1,5 @@
 import java.io.*;
+import java.util.*;
 
 /**
  *  The Sum operator for BM25 retrieval models.
@@ -48,6 +49,153 @@ public class QrySopSum extends QrySop {
         }
     }
 
+    /**
+     *  Evaluate the query and collect the best documents.  If the
+     *  BM25 model enables MaxScore or Block-Max WAND pruning and every
+     *  argument is a SCORE operator, documents that can't enter the
+     *  top k are skipped; otherwise every matching document is scored.
+     *  @param r The retrieval model that determines how scores are calculated.
+     *  @param topK Collects the best documents.
+     *  @throws IOException Error accessing the Lucene index
+     */
+    public void evaluateTopK (RetrievalModel r, TopKCollector topK) throws IOException {
+        String pruning = (r instanceof RetrievalModelBM25) ?
+                ((RetrievalModelBM25) r).getPruning () : "none";
+
+        if (pruning.equals ("maxscore") && this.argsAreScoreOperators ()) {
+            this.evaluateMaxScore (r, topK);
+        }
+        else if (pruning.equals ("bmw") && this.argsAreScoreOperators ()) {
+            BlockMaxWand.evaluate (this.args, r, true, topK);
+        }
+        else {
+            super.evaluateTopK (r, topK);
+        }
+    }
+
+    /**
+     *  MaxScore evaluation (Turtle and Flood, 1995).  Each argument has
+     *  an upper bound on its score.  Arguments are ordered by bound;
+     *  the smallest ones whose bounds add up to less than the top-k
+     *  threshold are non-essential, because a document that only
+     *  matches them can't enter the top k.  Candidates come from the
+     *  essential arguments only.  The non-essential arguments are
+     *  checked from the largest bound down, and the document is
+     *  dropped as soon as its score plus the remaining bounds falls
+     *  below the threshold.
+     *  <p>
+     *  Document scores are added up in argument order, like
+     *  getScoreBM25 does, so they are identical to exhaustive
+     *  evaluation, and so is the top k.
+     *  </p>
+     *  @param r The retrieval model that determines how scores are calculated.
+     *  @param topK Collects the best documents.
+     *  @throws IOException Error accessing the Lucene index
+     */
+    private void evaluateMaxScore (RetrievalModel r, TopKCollector topK) throws IOException {
+
+        int n = this.args.size ();
+        QrySopScore[] scorers = new QrySopScore[n];
+        double[] bounds = new double[n];
+        Integer[] order = new Integer[n];
+
+        for (int i = 0; i < n; i++) {
+            scorers[i] = (QrySopScore) this.args.get (i);
+            bounds[i] = scorers[i].getUpperBound (r);
+            order[i] = i;
+        }
+
+        Arrays.sort (order, (a, b) -> Double.compare (bounds[a], bounds[b]));
+
+        //  boundSums[j] is the sum of the bounds of order[0..j-1].
+
+        double[] boundSums = new double[n + 1];
+
+        for (int j = 0; j < n; j++)
+            boundSums[j + 1] = boundSums[j] + bounds[order[j]];
+
+        double[] argScores = new double[n];
+        boolean[] argMatches = new boolean[n];
+        int firstEssential = 0;
+
+        while (true) {
+
+            //  The threshold only grows, so arguments only become
+            //  non-essential.
+
+            double threshold = topK.threshold ();
+
+            while ((firstEssential < n) &&
+                    (boundSums[firstEssential + 1] * BOUND_SLACK < threshold))
+                firstEssential++;
+
+            //  The next candidate is the smallest essential docid.
+
+            int docid = Qry.INVALID_DOCID;
+
+            for (int j = firstEssential; j < n; j++) {
+                QrySopScore q_j = scorers[order[j]];
+
+                if (q_j.docIteratorHasMatch (r)) {
+                    int d = q_j.docIteratorGetMatch ();
+
+                    if ((docid == Qry.INVALID_DOCID) || (d < docid))
+                        docid = d;
+                }
+            }
+
+            if (docid == Qry.INVALID_DOCID)
+                break;
+
+            Arrays.fill (argMatches, false);
+            double score = 0.0;
+
+            for (int j = firstEssential; j < n; j++) {
+                int i = order[j];
+
+                if (scorers[i].docIteratorHasMatch (r) &&
+                        (scorers[i].docIteratorGetMatch () == docid)) {
+                    argScores[i] = scorers[i].getScore (r);
+                    argMatches[i] = true;
+                    score += argScores[i];
+                }
+            }
+
+            boolean pruned = false;
+
+            for (int j = firstEssential - 1; j >= 0; j--) {
+                if ((score + boundSums[j + 1]) * BOUND_SLACK < threshold) {
+                    pruned = true;
+                    break;
+                }
+
+                int i = order[j];
+                scorers[i].docIteratorAdvanceTo (docid);
+
+                if (scorers[i].docIteratorHasMatch (r) &&
+                        (scorers[i].docIteratorGetMatch () == docid)) {
+                    argScores[i] = scorers[i].getScore (r);
+                    argMatches[i] = true;
+                    score += argScores[i];
+                }
+            }
+
+            if (! pruned) {
+                double total = 0.0;
+
+                for (int i = 0; i < n; i++) {
+                    if (argMatches[i])
+                        total = total + argScores[i];
+                }
+
+                topK.add (docid, total);
+            }
+
+            for (int j = firstEssential; j < n; j++)
+                scorers[order[j]].docIteratorAdvancePast (docid);
+        }
+    }
+
     private double getScoreBM25 (RetrievalModel r) throws IOException {
         //  BM25 calculates score depending on b, k1 and k3 value
         //  for each term that appear in doc and query, calculate it using
@@ -36,54 +36,114 @@ public class QrySopWand extends QrySop {
         }
     }
 
+    /**
+     *  Evaluate the query and collect the best documents.  If the
+     *  Indri model enables MaxScore pruning and every argument is a
+     *  SCORE operator, documents that can't enter the top k are
+     *  skipped (see IndriMaxScore); otherwise every document that
+     *  matches an argument is scored.
+     *  @param r The retrieval model that determines how scores are calculated.
+     *  @param topK Collects the best documents.
+     *  @throws IOException Error accessing the Lucene index
+     */
+    public void evaluateTopK (RetrievalModel r, TopKCollector topK) throws IOException {
+        if ((r instanceof RetrievalModelIndri) &&
+                ((RetrievalModelIndri) r).getPruning ().equals ("maxscore") &&
+                this.argsAreScoreOperators ()) {
+            double[] weights = new double[this.args.size()];
+            for (int i=0; i<this.args.size(); i++)
+                weights[i] = this.args.get(i).getWeight();
+
+            if (IndriMaxScore.evaluate (this.args, weights, r, topK))
+                return;
+        }
+
+        super.evaluateTopK (r, topK);
+    }
+
     public double getDefaultScore (RetrievalModel r, long docid) throws IOException {
-        if (r instanceof RetrievalModelIndri){
-            // get the length of this query
-            double score = 1.0;
-            // iterate through each term
-            for (int i=0; i<this.args.size(); i++) {
+        if (r instanceof RetrievalModelIndri) {
+            return Math.exp(this.getLogDefaultScore(r, docid));
+        }
+        else {
+            throw new IllegalArgumentException
+                    (r.getClass().getName() + " doesn't support the Default Score for WAND operator.");
+        }
+    }
+
+    /**
+     *  Get the log of the default score of a document that
+     *  docIteratorHasMatch failed:  the weighted sum of the log
+     *  default scores of the arguments.
+     *  @param r The retrieval model that determines how scores are calculated.
+     *  @param docid the document ID to calculate default score
+     *  @return The log of the document score.
+     *  @throws IOException Error accessing the Lucene index
+     */
+    public double getLogDefaultScore (RetrievalModel r, long docid) throws IOException {
+        if (r instanceof RetrievalModelIndri) {
+            int query_size = this.args.size();
+            double log_score = 0.0;
+            for (int i=0; i<query_size; i++) {
                 QrySop q_i = (QrySop) this.args.get(i);
                 double weight = q_i.getWeight();
-                score *= Math.pow(q_i.getDefaultScore(r,docid), weight);
+                if (weight == 0.0) {
+                    continue;
+                }
+                log_score += weight*q_i.getLogDefaultScore(r,docid);
             }
-            return score;
+            return log_score;
         }
-        else {
-            throw new IllegalArgumentException
-                    (r.getClass().getName() +
-                            " doesn't support the default score calculation under SCORE operator.");
+        return super.getLogDefaultScore(r, docid);
+    }
+
+    /**
+     *  Get the log of the score of the document that
+     *  docIteratorHasMatch matched.
+     *  @param r The retrieval model that determines how scores are calculated.
+     *  @return The log of the document score.
+     *  @throws IOException Error accessing the Lucene index
+     */
+    public double getLogScore (RetrievalModel r) throws IOException {
+        if (r instanceof RetrievalModelIndri) {
+            return this.getLogScoreIndri (r);
         }
+        return super.getLogScore(r);
     }
 
     private double getScoreIndri (RetrievalModel r) throws IOException {
-        // set initial score to be 1 for mulplication
-        double score = 1.0;
-        double q_score;
+        return Math.exp(this.getLogScoreIndri(r));
+    }
+
+    /**
+     *  The Indri score in log space:  the weighted sum of the log
+     *  scores of the arguments, in argument order.  Weights are
+     *  multipliers instead of exponents, so there is no pow per
+     *  argument.
+     *  @param r The retrieval model that determines how scores are calculated.
+     *  @return The log of the document score.
+     *  @throws IOException Error accessing the Lucene index
+     */
+    private double getLogScoreIndri (RetrievalModel r) throws IOException {
+        // set initial log score to be 0 for summation
+        double log_score = 0.0;
         // Note that the getScoreIndri would not be called on doc with none of the query term
         // so there must be at least one Qry has matched on the docid
         int docid = this.docIteratorGetMatch ();
-//        if (docid == 291129){
-//        System.out.println("Current WLen is "+this.args.size());}
-        for (int i=0; i<this.args.size(); i++) {
+        int query_size = this.args.size();
+        for (int i=0; i<query_size; i++) {
             QrySop q_i = (QrySop) this.args.get(i);
             double weight = q_i.getWeight();
-            if (q_i.docIteratorHasMatch (r)  &&
-                    (q_i.docIteratorGetMatch () == docid)){
-                q_score = Math.pow(q_i.getScore(r), weight);
-              //  if (docid == 488252){
-               // System.out.println(Idx.getExternalDocid(docid)+" has match and weight is "+weight);
-               // System.out.println(Idx.getExternalDocid(docid)+" has match and score is "+q_score);}
+            if (weight == 0.0) {
+                continue;
             }
-            else{
-                q_score = Math.pow(q_i.getDefaultScore(r,docid), weight);
-//                System.out.println(Idx.getExternalDocid(docid)+" has NO match and default score is "+q_score);
+            if (q_i.docIteratorHasMatch (r) &&
+                    (q_i.docIteratorGetMatch () == docid)){
+                log_score += weight*q_i.getLogScore(r);
             }
-       //     if (docid == 488252){System.out.println("WAND score is "+q_i.getDisplayName()+"weight "+weight+"score "+q_score);}
-            // difference here is to power the weight and multiply the scores
-            score = score*q_score;
+            else{log_score += weight*q_i.getLogDefaultScore(r,docid);}
         }
-        //if (docid == 488252){System.out.println("WAND score is "+score);}
-        return score;
+        return log_score;
     }
 
 
@@ -16,4 +16,27 @@ public abstract class RetrievalModel {
    */
   public abstract String defaultQrySopName ();
 
+  /**
+   *  Check the value of an evaluation option, so that a misspelled
+   *  option isn't silently ignored.
+   *  @param name The option's parameter name, for the error message.
+   *  @param value The value, in any case.
+   *  @param allowed The allowed values, in lower case.
+   *  @return The value, in lower case.
+   *  @throws IllegalArgumentException The value isn't allowed.
+   */
+  protected static String checkOption (String name, String value, String... allowed) {
+
+    String v = value.toLowerCase ();
+
+    for (String a : allowed) {
+      if (a.equals (v))
+        return v;
+    }
+
+    throw new IllegalArgumentException
+      ("Unknown " + name + " " + value + "; expected one of " +
+       String.join ("|", allowed));
+  }
+
 }
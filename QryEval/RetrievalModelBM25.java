@@ -11,6 +11,29 @@ public class RetrievalModelBM25 extends RetrievalModel {
     public double k1;
     public double b;
     public double k3;
+
+    /**
+     *  The dynamic pruning method for #SUM queries:  "none" (the
+     *  default), "maxscore", or "bmw" (Block-Max WAND).  Pruning
+     *  doesn't change the top k.
+     */
+    private String pruning = "none";
+
+    /**
+     *  The evaluation strategy for #SUM queries:  "daat" (the default),
+     *  "taat" (term-at-a-time, see TermAtATime), or "saat"
+     *  (score-at-a-time over the impact-ordered index, see
+     *  ScoreAtATime).  Score-at-a-time scores are quantized, so they
+     *  approximate BM25 scores.
+     */
+    private String evaluation = "daat";
+
+    /**
+     *  The largest number of postings that score-at-a-time evaluation
+     *  processes for a query, or 0 for no limit.
+     */
+    public long saatBudget = 0;
+
     public RetrievalModelBM25(double k1, double b, double k3){
         // constructor to create BM25 model with parameters
         this.k1 = k1;
@@ -21,4 +44,38 @@ public class RetrievalModelBM25 extends RetrievalModel {
         return new String ("#sum");
     }
 
+    /**
+     *  Get the dynamic pruning method.
+     *  @return The dynamic pruning method.
+     */
+    public String getPruning () {
+        return this.pruning;
+    }
+
+    /**
+     *  Set the dynamic pruning method.
+     *  @param pruning One of none, maxscore, bmw, in any case.
+     *  @throws IllegalArgumentException Any other value.
+     */
+    public void setPruning (String pruning) {
+        this.pruning = checkOption ("BM25:pruning", pruning, "none", "maxscore", "bmw");
+    }
+
+    /**
+     *  Get the evaluation strategy.
+     *  @return The evaluation strategy.
+     */
+    public String getEvaluation () {
+        return this.evaluation;
+    }
+
+    /**
+     *  Set the evaluation strategy.
+     *  @param evaluation One of daat, taat, saat, in any case.
+     *  @throws IllegalArgumentException Any other value.
+     */
+    public void setEvaluation (String evaluation) {
+        this.evaluation = checkOption ("BM25:evaluation", evaluation, "daat", "taat", "saat");
+    }
+
 }
@@ -10,6 +10,20 @@
 public class RetrievalModelIndri extends RetrievalModel {
     public double lambda;
     public int miu;
+
+    /**
+     *  The dynamic pruning method for #AND and #WAND queries:  "none"
+     *  (the default), or "maxscore".  Pruning doesn't change the top k.
+     */
+    private String pruning = "none";
+
+    /**
+     *  The evaluation strategy for #AND, #WAND and #WSUM queries:
+     *  "daat" (the default) or "taat" (term-at-a-time, see
+     *  TermAtATime).  Both produce the same results.
+     */
+    private String evaluation = "daat";
+
     public RetrievalModelIndri(int miu, double lambda){
         // constructor to create BM25 model with parameters
         this.miu = miu;
@@ -19,4 +33,38 @@ public class RetrievalModelIndri extends RetrievalModel {
         return new String ("#and");
     }
 
+    /**
+     *  Get the dynamic pruning method.
+     *  @return The dynamic pruning method.
+     */
+    public String getPruning () {
+        return this.pruning;
+    }
+
+    /**
+     *  Set the dynamic pruning method.
+     *  @param pruning One of none, maxscore, in any case.
+     *  @throws IllegalArgumentException Any other value.
+     */
+    public void setPruning (String pruning) {
+        this.pruning = checkOption ("Indri:pruning", pruning, "none", "maxscore");
+    }
+
+    /**
+     *  Get the evaluation strategy.
+     *  @return The evaluation strategy.
+     */
+    public String getEvaluation () {
+        return this.evaluation;
+    }
+
+    /**
+     *  Set the evaluation strategy.
+     *  @param evaluation One of daat, taat, in any case.
+     *  @throws IllegalArgumentException Any other value.
+     */
+    public void setEvaluation (String evaluation) {
+        this.evaluation = checkOption ("Indri:evaluation", evaluation, "daat", "taat");
+    }
+
 }
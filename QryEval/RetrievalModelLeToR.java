@@ -5,6 +5,9 @@ import javax.management.QueryEval;
 import java.io.*;
 import java.util.*;
 import java.util.Map;
+
+import org.apache.lucene.index.Term;
+
 /**
  *  An object that stores parameters for the learning-to-rank
  *  retrieval model (there are none) and indicates to the query
@@ -231,10 +234,12 @@ public class RetrievalModelLeToR extends RetrievalModel {
                 HashMap<String, String> rjDocs = this.relevanceJudges.get(qid);
                 //System.out.println("Rel Judge is");
                 //System.out.println(rjDocs);
-                for(Map.Entry<String, String> doc_rjScore: rjDocs.entrySet()){
-                    String externalId = doc_rjScore.getKey();
-                    HashMap<Integer, Double> doc_fMap = calcFeatures(queryTerms, externalId);
-                    featureMap.put(externalId, doc_fMap);
+                // look up the docids of the query's documents in one batch
+                String[] externalIds = rjDocs.keySet().toArray(new String[0]);
+                int[] docids = Idx.getInternalDocids(externalIds);
+                for (int i = 0; i < externalIds.length; i++){
+                    HashMap<Integer, Double> doc_fMap = calcFeatures(queryTerms, docids[i]);
+                    featureMap.put(externalIds[i], doc_fMap);
                 }
                 // normalize features
                 if (this.toolkit.equals("SVMRank")){
@@ -257,9 +262,12 @@ public class RetrievalModelLeToR extends RetrievalModel {
 
     public HashMap<Integer, Double> calcFeatures(String[] queryTerms, String externalId)
             throws Exception {
-        int docid;
+        return calcFeatures(queryTerms, Idx.getInternalDocid(externalId));
+    }
+
+    public HashMap<Integer, Double> calcFeatures(String[] queryTerms, int docid)
+            throws Exception {
         try {
-            docid = Idx.getInternalDocid(externalId);
             if (docid < 0){return null;}
             HashMap<Integer, Double> featureMap = new HashMap<>();
             // feature 1: spam score
@@ -514,15 +522,29 @@ public class RetrievalModelLeToR extends RetrievalModel {
             test_feature = new BufferedReader(new FileReader(parameters.get("ltr:testingFeatureVectorsFile")));
             String score_line = null, feature_line = null;
 
+            // read both files first so that docids are looked up in one batch
+            List<String> score_lines = new ArrayList<>();
+            List<String[]> feature_lines = new ArrayList<>();
+            while(((score_line = test_score.readLine()) != null) &&
+                    ((feature_line = test_feature.readLine()) != null)) {
+                score_lines.add(score_line);
+                feature_lines.add(feature_line.split(" "));
+            }
+            String[] externalIds = new String[feature_lines.size()];
+            for (int i = 0; i < externalIds.length; i++){
+                String[] features = feature_lines.get(i);
+                externalIds[i] = features[features.length - 1].trim();
+            }
+            int[] docids = Idx.getInternalDocids(externalIds);
+
             ScoreList rerank_list = new ScoreList();
             String currQid = "X";
             boolean initialQid = true;
-            while(((score_line = test_score.readLine()) != null) &&
-                    ((feature_line = test_feature.readLine()) != null)) {
-                String[] features = feature_line.split(" ");
+            for (int i = 0; i < docids.length; i++) {
+                score_line = score_lines.get(i);
+                String[] features = feature_lines.get(i);
                 String qid = features[1].split(":")[1];
-                String externalId = features[features.length - 1].trim();
-                int docid = Idx.getInternalDocid(externalId);
+                int docid = docids[i];
                 double doc_score = 0.0;
                 if (this.toolkit == "SVMRank"){
                     doc_score = Double.parseDouble(score_line.trim());
@@ -562,8 +584,9 @@ public class RetrievalModelLeToR extends RetrievalModel {
         if(tv.stemsLength() <= 0) {return -1.0;}
         double score = 0.0;
         double doclen_d = Idx.getFieldLength(field, docid);
-        double avg_doclen = Idx.getSumOfFieldLengths(field) / (float) Idx.getDocCount (field);
-        double N = Idx.getNumDocs();
+        CollectionStats stats = Idx.getCollectionStats();
+        double avg_doclen = stats.getFieldStats(field).avgLength;
+        double N = stats.getNumDocs();
         //  BM25 Model return IDF*DF(adj)*Query Weight for each term
         for (String term: queryTerms){
             int termIdx = tv.indexOfStem(term);
@@ -591,13 +614,14 @@ public class RetrievalModelLeToR extends RetrievalModel {
         if(tv.stemsLength() <= 0) {return -1.0;}
         double score = 1.0;
         double doclen_d = Idx.getFieldLength(field, docid);
+        CollectionStats stats = Idx.getCollectionStats();
         int nonexistTerm = 0;
         for (String term: queryTerms){
             double termScore;
             int termIdx = tv.indexOfStem(term);
-            double ctf = Idx.getTotalTermFreq(field, term);
+            double ctf = stats.getTotalTermFreq(new Term(field, term));
             if (ctf == 0){ctf = 0.5;}
-            double p_mle_corpus = ctf/Idx.getSumOfFieldLengths(field);
+            double p_mle_corpus = ctf/stats.getFieldStats(field).sumTotalTermFreq;
             if(termIdx != -1){
                 // if the term exists
                 double tf = tv.stemFreq(termIdx);
@@ -9,8 +9,56 @@
  */
 public class RetrievalModelRankedBoolean extends RetrievalModel {
 
+    /**
+     *  The dynamic pruning method for #OR queries:  "none" (the
+     *  default), or "bmw" (Block-Max WAND).  Pruning doesn't change
+     *  the top k.
+     */
+    private String pruning = "none";
+
+    /**
+     *  The evaluation strategy:  "daat" (the default), or "bitmap"
+     *  (bitmap intersections and unions, see BooleanBitmaps), which
+     *  is used for queries of #AND and #OR operators.
+     */
+    private String evaluation = "daat";
+
     public String defaultQrySopName () {
         return new String ("#and");
     }
 
+    /**
+     *  Get the dynamic pruning method.
+     *  @return The dynamic pruning method.
+     */
+    public String getPruning () {
+        return this.pruning;
+    }
+
+    /**
+     *  Set the dynamic pruning method.
+     *  @param pruning One of none, bmw, in any case.
+     *  @throws IllegalArgumentException Any other value.
+     */
+    public void setPruning (String pruning) {
+        this.pruning = checkOption ("RankedBoolean:pruning", pruning, "none", "bmw");
+    }
+
+    /**
+     *  Get the evaluation strategy.
+     *  @return The evaluation strategy.
+     */
+    public String getEvaluation () {
+        return this.evaluation;
+    }
+
+    /**
+     *  Set the evaluation strategy.
+     *  @param evaluation One of daat, bitmap, in any case.
+     *  @throws IllegalArgumentException Any other value.
+     */
+    public void setEvaluation (String evaluation) {
+        this.evaluation = checkOption ("RankedBoolean:evaluation", evaluation, "daat", "bitmap");
+    }
+
 }
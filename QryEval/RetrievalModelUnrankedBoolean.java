@@ -9,8 +9,32 @@
  */
 public class RetrievalModelUnrankedBoolean extends RetrievalModel {
 
+  /**
+   *  The evaluation strategy:  "daat" (the default), or "bitmap"
+   *  (bitmap intersections and unions, see BooleanBitmaps), which
+   *  is used for queries of #AND and #OR operators.
+   */
+  private String evaluation = "daat";
+
   public String defaultQrySopName () {
     return new String ("#and");
   }
 
+  /**
+   *  Get the evaluation strategy.
+   *  @return The evaluation strategy.
+   */
+  public String getEvaluation () {
+    return this.evaluation;
+  }
+
+  /**
+   *  Set the evaluation strategy.
+   *  @param evaluation One of daat, bitmap, in any case.
+   *  @throws IllegalArgumentException Any other value.
+   */
+  public void setEvaluation (String evaluation) {
+    this.evaluation = checkOption ("UnrankedBoolean:evaluation", evaluation, "daat", "bitmap");
+  }
+
 }
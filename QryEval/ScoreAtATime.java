@@ -0,0 +1,185 @@
+/**
+ *  Copyright (c) 2022, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+/**
+ *  Score-at-a-time evaluation (Anh and Moffat, 2006) of bag-of-words
+ *  BM25 queries over the impact-ordered index (see ImpactIndex).
+ *  <p>
+ *  The impact segments of all of the query terms are processed from
+ *  the highest impact to the lowest, and each posting adds its impact
+ *  to its document's accumulator.  The most important postings are
+ *  processed first, so evaluation can stop after a fixed number of
+ *  postings (RetrievalModelBM25.saatBudget) with a good approximation
+ *  of the ranking.  That bounds the cost of a query, which
+ *  document-at-a-time evaluation can't do.
+ *  </p><p>
+ *  Document scores are sums of quantized impacts, converted back to
+ *  the BM25 scale, so they approximate the exact BM25 scores even
+ *  without a budget.
+ *  </p>
+ */
+public class ScoreAtATime {
+
+  /**
+   *  Per-thread accumulators, indexed by internal docid, and the
+   *  docids whose accumulators are nonzero.  They are reused across
+   *  queries, so only the accumulators that a query touched are
+   *  reset.
+   */
+  private static final class Accumulators {
+    private int[] scores = new int[0];
+    private int[] touched = new int[1024];
+    private int numTouched = 0;
+  }
+
+  private static final ThreadLocal<Accumulators> ACCUMULATORS =
+    ThreadLocal.withInitial (Accumulators::new);
+
+  /**
+   *  Whether a query can be evaluated score-at-a-time.  It must be a
+   *  BM25 #SUM of terms, the model must request score-at-a-time
+   *  evaluation, and the index must have an impact-ordered index
+   *  for the model's k1 and b and the query's fields.  Otherwise the
+   *  query should be evaluated document-at-a-time.
+   *  @param index The index.
+   *  @param q The query.
+   *  @param r The retrieval model.
+   *  @return True if the query can be evaluated score-at-a-time.
+   */
+  public static boolean canEvaluate (IndexContext index, Qry q, RetrievalModel r) {
+
+    if (! (r instanceof RetrievalModelBM25) ||
+        ! ((RetrievalModelBM25) r).getEvaluation ().equals ("saat") ||
+        ! (q instanceof QrySopSum))
+      return false;
+
+    RetrievalModelBM25 rbm25 = (RetrievalModelBM25) r;
+    ImpactIndex impacts = index.getImpactIndex ();
+
+    if ((impacts == null) ||
+        (impacts.getK1 () != rbm25.k1) || (impacts.getB () != rbm25.b))
+      return false;
+
+    for (Qry q_i : q.args) {
+      if (! (q_i instanceof QrySopScore) ||
+          ! (q_i.args.get (0) instanceof QryIopTerm) ||
+          ! impacts.hasField (((QryIopTerm) q_i.args.get (0)).getField ()))
+        return false;
+    }
+
+    return true;
+  }
+
+  /**
+   *  Evaluate a query score-at-a-time and collect the best documents.
+   *  The query must satisfy canEvaluate.  It doesn't need to be
+   *  initialized.
+   *  @param index The index.
+   *  @param q The query.
+   *  @param r The retrieval model.
+   *  @param topK Collects the best documents.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static void evaluate (IndexContext index, Qry q, RetrievalModelBM25 r,
+                               TopKCollector topK)
+    throws IOException {
+
+    ImpactIndex impacts = index.getImpactIndex ();
+
+    //  Find the impact segments of every term.
+
+    List<ImpactIndex.Segments> lists = new ArrayList<ImpactIndex.Segments> ();
+
+    for (Qry q_i : q.args) {
+      QryIopTerm term = (QryIopTerm) q_i.args.get (0);
+      ImpactIndex.Segments segments = impacts.get (term.getField (), term.getTerm ());
+
+      if (segments != null)
+        lists.add (segments);
+    }
+
+    //  Order every segment by descending impact.  Ties are broken by
+    //  term order, so evaluation is deterministic.
+
+    int numSegments = 0;
+
+    for (ImpactIndex.Segments segments : lists)
+      numSegments += segments.size ();
+
+    int[] segmentList = new int[numSegments];
+    int[] segmentIndex = new int[numSegments];
+    int[] segmentImpact = new int[numSegments];
+    Integer[] order = new Integer[numSegments];
+    int n = 0;
+
+    for (int l = 0; l < lists.size (); l++) {
+      for (int s = 0; s < lists.get (l).size (); s++) {
+        segmentList[n] = l;
+        segmentIndex[n] = s;
+        segmentImpact[n] = lists.get (l).getImpact (s);
+        order[n] = n;
+        n ++;
+      }
+    }
+
+    Arrays.sort (order, (a, b) -> Integer.compare (segmentImpact[b], segmentImpact[a]));
+
+    //  Accumulate impacts until the segments or the budget run out.
+
+    Accumulators acc = ACCUMULATORS.get ();
+    int maxDoc = index.maxDoc ();
+
+    if (acc.scores.length != maxDoc)
+      acc.scores = new int[maxDoc];
+
+    long budget = (r.saatBudget > 0) ? r.saatBudget : Long.MAX_VALUE;
+    int[] docids = new int[1024];
+
+    for (int j = 0; (j < numSegments) && (budget > 0); j++) {
+      ImpactIndex.Segments segments = lists.get (segmentList[order[j]]);
+      int s = segmentIndex[order[j]];
+      int impact = segmentImpact[order[j]];
+      int count = segments.getPostingCount (s);
+
+      if (docids.length < count)
+        docids = new int[Math.max (count, 2 * docids.length)];
+
+      int m = segments.getDocids (s, docids, (int) Math.min (count, budget));
+
+      for (int k = 0; k < m; k++) {
+        int d = docids[k];
+
+        if (acc.scores[d] == 0) {
+          if (acc.numTouched == acc.touched.length)
+            acc.touched = Arrays.copyOf (acc.touched, 2 * acc.numTouched);
+
+          acc.touched[acc.numTouched ++] = d;
+        }
+
+        acc.scores[d] += impact;
+      }
+
+      budget -= m;
+    }
+
+    //  Collect the best documents.  The accumulators are reset even
+    //  if that fails, because the next query reuses them.
+
+    double scale = impacts.getScale ();
+
+    try {
+      for (int k = 0; k < acc.numTouched; k++) {
+        int d = acc.touched[k];
+        topK.add (d, acc.scores[d] * scale);
+      }
+    } finally {
+      for (int k = 0; k < acc.numTouched; k++)
+        acc.scores[acc.touched[k]] = 0;
+
+      acc.numTouched = 0;
+    }
+  }
+}
@@ -11,23 +11,31 @@ import java.util.*;
 public class ScoreList {
 
   //  A utility class to create a <internalDocid, externalDocid, score>
-  //  object.
+  //  object.  The external id is only needed to break score ties
+  //  and to write results, so it is resolved when it is first used.
 
   private class ScoreListEntry {
     private int docid;
-    private String externalId;
+    private String externalId = null;
     private double score;
 
     private ScoreListEntry(int internalDocid, double score) {
       this.docid = internalDocid;
       this.score = score;
+    }
 
-      try {
-	this.externalId = Idx.getExternalDocid (this.docid);
-      }
-      catch (IOException ex){
-	ex.printStackTrace();
+    private String getExternalId() {
+      if (this.externalId == null) {
+        try {
+          this.externalId = (index == null) ?
+            Idx.getExternalDocid (this.docid) : index.getExternalDocid (this.docid);
+        }
+        catch (IOException ex){
+          ex.printStackTrace();
+        }
       }
+
+      return this.externalId;
     }
   }
 
@@ -36,6 +44,26 @@ public class ScoreList {
    */
   private List<ScoreListEntry> scores = new ArrayList<ScoreListEntry>();
 
+  /**
+   *  The index that the documents are in, or null for the current
+   *  index.
+   */
+  private final IndexContext index;
+
+  /**
+   *  A score list for documents of the current index.
+   */
+  public ScoreList() {
+    this.index = null;
+  }
+
+  /**
+   *  @param index The index that the documents are in.
+   */
+  public ScoreList(IndexContext index) {
+    this.index = index;
+  }
+
   /**
    *  Append a document score to a score list.
    *  @param docid An internal document id.
@@ -97,13 +125,7 @@ public class ScoreList {
 	if (s1.score < s2.score)
 	  return 1;
 	else
-	  if (s1.externalId.compareTo(s2.externalId) < 0)
-	    return -1;
-	  else
-	    if (s1.externalId.compareTo(s2.externalId) > 0)
-	      return 1;
-	    else
-	      return 0;
+	  return s1.getExternalId().compareTo(s2.getExternalId());
     }
   }
 
@@ -0,0 +1,249 @@
+/**
+ *  Copyright (c) 2022, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+/**
+ *  Term-at-a-time evaluation of flat best-match queries:  BM25 #SUM,
+ *  and Indri #AND, #WAND and #WSUM, whose arguments are SCORE
+ *  operators.
+ *  <p>
+ *  Document-at-a-time evaluation finds each document by checking
+ *  every argument, and then checks every argument again to score it.
+ *  Term-at-a-time evaluation reads one argument's inverted list at a
+ *  time into a dense accumulator array indexed by docid, and selects
+ *  the top k at the end.  BM25 adds each posting's score to its
+ *  document's accumulator.  Indri must also give each candidate
+ *  document a default score for the arguments that it doesn't match,
+ *  so each argument's postings are scored first, and then the
+ *  arguments are combined over the sorted union of their documents.
+ *  </p><p>
+ *  Scores are combined in argument order with the same arithmetic as
+ *  the operators' getScore methods, so the results are identical to
+ *  document-at-a-time evaluation.
+ *  </p>
+ */
+public class TermAtATime {
+
+  /**
+   *  Per-thread accumulators, indexed by internal docid, and the
+   *  docids whose accumulators are in use.  They are reused across
+   *  queries, so only the accumulators that a query touched are
+   *  reset.
+   */
+  private static final class Accumulators {
+    private double[] scores = new double[0];
+    private boolean[] used = new boolean[0];
+    private int[] touched = new int[1024];
+    private int numTouched = 0;
+
+    /**
+     *  Mark a document's accumulator as used.
+     *  @param docid An internal document id.
+     *  @return True if the accumulator was not used before.
+     */
+    private boolean use (int docid) {
+      if (this.used[docid])
+        return false;
+
+      if (this.numTouched == this.touched.length)
+        this.touched = Arrays.copyOf (this.touched, 2 * this.numTouched);
+
+      this.used[docid] = true;
+      this.touched[this.numTouched ++] = docid;
+      return true;
+    }
+
+    /**
+     *  Reset the accumulators that are in use.
+     */
+    private void reset () {
+      for (int i = 0; i < this.numTouched; i++) {
+        this.scores[this.touched[i]] = 0.0;
+        this.used[this.touched[i]] = false;
+      }
+
+      this.numTouched = 0;
+    }
+  }
+
+  private static final ThreadLocal<Accumulators> ACCUMULATORS =
+    ThreadLocal.withInitial (Accumulators::new);
+
+  /**
+   *  Whether a query can be evaluated term-at-a-time.  The model must
+   *  request term-at-a-time evaluation, and the query must be a BM25
+   *  #SUM or an Indri #AND, #WAND or #WSUM whose arguments are SCORE
+   *  operators.  Otherwise the query should be evaluated
+   *  document-at-a-time.
+   *  @param q The query.
+   *  @param r The retrieval model.
+   *  @return True if the query can be evaluated term-at-a-time.
+   */
+  public static boolean canEvaluate (Qry q, RetrievalModel r) {
+
+    if (r instanceof RetrievalModelBM25) {
+      if (! ((RetrievalModelBM25) r).getEvaluation ().equals ("taat") ||
+          ! (q instanceof QrySopSum))
+        return false;
+    } else if (r instanceof RetrievalModelIndri) {
+      if (! ((RetrievalModelIndri) r).getEvaluation ().equals ("taat") ||
+          ! ((q instanceof QrySopAnd) || (q instanceof QrySopWand) ||
+             (q instanceof QrySopWsum)))
+        return false;
+    } else {
+      return false;
+    }
+
+    for (Qry q_i : q.args) {
+      if (! (q_i instanceof QrySopScore))
+        return false;
+    }
+
+    return true;
+  }
+
+  /**
+   *  Evaluate an initialized query term-at-a-time and collect the
+   *  best documents.  The query must satisfy canEvaluate.
+   *  @param q The query.
+   *  @param r The retrieval model.
+   *  @param topK Collects the best documents.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static void evaluate (Qry q, RetrievalModel r, TopKCollector topK)
+    throws IOException {
+
+    Accumulators acc = ACCUMULATORS.get ();
+    int maxDoc = q.getIndexContext ().maxDoc ();
+
+    if (acc.scores.length != maxDoc) {
+      acc.scores = new double[maxDoc];
+      acc.used = new boolean[maxDoc];
+    }
+
+    try {
+      if (r instanceof RetrievalModelBM25)
+        accumulateSum (q, r, acc);
+      else
+        accumulateIndri (q, r, acc);
+
+      for (int i = 0; i < acc.numTouched; i++) {
+        int docid = acc.touched[i];
+        topK.add (docid, acc.scores[docid]);
+      }
+    } finally {
+      acc.reset ();
+    }
+  }
+
+  /**
+   *  Accumulate the scores of a BM25 #SUM.  Each argument adds its
+   *  score to the accumulators of the documents that it matches.
+   *  @param q The query.
+   *  @param r The retrieval model.
+   *  @param acc The accumulators.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private static void accumulateSum (Qry q, RetrievalModel r, Accumulators acc)
+    throws IOException {
+
+    for (Qry q_i : q.args) {
+      QrySopScore scorer = (QrySopScore) q_i;
+      QryIop postings = (QryIop) scorer.args.get (0);
+
+      while (postings.docIteratorHasMatch (r)) {
+        int docid = postings.docIteratorGetMatch ();
+
+        acc.use (docid);
+        acc.scores[docid] = acc.scores[docid] + scorer.getScore (r);
+        postings.docIteratorAdvancePast (docid);
+      }
+    }
+  }
+
+  /**
+   *  Accumulate the scores of an Indri #AND, #WAND or #WSUM.  The
+   *  postings of each argument are scored, then the candidate
+   *  documents (every document that an argument matches) are sorted,
+   *  and each argument's score or default score is combined into the
+   *  candidates' accumulators, one argument at a time.
+   *  @param q The query.
+   *  @param r The retrieval model.
+   *  @param acc The accumulators.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private static void accumulateIndri (Qry q, RetrievalModel r, Accumulators acc)
+    throws IOException {
+
+    int n = q.args.size ();
+    int[][] docids = new int[n][];
+    double[][] scores = new double[n][];
+    int[] df = new int[n];
+
+    //  Score each argument's postings and find the candidates.
+
+    for (int i = 0; i < n; i++) {
+      QrySopScore scorer = (QrySopScore) q.args.get (i);
+      QryIop postings = (QryIop) scorer.args.get (0);
+
+      docids[i] = new int[Math.max (1, postings.getDf ())];
+      scores[i] = new double[docids[i].length];
+
+      while (postings.docIteratorHasMatch (r)) {
+        int docid = postings.docIteratorGetMatch ();
+
+        if (df[i] == docids[i].length) {
+          docids[i] = Arrays.copyOf (docids[i], 2 * df[i]);
+          scores[i] = Arrays.copyOf (scores[i], 2 * df[i]);
+        }
+
+        docids[i][df[i]] = docid;
+        scores[i][df[i]] = (q instanceof QrySopWsum) ?
+          scorer.getScore (r) : scorer.getLogScore (r);
+        df[i] ++;
+        acc.use (docid);
+        postings.docIteratorAdvancePast (docid);
+      }
+    }
+
+    int numCandidates = acc.numTouched;
+    int[] candidates = acc.touched;
+    Arrays.sort (candidates, 0, numCandidates);
+
+    //  Combine the arguments in argument order, as getScore does.
+    //  #AND and #WAND add weighted log scores, and their accumulators
+    //  are converted back to scores at the end.
+
+    boolean logSpace = ! (q instanceof QrySopWsum);
+
+    for (int i = 0; i < n; i++) {
+      QrySop q_i = (QrySop) q.args.get (i);
+      double weight = (q instanceof QrySopAnd) ? 1.0/n : q_i.getWeight();
+      int p = 0;
+
+      if (logSpace && (weight == 0.0))
+        continue;
+
+      for (int c = 0; c < numCandidates; c++) {
+        int docid = candidates[c];
+        double q_score;
+
+        if ((p < df[i]) && (docids[i][p] == docid))
+          q_score = scores[i][p++];
+        else if (logSpace)
+          q_score = q_i.getLogDefaultScore (r, docid);
+        else
+          q_score = q_i.getDefaultScore (r, docid);
+
+        acc.scores[docid] += weight * q_score;
+      }
+    }
+
+    if (logSpace) {
+      for (int c = 0; c < numCandidates; c++)
+        acc.scores[candidates[c]] = Math.exp (acc.scores[candidates[c]]);
+    }
+  }
+}
@@ -0,0 +1,202 @@
+/**
+ *  Copyright (c) 2022, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+
+/**
+ *  Collects the k best documents of a query.  Documents are ranked
+ *  by score, and ties are broken by external document id, which is
+ *  the order of ScoreList.sort, so the result is the same as adding
+ *  every document to a ScoreList, sorting it, and truncating it to k.
+ *  <p>
+ *  The collector is a bounded min-heap of (docid, score) pairs stored
+ *  in primitive arrays, so adding a document doesn't allocate.  The
+ *  score of the k'th best document so far (see threshold) lets query
+ *  operators skip documents that can't enter the top k.
+ *  </p>
+ */
+public class TopKCollector {
+
+  //  --------------- Constants and variables ---------------------
+
+  private final IndexContext index;
+  private final int k;
+  private int size = 0;
+
+  /*
+   *  The heap.  The worst document is at index 0.
+   */
+  private final int[] docids;
+  private final double[] scores;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Collect documents of the current index.
+   *  @param k The number of documents to keep.
+   */
+  public TopKCollector (int k) {
+    this (Idx.getIndexContext (), k);
+  }
+
+  /**
+   *  @param index The index that the documents are in.
+   *  @param k The number of documents to keep.
+   */
+  public TopKCollector (IndexContext index, int k) {
+    if (k < 0)
+      throw new IllegalArgumentException ("k must be non-negative.");
+
+    this.index = index;
+    this.k = k;
+    this.docids = new int[k];
+    this.scores = new double[k];
+  }
+
+  /**
+   *  Add a document.  It is kept if it is better than the k'th best
+   *  document so far.
+   *  @param docid An internal document id.
+   *  @param score The document's score.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public void add (int docid, double score) throws IOException {
+
+    if (this.size < this.k) {
+      this.docids[this.size] = docid;
+      this.scores[this.size] = score;
+      this.siftUp (this.size);
+      this.size ++;
+    } else if ((this.k > 0) && worse (this.docids[0], this.scores[0], docid, score)) {
+      this.docids[0] = docid;
+      this.scores[0] = score;
+      this.siftDown (0);
+    }
+  }
+
+  /**
+   *  Get the score that a document must exceed to enter the top k.
+   *  A document with exactly this score may still enter the top k
+   *  if it wins the tie.
+   *  @return The score of the k'th best document, or negative
+   *  infinity if fewer than k documents have been added.
+   */
+  public double threshold () {
+    if ((this.size < this.k) || (this.k == 0))
+      return Double.NEGATIVE_INFINITY;
+
+    return this.scores[0];
+  }
+
+  /**
+   *  Get the number of documents kept so far.
+   *  @return The number of documents, at most k.
+   */
+  public int size () {
+    return this.size;
+  }
+
+  /**
+   *  Get the documents that were kept, best first.  The collector is
+   *  empty afterwards.
+   *  @return The documents and their scores.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public ScoreList getScoreList () throws IOException {
+
+    //  Removing the worst document repeatedly leaves the heap arrays
+    //  sorted from best to worst.
+
+    int n = this.size;
+
+    while (this.size > 1) {
+      this.size --;
+      this.swap (0, this.size);
+      this.siftDown (0);
+    }
+
+    this.size = 0;
+
+    ScoreList results = new ScoreList (this.index);
+
+    for (int i = 0; i < n; i++)
+      results.add (this.docids[i], this.scores[i]);
+
+    return results;
+  }
+
+  /**
+   *  Whether document 1 ranks below document 2.
+   *  @param docid1 The internal document id of document 1.
+   *  @param score1 The score of document 1.
+   *  @param docid2 The internal document id of document 2.
+   *  @param score2 The score of document 2.
+   *  @return True if document 1 ranks below document 2.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private boolean worse (int docid1, double score1, int docid2, double score2)
+    throws IOException {
+
+    if (score1 != score2)
+      return (score1 < score2);
+
+    return (this.index.compareExternalDocids (docid1, docid2) > 0);
+  }
+
+  /**
+   *  Move the entry at index i up to its place in the heap.
+   *  @param i An index in the heap.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private void siftUp (int i) throws IOException {
+    while (i > 0) {
+      int parent = (i - 1) >>> 1;
+
+      if (! worse (this.docids[i], this.scores[i], this.docids[parent], this.scores[parent]))
+        break;
+
+      this.swap (i, parent);
+      i = parent;
+    }
+  }
+
+  /**
+   *  Move the entry at index i down to its place in the heap.
+   *  @param i An index in the heap.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private void siftDown (int i) throws IOException {
+    while (true) {
+      int child = 2 * i + 1;
+
+      if (child >= this.size)
+        break;
+
+      if ((child + 1 < this.size) &&
+          worse (this.docids[child + 1], this.scores[child + 1],
+                 this.docids[child], this.scores[child]))
+        child ++;
+
+      if (! worse (this.docids[child], this.scores[child], this.docids[i], this.scores[i]))
+        break;
+
+      this.swap (i, child);
+      i = child;
+    }
+  }
+
+  /**
+   *  Swap two heap entries.
+   *  @param i An index in the heap.
+   *  @param j Another index in the heap.
+   */
+  private void swap (int i, int j) {
+    int docid = this.docids[i];
+    this.docids[i] = this.docids[j];
+    this.docids[j] = docid;
+
+    double score = this.scores[i];
+    this.scores[i] = this.scores[j];
+    this.scores[j] = score;
+  }
+}
@@ -2,12 +2,42 @@
  *  Copyright (c) 2022, Carnegie Mellon University.  All Rights Reserved.
  */
 import java.io.*;
+import java.util.concurrent.*;
 
 /**
  *  Miscellaneous utilities.
  */
 public class Utils {
 
+  /**
+   *  Wait for a task that runs on another thread, and get its result.
+   *  The task's exception is rethrown as is, if possible.
+   *  @param future The task's result.
+   *  @return The task's result.
+   *  @throws IOException The task failed to access the Lucene index,
+   *  or the thread was interrupted.
+   */
+  public static <T> T getResult (Future<T> future) throws IOException {
+
+    try {
+      return future.get ();
+    } catch (InterruptedException ex) {
+      Thread.currentThread ().interrupt ();
+      throw new InterruptedIOException ("Interrupted while waiting for a task.");
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause ();
+
+      if (cause instanceof IOException)
+        throw (IOException) cause;
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException) cause;
+      if (cause instanceof Error)
+        throw (Error) cause;
+
+      throw new IOException (cause);
+    }
+  }
+
   /**
    *  Run an external process.
    *  @param processName a name to display if the process fails